@@ -1,10 +1,15 @@
 package datastructures;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Stores a filesystem action.
@@ -21,16 +26,35 @@ public class Action {
 		DelAndCopyFile,
 		DeleteDirectory,
 		DeleteFile,
+		Move,
 		Conflict
 	}
 	
+	// Failed entries of a copy or deletion which are listed in the log
+	private static final int MAX_REPORTED_FAILURES = 10;
+
 	private Type type;
 	private String source, destination;
+	// File key of the source when the action was determined (shared by hard links of the same file)
+	private Object sourceKey = null;
+	// Destination of an earlier action of the same execution which copies the same file, and the copies made by the execution
+	// by file key of their sources (see assignLinkTargets)
+	private String linkTarget = null;
+	private Map<Object, File> links = null;
 	
-	// Just for performance enhancement
-	private String sourceInfo = "";
-	private String destInfo = "";
-	private boolean infosCached = false;
+	// Attributes of source and destination when the action was determined (shown by toString, which does not access the file system)
+	private FileSnapshot sourceSnapshot = null;
+	private FileSnapshot destinationSnapshot = null;
+	// Entries of deleted directories which were modified after this date are kept (0 deletes all entries), see DeleteEngine
+	private long keepModifiedAfter = 0;
+
+	// Formats the dates shown by toString (DateFormat is not thread-safe)
+	private static final ThreadLocal<DateFormat> dateFormat = new ThreadLocal<DateFormat>(){
+		@Override
+		protected DateFormat initialValue(){
+			return DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
+		}
+	};
 	
 	/**
 	 * Constructor
@@ -41,6 +65,7 @@ public class Action {
 	 */
 	public Action(Type type, String source) throws IllegalArgumentException{
 		if (type == Type.DelAndCopyDirectory || type == Type.DelAndCopyFile || type == Type.CopyDirectory || type == Type.CopyFile) throw new IllegalArgumentException("Copy action needs 2 arguments");
+		if (type == Type.Move) throw new IllegalArgumentException("Move action needs 2 arguments");
 		setType(type);
 		setSource(source);
 	}
@@ -53,7 +78,7 @@ public class Action {
 	 * @throws IllegalArgumentException If too few or too many parameters are provided (depending on the action type). 
 	 */
 	public Action(Type type, String source, String destination) throws IllegalArgumentException{
-		if (type != Type.DelAndCopyDirectory && type != Type.DelAndCopyFile && type != Type.CopyDirectory && type != Type.CopyFile && type != Type.Conflict) throw new IllegalArgumentException("Only copy action needs 2 arguments");
+		if (type != Type.DelAndCopyDirectory && type != Type.DelAndCopyFile && type != Type.CopyDirectory && type != Type.CopyFile && type != Type.Move && type != Type.Conflict) throw new IllegalArgumentException("Only copy action needs 2 arguments");
 		setType(type);
 		setSource(source);
 		setDestination(destination);
@@ -101,12 +126,117 @@ public class Action {
 		return destination;
 	}
 	
+	/**
+	 * @param sourceKey the file key of the source when the action was determined (see FileSnapshot.getFileKey)
+	 */
+	public void setSourceKey(Object sourceKey) {
+		this.sourceKey = sourceKey;
+	}
+
+	/**
+	 * @return the file key of the source when the action was determined (null if unknown)
+	 */
+	public Object getSourceKey() {
+		return sourceKey;
+	}
+
+	/**
+	 * Sets the attributes of source and destination when the action was determined, which are shown by toString.
+	 * @param sourceSnapshot (null if unknown)
+	 * @param destinationSnapshot (null if unknown or if the action has no destination)
+	 */
+	public void setSnapshots(FileSnapshot sourceSnapshot, FileSnapshot destinationSnapshot) {
+		this.sourceSnapshot = sourceSnapshot;
+		this.destinationSnapshot = destinationSnapshot;
+	}
+
+	/**
+	 * @return the attributes of the source when the action was determined (null if unknown)
+	 */
+	public FileSnapshot getSourceSnapshot() {
+		return sourceSnapshot;
+	}
+
+	/**
+	 * @return the attributes of the destination when the action was determined (null if unknown)
+	 */
+	public FileSnapshot getDestinationSnapshot() {
+		return destinationSnapshot;
+	}
+
+	/**
+	 * Checks if source or destination were changed since the action was determined (only elements with recorded attributes
+	 * are checked): files by type, size and modification date (in seconds), directories by type and, if the action deletes them,
+	 * by modification date (which changes when an entry is added or removed).
+	 * @return String Description of the change or null if nothing changed
+	 */
+	public String findChange() {
+		String change = findChange(getSource(), sourceSnapshot, type == Type.DeleteDirectory);
+		if (change == null && getDestination() != null) change = findChange(getDestination(), destinationSnapshot, type == Type.DelAndCopyDirectory);
+		return change;
+	}
+
+	private static String findChange(String path, FileSnapshot recorded, boolean deleted){
+		if (recorded == null) return null;
+		FileSnapshot current = FileSnapshot.read(new File(path).toPath(), true);
+		if (recorded.exists() != current.exists()) return "\"" + path + "\" was " + (current.exists() ? "created" : "deleted") + " since the actions were determined";
+		if (!current.exists()) return null;
+		if (recorded.isFile() != current.isFile() || recorded.isDirectory() != current.isDirectory()) return "\"" + path + "\" was replaced since the actions were determined";
+		boolean modified = recorded.lastModified() / 1000 != current.lastModified() / 1000;
+		if (current.isDirectory() ? deleted && modified : modified || recorded.length() != current.length()) return "\"" + path + "\" was modified since the actions were determined";
+		return null;
+	}
+
+	/**
+	 * Sets the date after which entries of deleted directories count as modified since the actions were determined:
+	 * findChange only checks the deleted directory itself, hence such entries are kept and reported when the directory is deleted.
+	 * @param date Date in milliseconds (0 deletes all entries)
+	 */
+	public void setKeepModifiedAfter(long date) {
+		this.keepModifiedAfter = date;
+	}
+
+	/**
+	 * @return the destination of an earlier action which copies the same file (null if the file is copied)
+	 */
+	public String getLinkTarget() {
+		return linkTarget;
+	}
+
+	/**
+	 * Groups the file copies of an action list by the file keys of their sources (hard links of the same file share the key):
+	 * the first copy of each group copies the file, the others recreate the link to its destination when they are executed.
+	 * Files copied by the actions (also within directories) are recorded as well, such that further hard links of them are linked
+	 * to the copies; a file is copied if the link cannot be created (e.g. the copy is on another file system or was not made yet).
+	 * @param actions
+	 * @return int Number of copies which are expected to be replaced by links
+	 */
+	public static int assignLinkTargets(List<Action> actions){
+		Map<Object, String> copies = new HashMap<Object, String>();
+		Map<Object, File> executionLinks = new ConcurrentHashMap<Object, File>();
+		int links = 0;
+		for (Action action : actions){
+			action.linkTarget = null;
+			action.links = executionLinks;
+			if (action.sourceKey == null || (action.type != Type.CopyFile && action.type != Type.DelAndCopyFile)) continue;
+			String target = copies.get(action.sourceKey);
+			if (target == null){
+				copies.put(action.sourceKey, action.getDestination());
+			}else{
+				action.linkTarget = target;
+				links++;
+			}
+		}
+		return links;
+	}
+
 	/**
 	 * Actually executes a given list of actions on the filesystem (in the given order).
 	 * @param actions
 	 * @return log
 	 */
 	public static String executeActionList(List<Action> actions){
+		assignLinkTargets(actions);
 		StringBuilder sb = new StringBuilder();
 		boolean firstline = true;
 		int i = 1;
@@ -115,20 +245,60 @@ public class Action {
 			System.out.println("  " + (i++) + " of " + count + "\n" + action.toString());
 			if (!firstline) sb.append("\n");
 			firstline = false;
-			try{
-				sb.append("# " + action.execute());
-			}catch(Exception e){
-				sb.append("! Failed to execute action: [" + action.toString() + "], " + e.getMessage());
-			}
+			sb.append(action.executeLogged());
 		}
+		printCopyStatistics();
 		return sb.toString();
 	}
+
+	/**
+	 * Prints the statistics of the copy and delete engines (if files were copied or deleted).
+	 */
+	public static void printCopyStatistics(){
+		String copyStatistics = CopyEngine.getDefault().getStatistics();
+		if (copyStatistics.length() > 0) System.out.println("Copy statistics: " + copyStatistics);
+		String deleteStatistics = DeleteEngine.getDefault().getStatistics();
+		if (deleteStatistics.length() > 0) System.out.println("Delete statistics: " + deleteStatistics);
+		if (Throttle.getWaitedMillis() > 0) System.out.println("Throttled: actions waited " + Throttle.getWaitedMillis() / 1000.0 + " s for the configured limits");
+	}
+
+	/**
+	 * Actually executes this action on the filesystem; failures are reported in the log rather than thrown.
+	 * @return log line (starting with "#" on success and with "!" on failure)
+	 */
+	public String executeLogged(){
+		return executeLogged(0, null);
+	}
+
+	/**
+	 * Actually executes this action on the filesystem; failures are reported in the log rather than thrown.
+	 * @param resumeOffset Number of bytes of a file copy completed by an interrupted execution (see CopyEngine)
+	 * @param listener Notified about the progress of a file copy (may be null)
+	 * @return log line (starting with "#" on success and with "!" on failure)
+	 */
+	public String executeLogged(long resumeOffset, CopyEngine.ProgressListener listener){
+		try{
+			return "# " + execute(resumeOffset, listener);
+		}catch(Exception e){
+			return "! Failed to execute action: [" + toString() + "], " + e.getMessage();
+		}
+	}
 	
 	/**
 	 * Actually executes this action on the filesystem.
 	 * @return log
 	 */
 	public String execute(){
+		return execute(0, null);
+	}
+
+	/**
+	 * Actually executes this action on the filesystem.
+	 * @param resumeOffset Number of bytes of a file copy completed by an interrupted execution (see CopyEngine)
+	 * @param listener Notified about the progress of a file copy (may be null)
+	 * @return log
+	 */
+	public String execute(long resumeOffset, CopyEngine.ProgressListener listener){
 		switch(getType()){
 			case CreateFile:
 				createFile(getSource()); 
@@ -137,18 +307,16 @@ public class Action {
 				createFile(getSource()); 
 				return "Created directory \"" + getSource() + "\"";
 			case CopyFile:
-				copy(getSource(), getDestination());
-				return "Copied file \"" + getSource() + "\" to \"" + getDestination() + "\"";
+				return "Copied file \"" + getSource() + "\" to \"" + getDestination() + "\"" + formatResult(copy(getSource(), getDestination(), resumeOffset, listener, links));
 			case CopyDirectory:
-				copy(getSource(), getDestination());
+				copy(getSource(), getDestination(), 0, null, links != null ? links : new HashMap<Object, File>());
 				return "Copied directory \"" + getSource() + "\" to \"" + getDestination() + "\"";
 			case DelAndCopyFile:
 				delete(getDestination());
-				copy(getSource(), getDestination());
-				return "Deleted \"" + getDestination() + "\" and copied file \"" + getSource() + "\" to \"" + getDestination() + "\"";
+				return "Deleted \"" + getDestination() + "\" and copied file \"" + getSource() + "\" to \"" + getDestination() + "\"" + formatResult(copy(getSource(), getDestination(), resumeOffset, listener, links));
 			case DelAndCopyDirectory: 
 				delete(getDestination());
-				copy(getSource(), getDestination());
+				copy(getSource(), getDestination(), 0, null, links != null ? links : new HashMap<Object, File>());
 				return "Deleted \"" + getDestination() + "\" and copied directory \"" + getSource() + "\" to \"" + getDestination() + "\"";
 			case DeleteFile:
 				delete(getSource());
@@ -156,11 +324,23 @@ public class Action {
 			case DeleteDirectory:
 				delete(getSource());
 				return "Deleted directory \"" + getSource() + "\"";
+			case Move:
+				move(getSource(), getDestination());
+				return "Moved \"" + getSource() + "\" to \"" + getDestination() + "\"";
 			default:
 				return "";
 		}
 	}
 
+	/**
+	 * Formats size and throughput of a file copy for the log.
+	 * @param result
+	 * @return String
+	 */
+	private static String formatResult(CopyEngine.Result result){
+		return result == null ? "" : " (" + result + ")";
+	}
+
 	/**
 	 * String representation of this actoin.
 	 * @return String
@@ -169,42 +349,38 @@ public class Action {
 		return toString(false);
 	}
 	
+
 	/**
 	 * String representation of this actoin.
 	 * @param shortoutput boolean If true, output will be shortened.
 	 * @return String
 	 */
 	public String toString(boolean shortoutput){
-		// Form additional info for modification date and file size
-		DateFormat df = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
-
-		if (!infosCached){
-			switch(getType()){
-				case CreateFile: 
-				case CreateDirectory:
-				case CopyFile:
-				case DelAndCopyFile:
-					if (new File(getSource()).exists()) sourceInfo = "(" + formatFileSize(new File(getSource()).length()) + ", " + df.format(new Date(new File(getSource()).lastModified())) + ")";
-					if (new File(getDestination()).exists()) destInfo = "(" + formatFileSize(new File(getDestination()).length()) + ", " + df.format(new Date(new File(getDestination()).lastModified())) + ")";
-					break;
-				case CopyDirectory: 
-				case DelAndCopyDirectory: 
-					if (new File(getSource()).exists()) sourceInfo = "(" + df.format(new Date(new File(getSource()).lastModified())) + ")";
-					if (new File(getDestination()).exists()) destInfo = "(" + df.format(new Date(new File(getDestination()).lastModified())) + ")";
-					break;
-				case DeleteFile:
-					if (new File(getSource()).exists()) sourceInfo = "(" + formatFileSize(new File(getSource()).length()) + ", " + df.format(new Date(new File(getSource()).lastModified())) + ")";
-					break;
-				case DeleteDirectory:
-					if (new File(getSource()).exists()) sourceInfo = "(" + formatFileSize(new File(getSource()).length()) + ", " + df.format(new Date(new File(getSource()).lastModified())) + ")";
-					break;
-				case Conflict:
-					if (new File(getSource()).exists()) sourceInfo = "(" + formatFileSize(new File(getSource()).length()) + ", " + df.format(new Date(new File(getSource()).lastModified())) + ")";
-					if (new File(getDestination()).exists()) destInfo = "(" + formatFileSize(new File(getDestination()).length()) + ", " + df.format(new Date(new File(getDestination()).lastModified())) + ")";
-					break;
-				default:
-			}
-			infosCached = true;
+		// Form additional info for modification date and file size (as determined with the action)
+		String sourceInfo = "";
+		String destInfo = "";
+		switch(getType()){
+			case CreateFile: 
+			case CreateDirectory:
+			case CopyFile:
+			case DelAndCopyFile:
+			case Conflict:
+				sourceInfo = formatInfo(sourceSnapshot, true);
+				destInfo = formatInfo(destinationSnapshot, true);
+				break;
+			case CopyDirectory: 
+			case DelAndCopyDirectory: 
+				sourceInfo = formatInfo(sourceSnapshot, false);
+				destInfo = formatInfo(destinationSnapshot, false);
+				break;
+			case DeleteFile:
+			case DeleteDirectory:
+				sourceInfo = formatInfo(sourceSnapshot, true);
+				break;
+			case Move:
+				sourceInfo = formatInfo(sourceSnapshot, sourceSnapshot != null && sourceSnapshot.isFile());
+				break;
+			default:
 		}
 		
 		// Generate string representation
@@ -249,6 +425,8 @@ public class Action {
 				case DeleteFile:
 				case DeleteDirectory:
 					return shortenPaths("DEL \"[0]\"", new String[]{getSource()}, consoleWidth) + "\n" + sourceInfo;
+				case Move:
+					return shortenPaths("MOV \"[0]\" ~~> \"[1]\"", new String[]{getSource(), getDestination()}, consoleWidth) + "\n" + sourceInfo;
 				case Conflict:
 					return shortenPaths("!! \"[0]\" / \"[1]\" (skip)", new String[]{getSource(), getDestination()}, consoleWidth);
 				default:
@@ -272,6 +450,8 @@ public class Action {
 					return "Delete file \"" + getSource() + "\" " + sourceInfo + "";
 				case DeleteDirectory:
 					return "Delete directory \"" + getSource() + "\" " + sourceInfo;
+				case Move:
+					return "Move \"" + getSource() + "\" " + sourceInfo + " to \"" + getDestination() + "\"";
 				case Conflict:
 					return "Conflict: \"" + getSource() + "\" " + sourceInfo + " / \"" + getDestination() + "\" " + destInfo + " (do nothing)";
 				default:
@@ -280,6 +460,17 @@ public class Action {
 		}
 	}
 	
+	/**
+	 * Formats the size and modification date of an element.
+	 * @param snapshot
+	 * @param withSize
+	 * @return String (empty if the element did not exist or is unknown)
+	 */
+	private String formatInfo(FileSnapshot snapshot, boolean withSize){
+		if (snapshot == null || !snapshot.exists()) return "";
+		return "(" + (withSize ? formatFileSize(snapshot.length()) + ", " : "") + dateFormat.get().format(new Date(snapshot.lastModified())) + ")";
+	}
+
 	/**
 	 * Formats a given file size (in bytes) to make it human readable.
 	 * @param fs
@@ -387,62 +578,126 @@ public class Action {
 	}
 
 	private static void createDirectory(String f){
+		Throttle.forPath(f).acquire(0, 1);
 		(new File(f)).mkdir();
 	}
 	
-	private static void copy(String source, String dest){
-		try {
-			if ((new File(source)).isFile()){
-				long fs = (new File(source)).length();
-				
-				// File copy
-				FileInputStream fis = new FileInputStream(source);
-				FileOutputStream fos = new FileOutputStream(dest);
-				byte[] bytes = null;
-				if (fs > 1024 * 1024 * 50) bytes = new byte[1024 * 1024 * 50];
-				else if (fs > 1024 * 1024 * 25) bytes = new byte[1024 * 1024 * 25];
-				else if (fs > 1024 * 1024 * 10) bytes = new byte[1024 * 1024 * 10];
-				else if (fs > 1024 * 1024 * 5) bytes = new byte[1024 * 1024 * 5];
-				else if (fs > 1024 * 1024) bytes = new byte[1024 * 1024];
-				else bytes = new byte[1024];
-				int count = 0;
-				while ((count = fis.read(bytes)) > 0){
-					fos.write(bytes, 0, count);
-				}
-				fos.close();
-				fis.close();
-				
-				// Essential: Take last modification date from source!
-				File sourceFile = new File(source);
-				File destinationFile = new File(dest);
-				if (destinationFile.setLastModified(sourceFile.lastModified()) == false){
-					System.err.println("Fatal: Could not modify date of \"" + destinationFile.getAbsolutePath() + "\".\nPlease fix this file manually, check access rights and restart\nTerminate to avoid further errors.");
-					System.exit(1);
-				}
-			}else{
-				// Make sure that the destination exists
-				createDirectory(dest);
-				
-				// Copy recursively
-				String[] children = (new File(source)).list();
-				for (int i = 0; i < children.length; i++){
-					copy(source + File.separator + children[i], dest + File.separator + children[i]);
-				}
+	/**
+	 * Copies a file or directory (recursively); modification dates are taken from the snapshots of the sources.
+	 * A copied file only replaces the destination once its contents and modification date are complete.
+	 * Entries of a directory which cannot be copied do not stop the copy of the others; they are reported when the directory is complete.
+	 * @param source
+	 * @param dest
+	 * @param resumeOffset Number of bytes of a file copy completed by an interrupted execution
+	 * @param listener Notified about the progress of a file copy (may be null)
+	 * @param links Complete copies by file key of their sources: hard links of these files are linked to the copies,
+	 *              copied files are added (may be null)
+	 * @return CopyEngine.Result Size and throughput if a single file was copied, otherwise null
+	 * @throws UncheckedIOException If the file cannot be copied
+	 * @throws IllegalStateException If the source does not exist or entries of the directory could not be copied (the message lists them)
+	 */
+	private static CopyEngine.Result copy(String source, String dest, long resumeOffset, CopyEngine.ProgressListener listener, Map<Object, File> links){
+		FileSnapshot snapshot = FileSnapshot.read(new File(source).toPath(), true);
+		if (snapshot.isFile()){
+			try{
+				return copyFile(source, dest, snapshot, resumeOffset, listener, links);
+			}catch(IOException e){
+				throw new UncheckedIOException("Cannot copy \"" + source + "\": " + e.getMessage(), e);
 			}
-		} catch (Exception e) {}
+		}
+		if (!snapshot.isDirectory()) throw new IllegalStateException("\"" + source + "\" does not exist or cannot be read");
+		List<String> failures = new ArrayList<String>();
+		copyDirectory(source, dest, links, failures);
+		if (!failures.isEmpty()) throw new IllegalStateException(formatFailures("copy", failures));
+		return null;
 	}
 
-	private static void delete(String f){
-		File file = new File(f);
-		if (file.isFile()){
-			file.delete();
-		}else{
-			// Delete recursively
-			String[] children = file.list();
-			for (int i = 0; i < children.length; i++){
-				delete(file.getAbsolutePath() + File.separator + children[i]);
+	/**
+	 * Copies a file (essential: take last modification date from source!) or links it to an earlier copy of the same file.
+	 */
+	private static CopyEngine.Result copyFile(String source, String dest, FileSnapshot snapshot, long resumeOffset, CopyEngine.ProgressListener listener, Map<Object, File> links) throws IOException{
+		CopyEngine engine = CopyEngine.getDefault();
+		Object key = snapshot.getFileKey();
+		boolean linkable = links != null && key != null && !snapshot.isSymbolicLink();
+		if (linkable){
+			File target = links.get(key);
+			CopyEngine.Result linked = target != null && !target.equals(new File(dest)) ? engine.linkFile(target, new File(dest), snapshot) : null;
+			if (linked != null) return linked;
+		}
+		CopyEngine.Result result = engine.copyFile(new File(source), new File(dest), snapshot, resumeOffset, listener);
+		if (linkable) links.put(key, new File(dest));
+		return result;
+	}
+
+	/**
+	 * Copies a directory recursively; entries which cannot be copied are added to failures ("path: reason").
+	 */
+	private static void copyDirectory(String source, String dest, Map<Object, File> links, List<String> failures){
+		// Make sure that the destination exists
+		createDirectory(dest);
+		if (!new File(dest).isDirectory()){
+			failures.add(dest + ": cannot create directory");
+			return;
+		}
+		String[] children = (new File(source)).list();
+		if (children == null){
+			failures.add(source + ": cannot list directory");
+			return;
+		}
+		for (int i = 0; i < children.length; i++){
+			String childSource = source + File.separator + children[i];
+			String childDest = dest + File.separator + children[i];
+			FileSnapshot snapshot = FileSnapshot.read(new File(childSource).toPath(), true);
+			if (snapshot.isFile()){
+				try{
+					copyFile(childSource, childDest, snapshot, 0, null, links);
+				}catch(IOException e){
+					failures.add(childSource + ": " + e.getMessage());
+				}
+			}else if (snapshot.isDirectory()){
+				copyDirectory(childSource, childDest, links, failures);
+			}else if (snapshot.exists()){
+				failures.add(childSource + ": neither a file nor a directory");
 			}
-			file.delete();
 		}
 	}
+
+	/**
+	 * Formats the entries which could not be copied or deleted for the log.
+	 */
+	private static String formatFailures(String operation, List<String> failures){
+		StringBuilder sb = new StringBuilder("Cannot " + operation + " " + failures.size() + " entries: ");
+		for (int i = 0; i < failures.size() && i < MAX_REPORTED_FAILURES; i++){
+			if (i > 0) sb.append("; ");
+			sb.append(failures.get(i));
+		}
+		if (failures.size() > MAX_REPORTED_FAILURES) sb.append("; ...");
+		return sb.toString();
+	}
+
+	private static void move(String source, String dest){
+		// Renames within the same file system; an existing destination is never replaced
+		Throttle.forPaths(source, dest).acquire(0, 1);
+		try{
+			Files.move(new File(source).toPath(), new File(dest).toPath());
+		}catch(IOException e){
+			throw new UncheckedIOException("Cannot move \"" + source + "\" to \"" + dest + "\": " + e, e);
+		}
+	}
+
+	/**
+	 * Deletes a file or directory (recursively, see DeleteEngine); symbolic links are deleted, not followed.
+	 * Entries modified after keepModifiedAfter are kept.
+	 * @throws IllegalStateException If entries could not be deleted or were kept (the message lists them)
+	 */
+	private void delete(String f){
+		DeleteEngine.Result result;
+		try{
+			result = DeleteEngine.getDefault().delete(new File(f), keepModifiedAfter);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while deleting \"" + f + "\"");
+		}
+		if (!result.failures.isEmpty()) throw new IllegalStateException(formatFailures("delete", result.failures));
+	}
 }
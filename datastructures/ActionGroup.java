@@ -14,6 +14,9 @@ public class ActionGroup implements Iterable<Action>{
 	private List<Character> actionChars = new ArrayList<Character>();
 	private List<Action> actions = new ArrayList<Action>();
 	private int selectedAction = -1;
+	// Plan which stores this group (changes of the selection and description are written to it), see Plan
+	private Plan store = null;
+	private int storeIndex = -1;
 	
 	/**
 	 * Initialize an empty list
@@ -126,14 +129,35 @@ public class ActionGroup implements Iterable<Action>{
 	 */
 	public void setDescription(String description){
 		this.description = description;
+		if (store != null) store.setDescription(storeIndex, description);
+	}
+
+	/**
+	 * Returns the description of this action group.
+	 * @return String
+	 */
+	public String getDescription(){
+		return description;
+	}
+
+	/**
+	 * Connects this group to the plan which stores it.
+	 * @param store
+	 * @param index Index of the group in the plan
+	 */
+	void attach(Plan store, int index){
+		this.store = store;
+		this.storeIndex = index;
 	}
 	
 	/**
 	 * Adds an additional action
 	 * @param c
 	 * @param a
+	 * @throws UnsupportedOperationException If the group is stored by a plan
 	 */
 	public void addAction(char c, Action a){
+		if (store != null) throw new UnsupportedOperationException("Actions cannot be added to a group of a plan");
 		actionChars.add(c);
 		actions.add(a);
 	}
@@ -154,6 +178,24 @@ public class ActionGroup implements Iterable<Action>{
 		return selectedAction == -1 ? null : actionChars.get(selectedAction);
 	}
 
+	/**
+	 * Returns the index of the currently selected action.
+	 * @return int The 0-based index of the selected action or -1, if there is no action selected
+	 */
+	public int getSelectedIndex(){
+		return selectedAction;
+	}
+
+	/**
+	 * Returns the action character of an action.
+	 * @param index
+	 * @return char
+	 */
+	public char getActionChar(int index){
+		if (index < 0 || index >= actionChars.size()) throw new IndexOutOfBoundsException();
+		return actionChars.get(index);
+	}
+
 	/**
 	 * Selects a certain action given by it's index.
 	 * @param index: The 0-based index of the selected action
@@ -162,6 +204,7 @@ public class ActionGroup implements Iterable<Action>{
 	public void selectAction(int index) throws IndexOutOfBoundsException{
 		if (index < 0 || index >= actions.size()) throw new IndexOutOfBoundsException();
 		selectedAction = index;
+		if (store != null) store.select(storeIndex, index);
 	}
 	
 	/**
@@ -169,6 +212,7 @@ public class ActionGroup implements Iterable<Action>{
 	 */
 	public void unselectAction(){
 		selectedAction = -1;
+		if (store != null) store.select(storeIndex, -1);
 	}
 
 	/**
@@ -193,7 +237,7 @@ public class ActionGroup implements Iterable<Action>{
 		if (index == -1){
 			throw new IllegalArgumentException("Action character '" + c + "' is invalid for this action");
 		}else{
-			selectedAction = index;
+			selectAction(index);
 		}
 	}
 	
@@ -288,6 +332,8 @@ public class ActionGroup implements Iterable<Action>{
 	 * @return List<Action>
 	 */
 	public static List<Action> getSelectedActions(List<ActionGroup> list){
+		// A plan creates the selected actions without creating the groups
+		if (list instanceof Plan) return ((Plan)list).getSelectedActions();
 		List<Action> resultList = new ArrayList<Action>();
 		Iterator<ActionGroup> it = list.iterator();
 		while (it.hasNext()){
@@ -0,0 +1,749 @@
+package datastructures;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies files without intermediate byte arrays.
+ * Files are copied to a staging file first, which replaces the destination when it is complete; an interrupted copy can be resumed.
+ * Files are transferred between the channels by the operating system (FileChannel.transferTo, which avoids copies into the Java heap).
+ * Files up to 64 KiB are read at once into a direct buffer of the copying thread and written with a single call; other small files are copied
+ * through a pooled direct buffer. If the file system
+ * does not support transfers (no progress), large files are copied through memory mappings of the source and the others
+ * through pooled direct buffers; transfers are then not tried again.
+ * Copies are throttled by the limits of the source and destination locations (see Throttle).
+ * If verification is enabled, the source is hashed while it is copied and the copy is read back and compared before it replaces the destination.
+ * Hard links of a file which was already copied are recreated as links to that copy instead of copying the file again (see linkFile).
+ * Large files which replace an existing file are updated in place (delta mode): both files are compared block by block and only the
+ * blocks which differ are written, then the file is truncated to the new size. Blocks found at other positions are not reused,
+ * as they would have to be written anyway (and might already be overwritten). Files with several hard links are copied to a staging
+ * file instead, as the other links would change as well. While a file is updated in place, its modification date is the earliest
+ * possible date, such that a partially updated file is never taken for the newer one by the next synchronization.
+ * Copied bytes and time are recorded per method, such that the methods can be compared on the actual hardware.
+ * @author Christoph Redl
+ */
+public class CopyEngine {
+
+	/**
+	 * Method used to copy a file.
+	 */
+	public enum Method{
+		Transfer,
+		Mapped,
+		Buffered,
+		Delta,
+		Small,
+		Link
+	}
+
+	// Files up to this size are copied through a direct buffer
+	private static final int BUFFER_SIZE = 1 << 18;
+	// Files of at least this size are memory-mapped if transfers are not supported
+	private static final long MAP_THRESHOLD = 1 << 20;
+	// Size of the mapped windows (larger files are mapped in several parts)
+	private static final long MAP_WINDOW = 64L << 20;
+	// Maximum number of idle buffers kept in the pool
+	private static final int MAX_POOLED_BUFFERS = 16;
+	// Granularity of the comparison in delta mode (a page of typical file systems and disk images)
+	private static final int DELTA_BLOCK = 1 << 12;
+	private static final long DEFAULT_DELTA_THRESHOLD = 64L << 20;
+	// Modification date of files while they are updated in place
+	private static final FileTime UPDATING_DATE = FileTime.fromMillis(0);
+	// Buffer size of the small-file path (files up to this size are read with a single call)
+	private static final int SMALL_FILE_BUFFER = 1 << 16;
+	// Interval of progress notifications
+	private static final long PROGRESS_INTERVAL = 64L << 20;
+
+	/**
+	 * Suffix of the staging files of incomplete copies.
+	 */
+	public static final String STAGING_SUFFIX = ".dsync-part";
+
+	/**
+	 * Algorithm of the hashes of verified copies.
+	 */
+	public static final String HASH_ALGORITHM = "SHA-256";
+
+	private static final CopyEngine defaultEngine = new CopyEngine();
+
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	// Pairs of source and destination file stores which do not support transfers (see getStores)
+	private final Set<String> transferUnsupported = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private volatile long deltaThreshold = DEFAULT_DELTA_THRESHOLD;
+	private volatile int smallFileLimit = SMALL_FILE_BUFFER;
+	private volatile boolean verify = false;
+	private volatile VerifyListener verifyListener = null;
+	// One buffer per copying thread for small files (never shared, hence no pool synchronization)
+	private final ThreadLocal<ByteBuffer> smallFileBuffers = new ThreadLocal<ByteBuffer>(){
+		protected ByteBuffer initialValue(){
+			// One byte more than the largest small file, such that a file which grew since its snapshot is detected
+			return ByteBuffer.allocateDirect(SMALL_FILE_BUFFER + 1);
+		}
+	};
+	private final AtomicLong[] files = new AtomicLong[Method.values().length];
+	private final AtomicLong[] bytes = new AtomicLong[Method.values().length];
+	private final AtomicLong[] nanos = new AtomicLong[Method.values().length];
+	private final AtomicLong deltaWritten = new AtomicLong();
+	private final AtomicLong verifiedFiles = new AtomicLong();
+	private final AtomicLong verifyFailures = new AtomicLong();
+
+	/**
+	 * Receives the progress of copies, e.g. to resume them after an interruption.
+	 */
+	public interface ProgressListener{
+		/**
+		 * Called when a part of a file was copied and written to disk.
+		 * @param source Attributes of the source file
+		 * @param copied Number of bytes at the start of the staging file which are complete
+		 */
+		void progress(FileSnapshot source, long copied);
+	}
+
+	/**
+	 * Receives the hashes of verified copies, e.g. to store them in a hash cache.
+	 */
+	public interface VerifyListener{
+		/**
+		 * Called when a copy was verified (before it replaces the destination, unless it was updated in place).
+		 * @param source
+		 * @param sourceSnapshot Attributes of the source
+		 * @param dest
+		 * @param destSnapshot Attributes of the copy
+		 * @param hash Hash of the contents (HASH_ALGORITHM)
+		 */
+		void verified(File source, FileSnapshot sourceSnapshot, File dest, FileSnapshot destSnapshot, byte[] hash);
+	}
+
+	/**
+	 * Result of copying a file.
+	 */
+	public static class Result{
+		public final Method method;
+		public final long bytes;
+		public final long nanos;
+		// Bytes written to the destination (less than bytes in delta mode or if an interrupted copy was resumed)
+		public final long written;
+		// Hash of the source, which the copy was verified against (null if copies are not verified)
+		public final byte[] hash;
+		// The update in place failed the verification, the destination was replaced by a full copy
+		public final boolean rewritten;
+
+		Result(Method method, long bytes, long nanos, long written, byte[] hash){
+			this(method, bytes, nanos, written, hash, false);
+		}
+
+		Result(Method method, long bytes, long nanos, long written, byte[] hash, boolean rewritten){
+			this.method = method;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.written = written;
+			this.hash = hash;
+			this.rewritten = rewritten;
+		}
+
+		/**
+		 * Size, throughput and method, e.g. "12.5 MiB at 230.1 MiB/s, transfer" or "1.0 GiB at 410.2 MiB/s, delta: 2.0 MiB written, 1022.0 MiB saved".
+		 */
+		public String toString(){
+			if (method == Method.Link) return "hard link, " + formatSize(bytes) + " not copied";
+			String result = formatSize(bytes) + " at " + formatThroughput(bytes, nanos) + ", " + method.toString().toLowerCase();
+			if (method == Method.Delta || written != bytes) result += ": " + formatSize(written) + " written, " + formatSize(bytes - written) + " saved";
+			if (hash != null) result += ", verified";
+			if (rewritten) result += " (the update in place failed the verification and was replaced by this copy)";
+			return result;
+		}
+	}
+
+	public CopyEngine(){
+		for (int i = 0; i < files.length; i++){
+			files[i] = new AtomicLong();
+			bytes[i] = new AtomicLong();
+			nanos[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Returns the engine used by actions.
+	 * @return CopyEngine
+	 */
+	public static CopyEngine getDefault(){
+		return defaultEngine;
+	}
+
+	/**
+	 * Sets the minimum size of files which are updated in place if they replace an existing file of at least this size (0 disables delta mode).
+	 * @param deltaThreshold Number of bytes
+	 */
+	public void setDeltaThreshold(long deltaThreshold){
+		this.deltaThreshold = deltaThreshold;
+	}
+
+	/**
+	 * Sets the maximum size of files which are copied by the small-file path (0 disables it, at most 64 KiB).
+	 * @param smallFileLimit Number of bytes
+	 */
+	public void setSmallFileLimit(int smallFileLimit){
+		this.smallFileLimit = Math.min(smallFileLimit, SMALL_FILE_BUFFER);
+	}
+
+	/**
+	 * Enables the verification of copies: the source is hashed while it is copied, and the copy is read back and hashed
+	 * before it replaces the destination. As the data passes through the Java process, transfers by the operating system are not used then.
+	 * @param verify
+	 * @param listener Receives the hashes of verified copies (may be null)
+	 */
+	public void setVerify(boolean verify, VerifyListener listener){
+		this.verify = verify;
+		this.verifyListener = listener;
+	}
+
+	/**
+	 * Copies a file and sets the modification date of the copy to the date of the source.
+	 * The file is copied to a staging file next to the destination (see getStagingFile), which replaces the destination
+	 * atomically when it is complete; files updated in delta mode are modified in place (their modification date is reset
+	 * before the first write and set when the update is complete).
+	 * @param source
+	 * @param dest Created or replaced
+	 * @param snapshot Attributes of the source
+	 * @param resumeOffset Number of bytes at the start of the staging file which were completed by an interrupted copy
+	 *                     (the offset is ignored if the staging file is shorter)
+	 * @param listener Notified whenever a part of the file was written to disk (may be null)
+	 * @return Result
+	 * @throws IOException If the file cannot be copied or the copy differs from the source (the destination is unchanged then,
+	 *                     unless it was updated in place; an update in place which differs is replaced by a full copy)
+	 */
+	public Result copyFile(File source, File dest, FileSnapshot snapshot, long resumeOffset, ProgressListener listener) throws IOException{
+		Throttle throttle = Throttle.forPaths(source.getPath(), dest.getPath());
+		if (snapshot.length() <= smallFileLimit){
+			Result result = copySmallFile(source, dest, snapshot, throttle);
+			if (result != null) return result;
+		}
+		long start = System.nanoTime();
+		throttle.acquire(0, 1);
+		Method method = null;
+		long size;
+		long written = 0;
+		byte[] hash = null;
+		boolean rewritten = false;
+		MessageDigest digest = verify ? newDigest() : null;
+		FileInputStream in = new FileInputStream(source);
+		try{
+			FileChannel inChannel = in.getChannel();
+			size = inChannel.size();
+			if (deltaThreshold > 0 && size >= deltaThreshold && dest.isFile() && dest.length() >= deltaThreshold && !isLinked(dest) && markUpdating(dest)){
+				method = Method.Delta;
+				RandomAccessFile out = new RandomAccessFile(dest, "rw");
+				try{
+					written = copyDelta(inChannel, out.getChannel(), size, throttle, digest);
+				}finally{
+					out.close();
+				}
+				deltaWritten.addAndGet(written);
+				if (digest != null){
+					hash = digest.digest();
+					if (!MessageDigest.isEqual(hash, hashFile(dest))){
+						// The destination is damaged: it is replaced by a full (verified) copy below
+						verifyFailures.incrementAndGet();
+						rewritten = true;
+						hash = null;
+						digest = newDigest();
+						resumeOffset = 0;
+					}else{
+						verifiedFiles.incrementAndGet();
+					}
+				}
+				if (!rewritten){
+					setLastModified(dest, snapshot);
+					if (hash != null) notifyVerified(source, snapshot, dest, dest, hash);
+				}
+			}
+			if (method != Method.Delta || rewritten){
+				File staged = getStagingFile(dest);
+				if (resumeOffset <= 0 || resumeOffset > size || staged.length() < resumeOffset) resumeOffset = 0;
+				RandomAccessFile out = new RandomAccessFile(staged, "rw");
+				try{
+					// Drop everything after the completed part (and old contents if not resuming)
+					out.setLength(resumeOffset);
+					// The completed part is hashed from the source, as the hash covers the whole file
+					if (digest != null) hashRange(inChannel, 0, resumeOffset, digest);
+					method = copyFull(source, staged, inChannel, out.getChannel(), resumeOffset, size, snapshot, listener, throttle, digest);
+				}finally{
+					out.close();
+				}
+				written = size - resumeOffset;
+				if (digest != null) hash = verify(source, staged, digest.digest());
+				setLastModified(staged, snapshot);
+				if (hash != null) notifyVerified(source, snapshot, dest, staged, hash);
+				replace(staged, dest);
+			}
+		}finally{
+			in.close();
+		}
+
+		long duration = System.nanoTime() - start;
+		files[method.ordinal()].incrementAndGet();
+		bytes[method.ordinal()].addAndGet(size);
+		nanos[method.ordinal()].addAndGet(duration);
+		return new Result(method, size, duration, written, hash, rewritten);
+	}
+
+	/**
+	 * Copies a file and sets the modification date of the copy to the date of the source (see above).
+	 * @param source
+	 * @param dest
+	 * @param snapshot Attributes of the source
+	 * @return Result
+	 * @throws IOException
+	 */
+	public Result copyFile(File source, File dest, FileSnapshot snapshot) throws IOException{
+		return copyFile(source, dest, snapshot, 0, null);
+	}
+
+	/**
+	 * Copies a small file: it is read with a single call into the buffer of the current thread (the size is taken from the snapshot)
+	 * and written to a staging file which is created or truncated when it is opened.
+	 * @return Result or null, if the size of the source differs from the snapshot (the file has to be copied by the general path then)
+	 */
+	private Result copySmallFile(File source, File dest, FileSnapshot snapshot, Throttle throttle) throws IOException{
+		throttle.acquire(snapshot.length(), 1);
+		long start = System.nanoTime();
+		ByteBuffer buffer = smallFileBuffers.get();
+		buffer.clear();
+		// One byte more is read to detect a source which grew (a source which shrank ends before the limit)
+		buffer.limit((int)snapshot.length() + 1);
+		FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+		try{
+			while (buffer.hasRemaining() && in.read(buffer) >= 0);
+		}finally{
+			in.close();
+		}
+		if (buffer.position() != snapshot.length()) return null;
+		buffer.flip();
+		byte[] hash = null;
+		MessageDigest digest = verify ? newDigest() : null;
+		if (digest != null) digest.update(buffer.duplicate());
+
+		File staged = getStagingFile(dest);
+		FileChannel out = FileChannel.open(staged.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try{
+			while (buffer.hasRemaining()) out.write(buffer);
+		}finally{
+			out.close();
+		}
+		if (digest != null) hash = verify(source, staged, digest.digest());
+		setLastModified(staged, snapshot);
+		if (hash != null) notifyVerified(source, snapshot, dest, staged, hash);
+		replace(staged, dest);
+
+		long size = buffer.limit();
+		long duration = System.nanoTime() - start;
+		files[Method.Small.ordinal()].incrementAndGet();
+		bytes[Method.Small.ordinal()].addAndGet(size);
+		nanos[Method.Small.ordinal()].addAndGet(duration);
+		return new Result(Method.Small, size, duration, size, hash);
+	}
+
+	/**
+	 * Recreates a hard link: the destination becomes a link to the copy of the same source file made before
+	 * (an existing destination is replaced atomically, as by a copy).
+	 * @param target Earlier copy of the source
+	 * @param dest Created or replaced
+	 * @param snapshot Attributes of the source
+	 * @return Result or null, if the target does not match the source anymore or the file system does not support the link
+	 *         (the file has to be copied then)
+	 */
+	public Result linkFile(File target, File dest, FileSnapshot snapshot){
+		long start = System.nanoTime();
+		FileSnapshot copy = FileSnapshot.read(target.toPath(), false);
+		if (!copy.isFile() || copy.length() != snapshot.length() || copy.lastModified() != snapshot.lastModified()) return null;
+		if (copy.getFileKey() == null || !copy.getFileKey().equals(FileSnapshot.read(dest.toPath(), false).getFileKey())){
+			Throttle.forPath(dest.getPath()).acquire(0, 1);
+			File staged = getStagingFile(dest);
+			try{
+				Files.deleteIfExists(staged.toPath());
+				Files.createLink(staged.toPath(), target.toPath());
+				replace(staged, dest);
+			}catch(IOException | UnsupportedOperationException e){
+				// E.g. target and destination on different file systems
+				staged.delete();
+				return null;
+			}
+		}
+
+		long duration = System.nanoTime() - start;
+		files[Method.Link.ordinal()].incrementAndGet();
+		bytes[Method.Link.ordinal()].addAndGet(snapshot.length());
+		nanos[Method.Link.ordinal()].addAndGet(duration);
+		return new Result(Method.Link, snapshot.length(), duration, 0, null);
+	}
+
+	/**
+	 * Checks if a file has several hard links (false if the number of links is not available).
+	 */
+	private static boolean isLinked(File file){
+		try{
+			Object links = Files.getAttribute(file.toPath(), "unix:nlink");
+			return links instanceof Number && ((Number)links).intValue() > 1;
+		}catch(UnsupportedOperationException | IllegalArgumentException e){
+			// No unix attributes
+			return false;
+		}catch(IOException e){
+			// The file is copied to a staging file, which reports the error if there is one
+			return true;
+		}
+	}
+
+	/**
+	 * Resets the modification date of a file before it is updated in place (see UPDATING_DATE).
+	 * @return boolean False if the date cannot be set (the file is copied to a staging file then)
+	 */
+	private static boolean markUpdating(File file){
+		try{
+			Files.setLastModifiedTime(file.toPath(), UPDATING_DATE);
+			return Files.getLastModifiedTime(file.toPath()).equals(UPDATING_DATE);
+		}catch(IOException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a staged copy back and compares its hash to the hash of the source, which was computed while copying.
+	 * @return byte[] The hash
+	 * @throws IOException If the copy differs (it is deleted then) or cannot be read
+	 */
+	private byte[] verify(File source, File staged, byte[] hash) throws IOException{
+		if (!MessageDigest.isEqual(hash, hashFile(staged))){
+			verifyFailures.incrementAndGet();
+			staged.delete();
+			throw new IOException("Verification failed: the copy of \"" + source.getAbsolutePath() + "\" differs from the source");
+		}
+		verifiedFiles.incrementAndGet();
+		return hash;
+	}
+
+	/**
+	 * Hashes a file as it is read back from the disk.
+	 */
+	private byte[] hashFile(File file) throws IOException{
+		MessageDigest digest = newDigest();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try{
+			hashRange(channel, 0, Long.MAX_VALUE, digest);
+		}finally{
+			channel.close();
+		}
+		return digest.digest();
+	}
+
+	private void notifyVerified(File source, FileSnapshot snapshot, File dest, File copy, byte[] hash){
+		VerifyListener l = verifyListener;
+		// The copy keeps its attributes when it is renamed to the destination
+		if (l != null) l.verified(source, snapshot, dest, FileSnapshot.read(copy.toPath(), false), hash);
+	}
+
+	/**
+	 * Adds a range of a file to a digest (reading through a pooled buffer).
+	 */
+	private void hashRange(FileChannel channel, long from, long to, MessageDigest digest) throws IOException{
+		ByteBuffer buffer = takeBuffer();
+		try{
+			long position = from;
+			while (position < to){
+				buffer.limit((int)Math.min(buffer.capacity(), to - position));
+				int n = channel.read(buffer, position);
+				if (n < 0) break;
+				position += n;
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}finally{
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Creates a digest of HASH_ALGORITHM.
+	 * @return MessageDigest
+	 */
+	public static MessageDigest newDigest(){
+		try{
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		}catch(NoSuchAlgorithmException e){
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Replaces the destination by a complete staging file (atomically, if supported by the file system).
+	 */
+	private static void replace(File staged, File dest) throws IOException{
+		try{
+			Files.move(staged.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}catch(AtomicMoveNotSupportedException e){
+			Files.move(staged.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Returns the file where a copy to dest is staged (hidden, in the same directory, such that it can be renamed atomically).
+	 * @param dest
+	 * @return File
+	 */
+	public static File getStagingFile(File dest){
+		return new File(dest.getAbsoluteFile().getParentFile(), "." + dest.getName() + STAGING_SUFFIX);
+	}
+
+	private static void setLastModified(File file, FileSnapshot snapshot) throws IOException{
+		if (!file.setLastModified(snapshot.lastModified())) throw new IOException("Could not modify date of \"" + file.getAbsolutePath() + "\"");
+	}
+
+	/**
+	 * Copies the remainder of a file (from position on) to the staging file.
+	 * @return Method The method used
+	 */
+	private Method copyFull(File source, File staged, FileChannel inChannel, FileChannel outChannel, long position, long size, FileSnapshot snapshot, ProgressListener listener, Throttle throttle, MessageDigest digest) throws IOException{
+		Method method;
+		if (size <= BUFFER_SIZE){
+			method = Method.Buffered;
+		}else if (digest == null && (transferUnsupported.isEmpty() || !transferUnsupported.contains(getStores(source, staged)))){
+			method = Method.Transfer;
+			long transferred = transfer(inChannel, outChannel, position, size, snapshot, listener, throttle);
+			if (transferred == position && position < size){
+				// No progress: these file systems do not support transfers (other pairs of file systems still try them)
+				transferUnsupported.add(getStores(source, staged));
+			}
+			position = transferred;
+			if (position < size) method = size >= MAP_THRESHOLD ? Method.Mapped : Method.Buffered;
+		}else{
+			method = size >= MAP_THRESHOLD ? Method.Mapped : Method.Buffered;
+		}
+		if (method == Method.Mapped){
+			copyMapped(inChannel, outChannel, position, size, snapshot, listener, throttle, digest);
+		}else if (method == Method.Buffered){
+			copyBuffered(inChannel, outChannel, position, snapshot, listener, throttle, digest);
+		}
+		return method;
+	}
+
+	/**
+	 * Returns the file stores of a source and a destination as key of transferUnsupported
+	 * (the parent directories, if the file stores cannot be determined).
+	 */
+	private static String getStores(File source, File dest){
+		try{
+			return Files.getFileStore(source.toPath()) + " -> " + Files.getFileStore(dest.toPath());
+		}catch(IOException e){
+			return source.getAbsoluteFile().getParent() + " -> " + dest.getAbsoluteFile().getParent();
+		}
+	}
+
+	/**
+	 * Forces the written part of a file to disk and reports it.
+	 */
+	private static void reportProgress(FileChannel out, long position, FileSnapshot snapshot, ProgressListener listener) throws IOException{
+		if (listener == null) return;
+		out.force(false);
+		listener.progress(snapshot, position);
+	}
+
+	/**
+	 * Updates an existing file in place: only blocks which differ from the source are written.
+	 * @return long Number of bytes written
+	 */
+	private long copyDelta(FileChannel in, FileChannel out, long size, Throttle throttle, MessageDigest digest) throws IOException{
+		long written = 0;
+		ByteBuffer sourceBuffer = takeBuffer();
+		ByteBuffer destBuffer = takeBuffer();
+		try{
+			for (long position = 0; position < size; position += BUFFER_SIZE){
+				// Both files are read (the writes are at most as large)
+				throttle.acquire(2L * Math.min(BUFFER_SIZE, size - position), 0);
+				int length = readFully(in, sourceBuffer, position);
+				int destLength = readFully(out, destBuffer, position);
+				if (length == 0) break;
+				if (digest != null){
+					ByteBuffer read = sourceBuffer.duplicate();
+					read.flip();
+					digest.update(read);
+				}
+
+				// Write runs of differing blocks with one positional write each
+				int runStart = -1;
+				for (int block = 0; ; block += DELTA_BLOCK){
+					int blockStart = Math.min(block, length);
+					int blockEnd = Math.min(block + DELTA_BLOCK, length);
+					boolean differs = blockStart < length && (blockEnd > destLength || !equalRange(sourceBuffer, destBuffer, blockStart, blockEnd));
+					if (differs && runStart < 0){
+						runStart = blockStart;
+					}else if (!differs && runStart >= 0){
+						ByteBuffer run = sourceBuffer.duplicate();
+						run.limit(blockStart);
+						run.position(runStart);
+						while (run.hasRemaining()) out.write(run, position + run.position());
+						written += blockStart - runStart;
+						runStart = -1;
+					}
+					if (blockStart == length) break;
+				}
+			}
+			if (out.size() > size) out.truncate(size);
+		}finally{
+			releaseBuffer(sourceBuffer);
+			releaseBuffer(destBuffer);
+		}
+		return written;
+	}
+
+	/**
+	 * Reads a buffer at a position until it is full or the end of the file is reached.
+	 * @return int Number of bytes read (the buffer is not flipped)
+	 */
+	private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException{
+		buffer.clear();
+		while (buffer.hasRemaining()){
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0) break;
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * Compares the same range of two buffers (independent of their positions).
+	 */
+	private static boolean equalRange(ByteBuffer a, ByteBuffer b, int from, int to){
+		int i = from;
+		for (; i + 8 <= to; i += 8){
+			if (a.getLong(i) != b.getLong(i)) return false;
+		}
+		for (; i < to; i++){
+			if (a.get(i) != b.get(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Transfers a file by the operating system.
+	 * @return long Position up to which the file was transferred (smaller than size if the transfer made no progress)
+	 */
+	private static long transfer(FileChannel in, FileChannel out, long position, long size, FileSnapshot snapshot, ProgressListener listener, Throttle throttle) throws IOException{
+		out.position(position);
+		long chunk = throttle.chunk(PROGRESS_INTERVAL);
+		long reported = position;
+		while (position < size){
+			long length = Math.min(size - position, chunk);
+			throttle.acquire(length, 0);
+			long n = in.transferTo(position, length, out);
+			if (n <= 0) break;
+			position += n;
+			if (position < size && position - reported >= PROGRESS_INTERVAL){
+				reportProgress(out, position, snapshot, listener);
+				reported = position;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Copies a file from a memory mapping of the source.
+	 */
+	private static void copyMapped(FileChannel in, FileChannel out, long position, long size, FileSnapshot snapshot, ProgressListener listener, Throttle throttle, MessageDigest digest) throws IOException{
+		int chunk = (int)throttle.chunk(MAP_WINDOW);
+		while (position < size){
+			MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+			int end = window.limit();
+			while (window.position() < end){
+				window.limit(Math.min(end, window.position() + chunk));
+				throttle.acquire(window.remaining(), 0);
+				if (digest != null) digest.update(window.duplicate());
+				while (window.hasRemaining()) out.write(window, position + window.position());
+			}
+			position += window.limit();
+			if (position < size) reportProgress(out, position, snapshot, listener);
+		}
+	}
+
+	/**
+	 * Copies a file through a pooled direct buffer.
+	 */
+	private void copyBuffered(FileChannel in, FileChannel out, long position, FileSnapshot snapshot, ProgressListener listener, Throttle throttle, MessageDigest digest) throws IOException{
+		ByteBuffer buffer = takeBuffer();
+		try{
+			long reported = position;
+			buffer.limit((int)throttle.chunk(BUFFER_SIZE));
+			while (in.read(buffer, position) != -1){
+				buffer.flip();
+				throttle.acquire(buffer.remaining(), 0);
+				if (digest != null) digest.update(buffer.duplicate());
+				while (buffer.hasRemaining()) position += out.write(buffer, position);
+				buffer.clear();
+				buffer.limit((int)throttle.chunk(BUFFER_SIZE));
+				if (position - reported >= PROGRESS_INTERVAL){
+					reportProgress(out, position, snapshot, listener);
+					reported = position;
+				}
+			}
+		}finally{
+			releaseBuffer(buffer);
+		}
+	}
+
+	private ByteBuffer takeBuffer(){
+		ByteBuffer buffer = buffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	private void releaseBuffer(ByteBuffer buffer){
+		buffer.clear();
+		if (buffers.size() < MAX_POOLED_BUFFERS) buffers.offer(buffer);
+	}
+
+	/**
+	 * Returns the number of files, bytes and the throughput per copy method.
+	 * @return String Statistics or an empty string, if nothing was copied
+	 */
+	public String getStatistics(){
+		StringBuilder sb = new StringBuilder();
+		for (Method method : Method.values()){
+			int i = method.ordinal();
+			if (files[i].get() == 0) continue;
+			if (sb.length() > 0) sb.append(", ");
+			if (method == Method.Link){
+				sb.append("hard links: " + files[i].get() + " files, " + formatSize(bytes[i].get()) + " not copied");
+				continue;
+			}
+			sb.append(method.toString().toLowerCase() + ": " + files[i].get() + " files, " + formatSize(bytes[i].get()) + " at " + formatThroughput(bytes[i].get(), nanos[i].get()));
+			if (method == Method.Delta) sb.append(" (" + formatSize(deltaWritten.get()) + " written)");
+		}
+		if (verifiedFiles.get() > 0 || verifyFailures.get() > 0) sb.append(", verified: " + verifiedFiles.get() + " files, " + verifyFailures.get() + " failed");
+		return sb.toString();
+	}
+
+	private static String formatSize(long size){
+		if (size >= 1L << 30) return String.format("%.1f GiB", size / (double)(1L << 30));
+		if (size >= 1L << 20) return String.format("%.1f MiB", size / (double)(1L << 20));
+		if (size >= 1L << 10) return String.format("%.1f KiB", size / (double)(1L << 10));
+		return size + " B";
+	}
+
+	private static String formatThroughput(long size, long nanos){
+		return String.format("%.1f MiB/s", nanos == 0 ? 0.0 : size / (double)(1L << 20) / (nanos / 1e9));
+	}
+}
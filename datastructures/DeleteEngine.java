@@ -0,0 +1,298 @@
+package datastructures;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes files and directory trees.
+ * A tree is walked once (symbolic links are deleted, never followed); its files are deleted on a bounded pool of threads
+ * while the walk continues, and each directory is deleted as soon as the walk has left it and all its entries are deleted
+ * (bottom-up, by the thread which deleted the last entry). Hence many deletions are pending at the same time,
+ * which hides the latency of network file systems.
+ * Entries which cannot be read or deleted do not stop the deletion of the others; they are reported in the result.
+ * Entries which were modified after a given date (e.g. after the actions of a saved plan were determined) can be kept:
+ * they are reported as well, and the directories which contain them are not deleted.
+ * @author Christoph Redl
+ */
+public class DeleteEngine {
+
+	private static final int DEFAULT_THREADS = 8;
+	// Files queued per thread before the walk deletes files itself (keeps the memory bounded)
+	private static final int QUEUE_PER_THREAD = 256;
+
+	private static final DeleteEngine defaultEngine = new DeleteEngine();
+
+	private ThreadPoolExecutor pool = null;
+	private int threads = DEFAULT_THREADS;
+	private final AtomicLong deletedFiles = new AtomicLong();
+	private final AtomicLong deletedDirectories = new AtomicLong();
+	private final AtomicLong failedEntries = new AtomicLong();
+	private final AtomicLong nanos = new AtomicLong();
+
+	/**
+	 * Result of deleting a tree.
+	 */
+	public static class Result{
+		public final long files;
+		public final long directories;
+		// Entries which could not be read or deleted ("path: reason")
+		public final List<String> failures;
+
+		Result(long files, long directories, List<String> failures){
+			this.files = files;
+			this.directories = directories;
+			this.failures = failures;
+		}
+	}
+
+	/**
+	 * A directory of the tree: it is deleted when the walk has left it and all its entries are deleted.
+	 */
+	private class Directory{
+		final Path path;
+		final Directory parent;
+		final Deletion deletion;
+		// Pending entries, plus one while the walk is inside the directory
+		final AtomicInteger pending = new AtomicInteger(1);
+		// Set if the directory contains kept entries
+		volatile boolean keep = false;
+
+		Directory(Path path, Directory parent, Deletion deletion){
+			this.path = path;
+			this.parent = parent;
+			this.deletion = deletion;
+			if (parent != null) parent.pending.incrementAndGet();
+		}
+
+		/**
+		 * Called when an entry was deleted (or failed) and when the walk left the directory.
+		 */
+		void release(){
+			if (pending.decrementAndGet() > 0) return;
+			if (!keep) deletion.delete(path, true);
+			if (parent != null){
+				parent.release();
+			}else{
+				deletion.done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * State of the deletion of one tree.
+	 */
+	private class Deletion{
+		final Throttle throttle;
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicLong files = new AtomicLong();
+		final AtomicLong directories = new AtomicLong();
+		final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+
+		Deletion(Throttle throttle){
+			this.throttle = throttle;
+		}
+
+		void delete(Path path, boolean directory){
+			throttle.acquire(0, 1);
+			try{
+				Files.delete(path);
+				(directory ? directories : files).incrementAndGet();
+			}catch(NoSuchFileException e){
+				// Already deleted
+			}catch(IOException e){
+				fail(path, e);
+			}
+		}
+
+		void fail(Path path, IOException e){
+			failures.add(path + ": " + (e.getMessage() != null && !e.getMessage().equals(path.toString()) ? e.getMessage() : e.getClass().getSimpleName()));
+		}
+
+		/**
+		 * Keeps an entry which was modified after the date of the deletion, together with the directories which contain it.
+		 */
+		void keep(Path path, Directory parent){
+			failures.add(path + ": modified since the actions were determined");
+			for (Directory d = parent; d != null; d = d.parent) d.keep = true;
+		}
+	}
+
+	/**
+	 * Returns the engine used by actions.
+	 * @return DeleteEngine
+	 */
+	public static DeleteEngine getDefault(){
+		return defaultEngine;
+	}
+
+	/**
+	 * Sets the number of threads which delete files (1 deletes on the calling thread only).
+	 * @param threads
+	 * @throws IllegalArgumentException If threads is smaller than 1
+	 */
+	public synchronized void setThreads(int threads) throws IllegalArgumentException{
+		if (threads < 1) throw new IllegalArgumentException("Number of delete threads must be at least 1");
+		if (threads == this.threads) return;
+		this.threads = threads;
+		// Running deletions finish on the old pool, whose threads end when idle
+		pool = null;
+	}
+
+	private synchronized ThreadPoolExecutor getPool(){
+		if (pool == null){
+			// Files are deleted by the walk itself when the queue is full
+			pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "delete");
+					t.setDaemon(true);
+					return t;
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+			pool.allowCoreThreadTimeOut(true);
+		}
+		return pool;
+	}
+
+	/**
+	 * Deletes a file, a symbolic link or a directory with all its entries. Nothing is done if the path does not exist.
+	 * @param root
+	 * @return Result
+	 * @throws InterruptedException
+	 */
+	public Result delete(File root) throws InterruptedException{
+		return delete(root, 0);
+	}
+
+	/**
+	 * Deletes a file, a symbolic link or a directory with all its entries, except for entries below the root which were
+	 * modified after a date: such files are kept, such directories are kept with all their entries (an entry may have been
+	 * moved into them), and the directories which contain kept entries are not deleted. Kept entries are reported as failures.
+	 * @param root
+	 * @param keepModifiedAfter Date in milliseconds (0 deletes all entries)
+	 * @return Result
+	 * @throws InterruptedException
+	 */
+	public Result delete(File root, final long keepModifiedAfter) throws InterruptedException{
+		long start = System.nanoTime();
+		final Deletion deletion = new Deletion(Throttle.forPath(root.getPath()));
+		final Path rootPath = root.toPath();
+		BasicFileAttributes attrs;
+		try{
+			attrs = Files.readAttributes(rootPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		}catch(NoSuchFileException e){
+			return new Result(0, 0, Collections.<String>emptyList());
+		}catch(IOException e){
+			attrs = null;
+		}
+
+		if (attrs != null && !attrs.isDirectory()){
+			deletion.delete(rootPath, false);
+		}else{
+			final ThreadPoolExecutor executor = threads > 1 ? getPool() : null;
+			final Directory[] current = new Directory[1];
+			try{
+				Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>(){
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes a){
+						if (current[0] != null && modifiedAfter(a, keepModifiedAfter)){
+							deletion.keep(dir, current[0]);
+							return FileVisitResult.SKIP_SUBTREE;
+						}
+						current[0] = new Directory(dir, current[0], deletion);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(final Path file, BasicFileAttributes a){
+						final Directory parent = current[0];
+						if (parent == null){
+							// The root was replaced by a file since it was examined
+							deletion.delete(file, false);
+							deletion.done.countDown();
+							return FileVisitResult.CONTINUE;
+						}
+						if (modifiedAfter(a, keepModifiedAfter)){
+							deletion.keep(file, parent);
+							return FileVisitResult.CONTINUE;
+						}
+						parent.pending.incrementAndGet();
+						Runnable task = new Runnable(){
+							public void run(){
+								try{
+									deletion.delete(file, false);
+								}finally{
+									parent.release();
+								}
+							}
+						};
+						if (executor != null){
+							executor.execute(task);
+						}else{
+							task.run();
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e){
+						if (!(e instanceof NoSuchFileException)) deletion.fail(file, e);
+						if (file.equals(rootPath) && current[0] == null) deletion.done.countDown();
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult postVisitDirectory(Path dir, IOException e){
+						// A directory which cannot be listed completely is deleted if it is empty anyway (it fails otherwise)
+						if (e != null) deletion.fail(dir, e);
+						Directory directory = current[0];
+						current[0] = directory.parent;
+						directory.release();
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}catch(IOException e){
+				deletion.fail(rootPath, e);
+				deletion.done.countDown();
+			}
+			deletion.done.await();
+		}
+
+		deletedFiles.addAndGet(deletion.files.get());
+		deletedDirectories.addAndGet(deletion.directories.get());
+		failedEntries.addAndGet(deletion.failures.size());
+		nanos.addAndGet(System.nanoTime() - start);
+		return new Result(deletion.files.get(), deletion.directories.get(), new ArrayList<String>(deletion.failures));
+	}
+
+	private static boolean modifiedAfter(BasicFileAttributes attrs, long date){
+		return date > 0 && attrs.lastModifiedTime().toMillis() > date;
+	}
+
+	/**
+	 * Returns the number of deleted files and directories, the number of failures and the time spent.
+	 * @return String (empty if nothing was deleted)
+	 */
+	public String getStatistics(){
+		if (deletedFiles.get() == 0 && deletedDirectories.get() == 0 && failedEntries.get() == 0) return "";
+		String result = deletedFiles.get() + " files and " + deletedDirectories.get() + " directories in " + String.format("%.1f s", nanos.get() / 1e9);
+		if (failedEntries.get() > 0) result += ", " + failedEntries.get() + " entries failed";
+		return result;
+	}
+}
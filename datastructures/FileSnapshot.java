@@ -0,0 +1,137 @@
+package datastructures;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable snapshot of the attributes of a file system entry, read with a single stat call.
+ * @author Christoph Redl
+ */
+public class FileSnapshot {
+
+	/**
+	 * Snapshot of an entry which does not exist.
+	 */
+	public static final FileSnapshot MISSING = new FileSnapshot(false, false, false, false, 0, 0, null);
+
+	// Number of stat calls issued by read (for all snapshots)
+	private static final AtomicLong statCalls = new AtomicLong();
+
+	private final boolean exists;
+	private final boolean file;
+	private final boolean directory;
+	private final boolean symbolicLink;
+	private final long lastModified;
+	private final long size;
+	private final Object fileKey;
+
+	/**
+	 * Constructor
+	 * @param exists
+	 * @param file
+	 * @param directory
+	 * @param symbolicLink
+	 * @param lastModified
+	 * @param size
+	 * @param fileKey
+	 */
+	public FileSnapshot(boolean exists, boolean file, boolean directory, boolean symbolicLink, long lastModified, long size, Object fileKey){
+		this.exists = exists;
+		this.file = file;
+		this.directory = directory;
+		this.symbolicLink = symbolicLink;
+		this.lastModified = lastModified;
+		this.size = size;
+		this.fileKey = fileKey;
+	}
+
+	/**
+	 * Creates a snapshot from attributes which were already read (e.g. by a directory walk).
+	 * @param attrs
+	 * @param symbolicLink
+	 * @return FileSnapshot
+	 */
+	public static FileSnapshot of(BasicFileAttributes attrs, boolean symbolicLink){
+		return new FileSnapshot(true, attrs.isRegularFile(), attrs.isDirectory(), symbolicLink, attrs.lastModifiedTime().toMillis(), attrs.size(), attrs.fileKey());
+	}
+
+	/**
+	 * Reads the attributes of a path. The link itself is examined first; only if it is a symbolic link and links are followed, a second stat call is issued for the target.
+	 * @param path
+	 * @param followLinks If true, file type, date and size are taken from the target of a symbolic link (isSymbolicLink still reports the link)
+	 * @return FileSnapshot (MISSING if the path does not exist or cannot be accessed)
+	 */
+	public static FileSnapshot read(Path path, boolean followLinks){
+		try{
+			statCalls.incrementAndGet();
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (attrs.isSymbolicLink() && followLinks){
+				statCalls.incrementAndGet();
+				return of(Files.readAttributes(path, BasicFileAttributes.class), true);
+			}
+			return of(attrs, attrs.isSymbolicLink());
+		}catch(IOException e){
+			return MISSING;
+		}
+	}
+
+	/**
+	 * Returns the total number of stat calls issued by read.
+	 * @return long
+	 */
+	public static long getStatCalls(){
+		return statCalls.get();
+	}
+
+	/**
+	 * @return true if the entry exists
+	 */
+	public boolean exists(){
+		return exists;
+	}
+
+	/**
+	 * @return true if the entry is a regular file
+	 */
+	public boolean isFile(){
+		return file;
+	}
+
+	/**
+	 * @return true if the entry is a directory
+	 */
+	public boolean isDirectory(){
+		return directory;
+	}
+
+	/**
+	 * @return true if the entry is a symbolic link
+	 */
+	public boolean isSymbolicLink(){
+		return symbolicLink;
+	}
+
+	/**
+	 * @return the modification date in milliseconds (0 if the entry does not exist)
+	 */
+	public long lastModified(){
+		return lastModified;
+	}
+
+	/**
+	 * @return the size in bytes (0 if the entry does not exist)
+	 */
+	public long length(){
+		return size;
+	}
+
+	/**
+	 * @return the file key (inode) or null if not available
+	 */
+	public Object getFileKey(){
+		return fileKey;
+	}
+}
@@ -0,0 +1,231 @@
+package datastructures;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Interned paths of a plan (see PlanStore and PlanFile): each path is stored as the id of its parent path and the id of its name.
+ * Paths which are not restored exactly by joining parent and name (e.g. roots) are stored as a name without parent.
+ * The attributes of the paths which were recorded with the actions are stored along with them.
+ * Ids are assigned consecutively from 0, such that a path is interned after its parent.
+ * @author Christoph Redl
+ */
+class PathTable{
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final char SEPARATOR = File.separatorChar;
+	private static final byte KNOWN = 1;
+	private static final byte EXISTS = 2;
+	private static final byte FILE = 4;
+	private static final byte DIRECTORY = 8;
+	private static final byte LINK = 16;
+
+	private int[] parents = new int[INITIAL_CAPACITY];
+	private int[] names = new int[INITIAL_CAPACITY];
+	private int count = 0;
+	// Attributes (see FileSnapshot): flags (0 if unknown), size and modification date
+	private byte[] flags = new byte[INITIAL_CAPACITY];
+	private long[] sizes = new long[INITIAL_CAPACITY];
+	private long[] modified = new long[INITIAL_CAPACITY];
+	// Path ids + 1 by hash of parent and name (open addressing, 0 is empty)
+	private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+	private String[] nameValues = new String[INITIAL_CAPACITY];
+	private int nameCount = 0;
+	// Name ids + 1 by hash of the name
+	private int[] nameSlots = new int[INITIAL_CAPACITY * 2];
+
+	// Parent of the last path (consecutive paths are mostly in the same directory)
+	private String lastParent = null;
+	private int lastParentId = -1;
+
+	int intern(String path){
+		int split = path.lastIndexOf(SEPARATOR);
+		if (split <= 0 || split == path.length() - 1 || path.charAt(split - 1) == SEPARATOR) return internPair(-1, internName(path));
+		int parent;
+		if (lastParent != null && lastParent.length() == split && path.startsWith(lastParent)){
+			parent = lastParentId;
+		}else{
+			String parentPath = path.substring(0, split);
+			parent = intern(parentPath);
+			lastParent = parentPath;
+			lastParentId = parent;
+		}
+		return internPair(parent, internName(path.substring(split + 1)));
+	}
+
+	String get(int id){
+		if (parents[id] < 0) return nameValues[names[id]];
+		StringBuilder sb = new StringBuilder();
+		append(id, sb);
+		return sb.toString();
+	}
+
+	private void append(int id, StringBuilder sb){
+		if (parents[id] >= 0){
+			append(parents[id], sb);
+			sb.append(SEPARATOR);
+		}
+		sb.append(nameValues[names[id]]);
+	}
+
+	void setSnapshot(int id, FileSnapshot snapshot){
+		flags[id] = toFlags(snapshot);
+		sizes[id] = snapshot.length();
+		modified[id] = snapshot.lastModified();
+	}
+
+	FileSnapshot getSnapshot(int id){
+		return toSnapshot(flags[id], sizes[id], modified[id]);
+	}
+
+	/**
+	 * Encodes the type of an element.
+	 * @param snapshot
+	 * @return byte Flags (never 0)
+	 */
+	static byte toFlags(FileSnapshot snapshot){
+		return (byte)(KNOWN | (snapshot.exists() ? EXISTS : 0) | (snapshot.isFile() ? FILE : 0) | (snapshot.isDirectory() ? DIRECTORY : 0) | (snapshot.isSymbolicLink() ? LINK : 0));
+	}
+
+	/**
+	 * Restores the attributes of an element (without file key).
+	 * @param flags Flags as encoded by toFlags (0 if unknown)
+	 * @param size
+	 * @param modified
+	 * @return FileSnapshot (null if unknown)
+	 */
+	static FileSnapshot toSnapshot(byte flags, long size, long modified){
+		if ((flags & KNOWN) == 0) return null;
+		if ((flags & EXISTS) == 0) return FileSnapshot.MISSING;
+		return new FileSnapshot(true, (flags & FILE) != 0, (flags & DIRECTORY) != 0, (flags & LINK) != 0, modified, size, null);
+	}
+
+	int size(){
+		return count;
+	}
+
+	int getParent(int id){
+		return parents[id];
+	}
+
+	int getName(int id){
+		return names[id];
+	}
+
+	byte getFlags(int id){
+		return flags[id];
+	}
+
+	long getSize(int id){
+		return sizes[id];
+	}
+
+	long getModified(int id){
+		return modified[id];
+	}
+
+	int getNameCount(){
+		return nameCount;
+	}
+
+	String getNameValue(int name){
+		return nameValues[name];
+	}
+
+	/**
+	 * Looks up a path without interning it.
+	 * @param path
+	 * @return int Id of the path or -1 if it was not interned
+	 */
+	int find(String path){
+		int split = path.lastIndexOf(SEPARATOR);
+		if (split <= 0 || split == path.length() - 1 || path.charAt(split - 1) == SEPARATOR){
+			int name = findName(path);
+			return name < 0 ? -1 : findPair(-1, name);
+		}
+		int parent = find(path.substring(0, split));
+		int name = findName(path.substring(split + 1));
+		return parent < 0 || name < 0 ? -1 : findPair(parent, name);
+	}
+
+	/**
+	 * Interns a path given by the ids of its parent and its name (e.g. when a saved table is restored).
+	 * @param parent Id of the parent path or -1
+	 * @param name Id of the name
+	 * @return int Id of the path
+	 */
+	int add(int parent, int name){
+		return internPair(parent, name);
+	}
+
+	private int findPair(int parent, int name){
+		int mask = slots.length - 1;
+		for (int slot = hash(parent * 31 + name) & mask; ; slot = (slot + 1) & mask){
+			int id = slots[slot] - 1;
+			if (id < 0) return -1;
+			if (parents[id] == parent && names[id] == name) return id;
+		}
+	}
+
+	private int internPair(int parent, int name){
+		int found = findPair(parent, name);
+		if (found >= 0) return found;
+		if (count == parents.length){
+			parents = Arrays.copyOf(parents, count + (count >> 1));
+			names = Arrays.copyOf(names, parents.length);
+			flags = Arrays.copyOf(flags, parents.length);
+			sizes = Arrays.copyOf(sizes, parents.length);
+			modified = Arrays.copyOf(modified, parents.length);
+		}
+		parents[count] = parent;
+		names[count] = name;
+		count++;
+		if (count * 4 > slots.length * 3){
+			slots = new int[slots.length * 2];
+			for (int id = 0; id < count; id++) insert(slots, hash(parents[id] * 31 + names[id]), id);
+		}else{
+			insert(slots, hash(parent * 31 + name), count - 1);
+		}
+		return count - 1;
+	}
+
+	private int findName(String name){
+		int mask = nameSlots.length - 1;
+		for (int slot = hash(name.hashCode()) & mask; ; slot = (slot + 1) & mask){
+			int id = nameSlots[slot] - 1;
+			if (id < 0) return -1;
+			if (nameValues[id].equals(name)) return id;
+		}
+	}
+
+	/**
+	 * Interns a name (also used for other strings of a plan, e.g. descriptions).
+	 * @param name
+	 * @return int Id of the name
+	 */
+	int internName(String name){
+		int found = findName(name);
+		if (found >= 0) return found;
+		if (nameCount == nameValues.length) nameValues = Arrays.copyOf(nameValues, nameCount + (nameCount >> 1));
+		nameValues[nameCount++] = name;
+		if (nameCount * 4 > nameSlots.length * 3){
+			nameSlots = new int[nameSlots.length * 2];
+			for (int id = 0; id < nameCount; id++) insert(nameSlots, hash(nameValues[id].hashCode()), id);
+		}else{
+			insert(nameSlots, hash(name.hashCode()), nameCount - 1);
+		}
+		return nameCount - 1;
+	}
+
+	private static void insert(int[] slots, int hash, int id){
+		int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (slots[slot] != 0) slot = (slot + 1) & mask;
+		slots[slot] = id + 1;
+	}
+
+	private static int hash(int h){
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,103 @@
+package datastructures;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * List of action groups which are stored in a compact form (see PlanStore and PlanFile).
+ * get creates a view of a group on each call; changes of the selection or description of a view are written back to the plan.
+ * The columns of the plan (actions by index over all groups, interned paths by id) can be read without creating views,
+ * e.g. to build the indexes of a SelectionModel.
+ * @author Christoph Redl
+ */
+public abstract class Plan extends AbstractList<ActionGroup> implements RandomAccess {
+
+	/**
+	 * Returns the selected actions of all groups (without creating the groups).
+	 * @return List<Action>
+	 */
+	public abstract List<Action> getSelectedActions();
+
+	/**
+	 * Changes the selected action of a group (called by its views).
+	 * @param index
+	 * @param selection Index of the action within the group or -1
+	 */
+	abstract void select(int index, int selection);
+
+	/**
+	 * Changes the description of a group (called by its views).
+	 * @param index
+	 * @param description
+	 */
+	abstract void setDescription(int index, String description);
+
+	/**
+	 * Returns the index of the first action of a group.
+	 * @param group
+	 * @return int
+	 */
+	abstract int getActionStart(int group);
+
+	/**
+	 * Returns the index after the last action of a group.
+	 * @param group
+	 * @return int
+	 */
+	abstract int getActionEnd(int group);
+
+	/**
+	 * Returns the selected action of a group.
+	 * @param group
+	 * @return int Index of the action within the group or -1
+	 */
+	abstract int getSelection(int group);
+
+	/**
+	 * Returns the action character of an action.
+	 * @param action Index of the action (see getActionStart)
+	 * @return char
+	 */
+	abstract char getActionChar(int action);
+
+	/**
+	 * Returns the type of an action.
+	 * @param action
+	 * @return Action.Type
+	 */
+	abstract Action.Type getActionType(int action);
+
+	/**
+	 * Returns the id of the source path of an action.
+	 * @param action
+	 * @return int
+	 */
+	abstract int getSourcePath(int action);
+
+	/**
+	 * Returns the id of the destination path of an action.
+	 * @param action
+	 * @return int Id of the path or -1 for none
+	 */
+	abstract int getDestinationPath(int action);
+
+	/**
+	 * Returns the number of paths; ids are assigned consecutively from 0, and a path has a higher id than its parent.
+	 * @return int
+	 */
+	abstract int getPathCount();
+
+	/**
+	 * Returns the id of the parent of a path.
+	 * @param path
+	 * @return int Id of the parent or -1 if the parent is no path of the plan
+	 */
+	abstract int getParentPath(int path);
+
+	/**
+	 * Looks up the id of a path (in the form of the paths of the actions, i.e. absolute).
+	 * @param path
+	 * @return int Id of the path or -1 if it is no path of the plan
+	 */
+	abstract int findPath(String path);
+}
@@ -0,0 +1,449 @@
+package datastructures;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Plan saved to a file, such that the locations can be analyzed at one time and the actions reviewed and executed later.
+ * The file is written while the action groups are produced (see Writer) and read through memory mappings: opening a plan
+ * only maps the file, and the views of its groups are created on access (see Plan).
+ * Changes of the selections are kept in memory until saveSelections is called; descriptions cannot be changed.
+ *
+ * Format (version 1): header (magic, version, plan date, numbers of groups, actions, paths and strings, offsets of the
+ * group, path and string tables), actions (type, action character, ids of source and destination path, id of the string of
+ * the source's file key), groups (first action, selection, id of the description string), paths (id of the parent path,
+ * id of the name string, attributes recorded with the actions: flags, size and modification date), strings (offsets,
+ * followed by length and UTF-8 bytes of each string). Ids of -1 mean none.
+ * File keys are stored in their string form, which still identifies hard links of the same file (see Action.assignLinkTargets).
+ * The file is written under a temporary name and renamed when it is complete.
+ * @author Christoph Redl
+ */
+public class PlanFile extends Plan {
+
+	private static final int MAGIC = 0x4453504c; // "DSPL"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int ACTION_SIZE = 15;
+	private static final int GROUP_SIZE = 9;
+	private static final int PATH_SIZE = 25;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final Action.Type[] TYPES = Action.Type.values();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final Date planDate;
+	private final int groups;
+	private final int actions;
+	private final int paths;
+	private final long groupTable;
+	private final long stringTable;
+	private final ByteBuffer actionBuffer;
+	private final ByteBuffer groupBuffer;
+	private final ByteBuffer pathBuffer;
+	private final ByteBuffer stringBuffer;
+	// Selections (changed in memory until saveSelections) and decoded strings by id
+	private final byte[] selections;
+	private boolean selectionsChanged = false;
+	private final String[] strings;
+	// Lookup of paths by name (built on the first call of findPath)
+	private PathTable pathLookup = null;
+
+	/**
+	 * Writes a plan file while the action groups are produced. Paths and strings are interned in memory
+	 * (see PathTable) and written after the groups; actions are written immediately.
+	 */
+	public static class Writer{
+		private final File file;
+		private final File tmpFile;
+		private final Date planDate;
+		private final FileOutputStream fos;
+		private final DataOutputStream out;
+		private final PathTable paths = new PathTable();
+		// Per group: first action, selection and id of the description string
+		private int[] groupStarts = new int[BUFFER_SIZE];
+		private byte[] groupSelections = new byte[BUFFER_SIZE];
+		private int[] groupDescriptions = new int[BUFFER_SIZE];
+		private int groups = 0;
+		private int actions = 0;
+		private boolean finished = false;
+
+		/**
+		 * Starts a new plan file (an existing file is replaced by finish).
+		 * @param file
+		 * @param planDate Date when the actions are determined
+		 * @throws IOException
+		 */
+		public Writer(File file, Date planDate) throws IOException{
+			this.file = file;
+			this.tmpFile = new File(file.getAbsolutePath() + ".tmp");
+			this.planDate = planDate;
+			fos = new FileOutputStream(tmpFile);
+			out = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+			// Completed by finish
+			out.write(new byte[HEADER_SIZE]);
+		}
+
+		/**
+		 * Appends an action group.
+		 * @param group
+		 * @throws IOException
+		 */
+		public void add(ActionGroup group) throws IOException{
+			if (groups == groupStarts.length){
+				int capacity = groups + (groups >> 1);
+				groupStarts = Arrays.copyOf(groupStarts, capacity);
+				groupSelections = Arrays.copyOf(groupSelections, capacity);
+				groupDescriptions = Arrays.copyOf(groupDescriptions, capacity);
+			}
+			groupStarts[groups] = actions;
+			groupSelections[groups] = (byte)group.getSelectedIndex();
+			groupDescriptions[groups] = paths.internName(group.getDescription());
+			groups++;
+			for (int i = 0; i < group.getActionCount(); i++){
+				Action action = group.getAction(i);
+				int source = paths.intern(action.getSource());
+				int destination = action.getDestination() != null ? paths.intern(action.getDestination()) : -1;
+				if (action.getSourceSnapshot() != null) paths.setSnapshot(source, action.getSourceSnapshot());
+				if (action.getDestinationSnapshot() != null && destination >= 0) paths.setSnapshot(destination, action.getDestinationSnapshot());
+				out.writeByte(action.getType().ordinal());
+				out.writeChar(group.getActionChar(i));
+				out.writeInt(source);
+				out.writeInt(destination);
+				out.writeInt(action.getSourceKey() != null ? paths.internName(action.getSourceKey().toString()) : -1);
+				actions++;
+			}
+		}
+
+		/**
+		 * Returns the number of action groups written so far.
+		 * @return int
+		 */
+		public int size(){
+			return groups;
+		}
+
+		/**
+		 * Writes the tables and the header and replaces the plan file.
+		 * @throws IOException
+		 */
+		public void finish() throws IOException{
+			for (int g = 0; g < groups; g++){
+				out.writeInt(groupStarts[g]);
+				out.writeByte(groupSelections[g]);
+				out.writeInt(groupDescriptions[g]);
+			}
+			for (int p = 0; p < paths.size(); p++){
+				out.writeInt(paths.getParent(p));
+				out.writeInt(paths.getName(p));
+				out.writeByte(paths.getFlags(p));
+				out.writeLong(paths.getSize(p));
+				out.writeLong(paths.getModified(p));
+			}
+			int stringCount = paths.getNameCount();
+			long groupTable = HEADER_SIZE + (long)actions * ACTION_SIZE;
+			long pathTable = groupTable + (long)groups * GROUP_SIZE;
+			long stringTable = pathTable + (long)paths.size() * PATH_SIZE;
+			long offset = stringTable + 8L * stringCount;
+			for (int s = 0; s < stringCount; s++){
+				out.writeLong(offset);
+				offset += 4 + paths.getNameValue(s).getBytes(UTF8).length;
+			}
+			for (int s = 0; s < stringCount; s++){
+				byte[] bytes = paths.getNameValue(s).getBytes(UTF8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.flush();
+			fos.getChannel().force(true);
+			out.close();
+
+			RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+			try{
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeLong(planDate.getTime());
+				raf.writeInt(groups);
+				raf.writeInt(actions);
+				raf.writeInt(paths.size());
+				raf.writeInt(stringCount);
+				raf.writeLong(groupTable);
+				raf.writeLong(pathTable);
+				raf.writeLong(stringTable);
+				raf.getChannel().force(true);
+			}finally{
+				raf.close();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			finished = true;
+		}
+
+		/**
+		 * Discards the plan if it was not finished.
+		 * @throws IOException
+		 */
+		public void close() throws IOException{
+			if (finished) return;
+			out.close();
+			Files.deleteIfExists(tmpFile.toPath());
+		}
+	}
+
+	private PlanFile(File file, Date planDate, int groups, int actions, int paths, int strings, long groupTable, long stringTable,
+			ByteBuffer actionBuffer, ByteBuffer groupBuffer, ByteBuffer pathBuffer, ByteBuffer stringBuffer){
+		this.file = file;
+		this.planDate = planDate;
+		this.groups = groups;
+		this.actions = actions;
+		this.paths = paths;
+		this.groupTable = groupTable;
+		this.stringTable = stringTable;
+		this.actionBuffer = actionBuffer;
+		this.groupBuffer = groupBuffer;
+		this.pathBuffer = pathBuffer;
+		this.stringBuffer = stringBuffer;
+		this.strings = new String[strings];
+		this.selections = new byte[groups];
+		for (int g = 0; g < groups; g++) selections[g] = groupBuffer.get(g * GROUP_SIZE + 4);
+	}
+
+	/**
+	 * Writes a plan file.
+	 * @param file
+	 * @param planDate Date when the actions were determined
+	 * @param actionGroups
+	 * @throws IOException
+	 */
+	public static void write(File file, Date planDate, Iterable<ActionGroup> actionGroups) throws IOException{
+		Writer writer = new Writer(file, planDate);
+		try{
+			for (ActionGroup group : actionGroups) writer.add(group);
+			writer.finish();
+		}finally{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Opens a plan file (the file is mapped into memory, not read).
+	 * @param file
+	 * @return PlanFile
+	 * @throws IOException If the file is no plan of this version
+	 */
+	public static PlanFile open(File file) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			if (length < HEADER_SIZE) throw new IOException("\"" + file + "\" is no plan");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC) throw new IOException("\"" + file + "\" is no plan");
+			if (header.getInt() != VERSION) throw new IOException("\"" + file + "\" is a plan of another version");
+			Date planDate = new Date(header.getLong());
+			int groups = header.getInt();
+			int actions = header.getInt();
+			int paths = header.getInt();
+			int strings = header.getInt();
+			long groupTable = header.getLong();
+			long pathTable = header.getLong();
+			long stringTable = header.getLong();
+			if (groups < 0 || actions < 0 || paths < 0 || strings < 0 || groupTable != HEADER_SIZE + (long)actions * ACTION_SIZE
+					|| pathTable != groupTable + (long)groups * GROUP_SIZE || stringTable != pathTable + (long)paths * PATH_SIZE
+					|| stringTable + 8L * strings > length){
+				throw new IOException("Plan \"" + file + "\" is corrupt");
+			}
+			return new PlanFile(file, planDate, groups, actions, paths, strings, groupTable, stringTable,
+					map(channel, file, HEADER_SIZE, groupTable - HEADER_SIZE),
+					map(channel, file, groupTable, pathTable - groupTable),
+					map(channel, file, pathTable, stringTable - pathTable),
+					map(channel, file, stringTable, length - stringTable));
+		}finally{
+			// Mappings remain valid
+			raf.close();
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, File file, long position, long size) throws IOException{
+		if (size > Integer.MAX_VALUE) throw new IOException("Plan \"" + file + "\" is too large to be mapped");
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+
+	/**
+	 * Returns the date when the actions were determined.
+	 * @return Date
+	 */
+	public Date getPlanDate(){
+		return planDate;
+	}
+
+	@Override
+	public ActionGroup get(int index){
+		if (index < 0 || index >= groups) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + groups);
+		ActionGroup group = new ActionGroup(getString(groupBuffer.getInt(index * GROUP_SIZE + 5)));
+		int end = getActionEnd(index);
+		for (int a = getActionStart(index); a < end; a++) group.addAction(getActionChar(a), getAction(a));
+		if (selections[index] >= 0) group.selectAction(selections[index]);
+		group.attach(this, index);
+		return group;
+	}
+
+	@Override
+	public int size(){
+		return groups;
+	}
+
+	@Override
+	public List<Action> getSelectedActions(){
+		List<Action> result = new ArrayList<Action>();
+		for (int g = 0; g < groups; g++){
+			if (selections[g] >= 0) result.add(getAction(groupBuffer.getInt(g * GROUP_SIZE) + selections[g]));
+		}
+		return result;
+	}
+
+	@Override
+	void select(int index, int selection){
+		selections[index] = (byte)selection;
+		selectionsChanged = true;
+	}
+
+	@Override
+	void setDescription(int index, String description){
+		throw new UnsupportedOperationException("Descriptions of a saved plan cannot be changed");
+	}
+
+	/**
+	 * Writes the changed selections to the plan file.
+	 * @throws IOException
+	 */
+	public void saveSelections() throws IOException{
+		if (!selectionsChanged) return;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			FileChannel channel = raf.getChannel();
+			ByteBuffer chunk = ByteBuffer.allocate(BUFFER_SIZE / GROUP_SIZE * GROUP_SIZE);
+			int g = 0;
+			while (g < groups){
+				long position = groupTable + (long)g * GROUP_SIZE;
+				chunk.clear();
+				for (; g < groups && chunk.remaining() >= GROUP_SIZE; g++){
+					chunk.putInt(groupBuffer.getInt(g * GROUP_SIZE));
+					chunk.put(selections[g]);
+					chunk.putInt(groupBuffer.getInt(g * GROUP_SIZE + 5));
+				}
+				chunk.flip();
+				while (chunk.hasRemaining()) position += channel.write(chunk, position);
+			}
+			channel.force(true);
+		}finally{
+			raf.close();
+		}
+		selectionsChanged = false;
+	}
+
+	@Override
+	int getActionStart(int group){
+		return groupBuffer.getInt(group * GROUP_SIZE);
+	}
+
+	@Override
+	int getActionEnd(int group){
+		return group + 1 < groups ? groupBuffer.getInt((group + 1) * GROUP_SIZE) : actions;
+	}
+
+	@Override
+	int getSelection(int group){
+		return selections[group];
+	}
+
+	@Override
+	char getActionChar(int action){
+		return actionBuffer.getChar(action * ACTION_SIZE + 1);
+	}
+
+	@Override
+	Action.Type getActionType(int action){
+		return TYPES[actionBuffer.get(action * ACTION_SIZE)];
+	}
+
+	@Override
+	int getSourcePath(int action){
+		return actionBuffer.getInt(action * ACTION_SIZE + 3);
+	}
+
+	@Override
+	int getDestinationPath(int action){
+		return actionBuffer.getInt(action * ACTION_SIZE + 7);
+	}
+
+	@Override
+	int getPathCount(){
+		return paths;
+	}
+
+	@Override
+	int getParentPath(int path){
+		return pathBuffer.getInt(path * PATH_SIZE);
+	}
+
+	@Override
+	int findPath(String path){
+		if (pathLookup == null){
+			// Interning the strings and paths in the order of their ids restores the ids of the writer
+			PathTable lookup = new PathTable();
+			for (int s = 0; s < strings.length; s++) lookup.internName(getString(s));
+			for (int p = 0; p < paths; p++) lookup.add(pathBuffer.getInt(p * PATH_SIZE), pathBuffer.getInt(p * PATH_SIZE + 4));
+			pathLookup = lookup;
+		}
+		return pathLookup.find(path);
+	}
+
+	private Action getAction(int a){
+		int offset = a * ACTION_SIZE;
+		Action.Type type = TYPES[actionBuffer.get(offset)];
+		int source = actionBuffer.getInt(offset + 3);
+		int destination = actionBuffer.getInt(offset + 7);
+		int key = actionBuffer.getInt(offset + 11);
+		Action action = destination < 0 ? new Action(type, getPath(source)) : new Action(type, getPath(source), getPath(destination));
+		action.setSnapshots(getSnapshot(source), destination >= 0 ? getSnapshot(destination) : null);
+		if (key >= 0) action.setSourceKey(getString(key));
+		return action;
+	}
+
+	private String getPath(int id){
+		int parent = pathBuffer.getInt(id * PATH_SIZE);
+		String name = getString(pathBuffer.getInt(id * PATH_SIZE + 4));
+		return parent < 0 ? name : getPath(parent) + File.separatorChar + name;
+	}
+
+	private FileSnapshot getSnapshot(int id){
+		int offset = id * PATH_SIZE;
+		return PathTable.toSnapshot(pathBuffer.get(offset + 8), pathBuffer.getLong(offset + 9), pathBuffer.getLong(offset + 17));
+	}
+
+	private String getString(int id){
+		if (id < 0) return null;
+		String s = strings[id];
+		if (s == null){
+			int offset = (int)(stringBuffer.getLong(id * 8) - stringTable);
+			byte[] bytes = new byte[stringBuffer.getInt(offset)];
+			ByteBuffer data = stringBuffer.duplicate();
+			data.position(offset + 4);
+			data.get(bytes);
+			s = new String(bytes, UTF8);
+			strings[id] = s;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,192 @@
+package datastructures;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact list of action groups (the plan of a synchronization), such that plans with millions of groups fit into memory.
+ * Paths are interned as pairs of the parent path and the name (names are interned as well, hence the same relative path
+ * below both locations shares its names), together with the attributes recorded for display (see Action.setSnapshots);
+ * types, action characters, selections and descriptions are kept in primitive arrays.
+ * get creates a view of a group on each call: its actions are created from the arrays, and changes of its selection
+ * or description are written back to the plan.
+ * Groups can only be appended; the plan must not be modified by several threads at the same time.
+ * @author Christoph Redl
+ */
+public class PlanStore extends Plan {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final Action.Type[] TYPES = Action.Type.values();
+
+	private final PathTable paths = new PathTable();
+	private final List<String> descriptions = new ArrayList<String>();
+	private final Map<String, Integer> descriptionIds = new HashMap<String, Integer>();
+
+	// Per group: index of its first action (its actions end where the actions of the next group start), description and selection (-1 for none)
+	private int[] groupStarts = new int[INITIAL_CAPACITY];
+	private short[] groupDescriptions = new short[INITIAL_CAPACITY];
+	private byte[] selections = new byte[INITIAL_CAPACITY];
+	private int groups = 0;
+
+	// Per action: type, action character, ids of source and destination path (-1 for none) and file key of the source
+	// (allocated when the first key is stored)
+	private byte[] types = new byte[INITIAL_CAPACITY];
+	private char[] chars = new char[INITIAL_CAPACITY];
+	private int[] sources = new int[INITIAL_CAPACITY];
+	private int[] destinations = new int[INITIAL_CAPACITY];
+	private Object[] sourceKeys = null;
+	private int actions = 0;
+
+	@Override
+	public ActionGroup get(int index){
+		if (index < 0 || index >= groups) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + groups);
+		ActionGroup group = new ActionGroup(descriptions.get(groupDescriptions[index]));
+		int end = getActionEnd(index);
+		for (int a = groupStarts[index]; a < end; a++) group.addAction(chars[a], getAction(a));
+		if (selections[index] >= 0) group.selectAction(selections[index]);
+		group.attach(this, index);
+		return group;
+	}
+
+	@Override
+	public int size(){
+		return groups;
+	}
+
+	/**
+	 * Appends an action group (the group itself is not kept; later changes of it do not affect the plan).
+	 * @param index Must be the size of the plan
+	 * @param group
+	 * @throws UnsupportedOperationException If the group is not appended
+	 */
+	@Override
+	public void add(int index, ActionGroup group){
+		if (index != groups) throw new UnsupportedOperationException("Action groups can only be appended to a plan");
+		int count = group.getActionCount();
+		if (count > Byte.MAX_VALUE) throw new IllegalArgumentException("Too many actions in a group");
+		if (groups == groupStarts.length){
+			int capacity = groups + (groups >> 1);
+			groupStarts = Arrays.copyOf(groupStarts, capacity);
+			groupDescriptions = Arrays.copyOf(groupDescriptions, capacity);
+			selections = Arrays.copyOf(selections, capacity);
+		}
+		if (actions + count > types.length){
+			int capacity = Math.max(actions + count, actions + (actions >> 1));
+			types = Arrays.copyOf(types, capacity);
+			chars = Arrays.copyOf(chars, capacity);
+			sources = Arrays.copyOf(sources, capacity);
+			destinations = Arrays.copyOf(destinations, capacity);
+			if (sourceKeys != null) sourceKeys = Arrays.copyOf(sourceKeys, capacity);
+		}
+		groupStarts[groups] = actions;
+		groupDescriptions[groups] = descriptionId(group.getDescription());
+		selections[groups] = (byte)group.getSelectedIndex();
+		for (int i = 0; i < count; i++){
+			Action action = group.getAction(i);
+			types[actions] = (byte)action.getType().ordinal();
+			chars[actions] = group.getActionChar(i);
+			sources[actions] = paths.intern(action.getSource());
+			destinations[actions] = action.getDestination() != null ? paths.intern(action.getDestination()) : -1;
+			if (action.getSourceSnapshot() != null) paths.setSnapshot(sources[actions], action.getSourceSnapshot());
+			if (action.getDestinationSnapshot() != null && destinations[actions] >= 0) paths.setSnapshot(destinations[actions], action.getDestinationSnapshot());
+			if (action.getSourceKey() != null){
+				if (sourceKeys == null) sourceKeys = new Object[types.length];
+				sourceKeys[actions] = action.getSourceKey();
+			}
+			actions++;
+		}
+		groups++;
+		modCount++;
+	}
+
+	@Override
+	public List<Action> getSelectedActions(){
+		List<Action> result = new ArrayList<Action>();
+		for (int g = 0; g < groups; g++){
+			if (selections[g] >= 0) result.add(getAction(groupStarts[g] + selections[g]));
+		}
+		return result;
+	}
+
+	@Override
+	void select(int index, int selection){
+		selections[index] = (byte)selection;
+	}
+
+	@Override
+	void setDescription(int index, String description){
+		groupDescriptions[index] = descriptionId(description);
+	}
+
+	@Override
+	int getActionStart(int group){
+		return groupStarts[group];
+	}
+
+	@Override
+	int getActionEnd(int group){
+		return group + 1 < groups ? groupStarts[group + 1] : actions;
+	}
+
+	@Override
+	int getSelection(int group){
+		return selections[group];
+	}
+
+	@Override
+	char getActionChar(int action){
+		return chars[action];
+	}
+
+	@Override
+	Action.Type getActionType(int action){
+		return TYPES[types[action]];
+	}
+
+	@Override
+	int getSourcePath(int action){
+		return sources[action];
+	}
+
+	@Override
+	int getDestinationPath(int action){
+		return destinations[action];
+	}
+
+	@Override
+	int getPathCount(){
+		return paths.size();
+	}
+
+	@Override
+	int getParentPath(int path){
+		return paths.getParent(path);
+	}
+
+	@Override
+	int findPath(String path){
+		return paths.find(path);
+	}
+
+	private Action getAction(int a){
+		Action.Type type = TYPES[types[a]];
+		String source = paths.get(sources[a]);
+		Action action = destinations[a] < 0 ? new Action(type, source) : new Action(type, source, paths.get(destinations[a]));
+		action.setSnapshots(paths.getSnapshot(sources[a]), destinations[a] >= 0 ? paths.getSnapshot(destinations[a]) : null);
+		if (sourceKeys != null) action.setSourceKey(sourceKeys[a]);
+		return action;
+	}
+
+	private short descriptionId(String description){
+		Integer id = descriptionIds.get(description);
+		if (id == null){
+			if (descriptions.size() > Short.MAX_VALUE) throw new IllegalStateException("Too many distinct descriptions in a plan");
+			id = descriptions.size();
+			descriptions.add(description);
+			descriptionIds.put(description, id);
+		}
+		return id.shortValue();
+	}
+}
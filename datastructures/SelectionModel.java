@@ -0,0 +1,324 @@
+package datastructures;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selection of the actions of a plan for the interactive prompt, such that commands on many action groups are bulk operations.
+ * For each action character, the model keeps the set of groups which support it and the set of groups in which it is
+ * selected (as BitSets of group indexes); the groups which contain actions of a certain type are indexed as well.
+ * The groups which contain a path or paths below it (as source or destination of an action) are looked up in an index
+ * which is built on the first query: paths are numbered in pre-order (a parent has a lower id than its children, see
+ * PathTable), such that a subtree is a range of numbers, and the groups are sorted by the numbers of their paths.
+ * Changes of the selection are written to the plan.
+ * @author Christoph Redl
+ */
+public class SelectionModel {
+
+	private static final Action.Type[] TYPES = Action.Type.values();
+
+	private final Plan plan;
+	private final int groups;
+	// Groups by action character: supporting the character, having it selected, having it as first action (see '+')
+	private final Map<Character, BitSet> supported = new LinkedHashMap<Character, BitSet>();
+	private final Map<Character, BitSet> selected = new LinkedHashMap<Character, BitSet>();
+	private final Map<Character, BitSet> first = new LinkedHashMap<Character, BitSet>();
+	// Groups by type of their actions (by ordinal)
+	private final BitSet[] types = new BitSet[TYPES.length];
+
+	// Path index: pre-order number and subtree size by path id; groups ordered by the numbers of their paths, starting at offsets[number]
+	private int[] pathNumbers = null;
+	private int[] subtreeSizes = null;
+	private int[] offsets = null;
+	private int[] entries = null;
+
+	/**
+	 * Builds the model from the current selection of a plan.
+	 * @param plan
+	 */
+	public SelectionModel(Plan plan){
+		this.plan = plan;
+		this.groups = plan.size();
+		for (int t = 0; t < types.length; t++) types[t] = new BitSet();
+		for (int g = 0; g < groups; g++){
+			int start = plan.getActionStart(g);
+			int end = plan.getActionEnd(g);
+			for (int a = start; a < end; a++){
+				char c = plan.getActionChar(a);
+				bits(supported, c).set(g);
+				if (a == start) bits(first, c).set(g);
+				types[plan.getActionType(a).ordinal()].set(g);
+			}
+			int selection = plan.getSelection(g);
+			if (selection >= 0) bits(selected, plan.getActionChar(start + selection)).set(g);
+		}
+	}
+
+	/**
+	 * Returns the number of action groups.
+	 * @return int
+	 */
+	public int size(){
+		return groups;
+	}
+
+	/**
+	 * Returns the action characters of the plan.
+	 * @return Set<Character>
+	 */
+	public Set<Character> getActionChars(){
+		return Collections.unmodifiableSet(supported.keySet());
+	}
+
+	/**
+	 * Returns all action groups.
+	 * @return BitSet
+	 */
+	public BitSet all(){
+		return range(0, groups);
+	}
+
+	/**
+	 * Returns a range of action groups.
+	 * @param from Index of the first group
+	 * @param to Index after the last group
+	 * @return BitSet
+	 */
+	public BitSet range(int from, int to){
+		if (from < 0 || to > groups || from > to) throw new IndexOutOfBoundsException("Range: " + from + "-" + to + ", size: " + groups);
+		BitSet result = new BitSet(groups);
+		result.set(from, to);
+		return result;
+	}
+
+	/**
+	 * Returns the action groups which contain actions of certain types.
+	 * @param types
+	 * @return BitSet
+	 */
+	public BitSet ofType(Set<Action.Type> types){
+		BitSet result = new BitSet(groups);
+		for (Action.Type type : types) result.or(this.types[type.ordinal()]);
+		return result;
+	}
+
+	/**
+	 * Returns the action groups with an action on a path or below it.
+	 * @param path Absolute path
+	 * @return BitSet
+	 */
+	public BitSet under(String path){
+		BitSet result = new BitSet();
+		int id = plan.findPath(path);
+		if (id < 0) return result;
+		if (entries == null) buildPathIndex();
+		int end = offsets[pathNumbers[id] + subtreeSizes[id]];
+		for (int i = offsets[pathNumbers[id]]; i < end; i++) result.set(entries[i]);
+		return result;
+	}
+
+	/**
+	 * Returns the action groups in which an action character is selected.
+	 * @param c
+	 * @return BitSet
+	 */
+	public BitSet getSelected(char c){
+		BitSet result = selected.get(c);
+		return result != null ? (BitSet)result.clone() : new BitSet();
+	}
+
+	/**
+	 * Returns the number of action groups in which an action character is selected.
+	 * @param c
+	 * @return int
+	 */
+	public int getSelectedCount(char c){
+		BitSet result = selected.get(c);
+		return result != null ? result.cardinality() : 0;
+	}
+
+	/**
+	 * Returns the number of action groups without a selected action.
+	 * @return int
+	 */
+	public int getUnselectedCount(){
+		BitSet any = new BitSet(groups);
+		for (BitSet bits : selected.values()) any.or(bits);
+		return groups - any.cardinality();
+	}
+
+	/**
+	 * Returns those of the given action groups which do not support an action character.
+	 * @param c
+	 * @param groups
+	 * @return BitSet
+	 */
+	public BitSet unsupported(char c, BitSet groups){
+		BitSet result = (BitSet)groups.clone();
+		BitSet bits = supported.get(c);
+		if (bits != null) result.andNot(bits);
+		return result;
+	}
+
+	/**
+	 * Selects an action character in action groups.
+	 * @param c
+	 * @param groups
+	 * @throws IllegalArgumentException If not all groups support the action character
+	 */
+	public void select(char c, BitSet groups) throws IllegalArgumentException{
+		if (!unsupported(c, groups).isEmpty()) throw new IllegalArgumentException("Action '" + c + "' is not supported by all selected actions");
+		for (Map.Entry<Character, BitSet> entry : selected.entrySet()){
+			if (entry.getKey().charValue() != c) entry.getValue().andNot(groups);
+		}
+		bits(selected, c).or(groups);
+		for (int g = groups.nextSetBit(0); g >= 0; g = groups.nextSetBit(g + 1)) plan.select(g, indexOf(g, c));
+	}
+
+	/**
+	 * Selects the first action of action groups.
+	 * @param groups
+	 */
+	public void selectFirst(BitSet groups){
+		for (BitSet bits : selected.values()) bits.andNot(groups);
+		for (Map.Entry<Character, BitSet> entry : first.entrySet()){
+			BitSet bits = (BitSet)groups.clone();
+			bits.and(entry.getValue());
+			bits(selected, entry.getKey()).or(bits);
+		}
+		for (int g = groups.nextSetBit(0); g >= 0; g = groups.nextSetBit(g + 1)) plan.select(g, 0);
+	}
+
+	/**
+	 * Unselects the actions of action groups.
+	 * @param groups
+	 */
+	public void unselect(BitSet groups){
+		for (BitSet bits : selected.values()) bits.andNot(groups);
+		for (int g = groups.nextSetBit(0); g >= 0; g = groups.nextSetBit(g + 1)) plan.select(g, -1);
+	}
+
+	/**
+	 * Selects the action of a certain type in action groups. Groups with none or several actions of the types are not changed.
+	 * @param types
+	 * @param groups
+	 * @return int Number of groups in which an action was selected
+	 */
+	public int selectType(Set<Action.Type> types, BitSet groups){
+		BitSet[] typeGroups = new BitSet[types.size()];
+		int t = 0;
+		for (Action.Type type : types) typeGroups[t++] = this.types[type.ordinal()];
+		int count = 0;
+		for (int g = groups.nextSetBit(0); g >= 0; g = groups.nextSetBit(g + 1)){
+			if (!contains(typeGroups, g)) continue;
+			int found = -1;
+			int end = plan.getActionEnd(g);
+			for (int a = plan.getActionStart(g); a < end; a++){
+				if (!types.contains(plan.getActionType(a))) continue;
+				if (found >= 0){
+					found = -1;
+					break;
+				}
+				found = a;
+			}
+			if (found < 0) continue;
+			for (BitSet bits : selected.values()) bits.clear(g);
+			bits(selected, plan.getActionChar(found)).set(g);
+			plan.select(g, found - plan.getActionStart(g));
+			count++;
+		}
+		return count;
+	}
+
+	private static boolean contains(BitSet[] sets, int index){
+		for (BitSet set : sets){
+			if (set.get(index)) return true;
+		}
+		return false;
+	}
+
+	private int indexOf(int group, char c){
+		int start = plan.getActionStart(group);
+		int end = plan.getActionEnd(group);
+		for (int a = start; a < end; a++){
+			if (plan.getActionChar(a) == c) return a - start;
+		}
+		return -1;
+	}
+
+	private void buildPathIndex(){
+		int paths = plan.getPathCount();
+		// Subtree sizes (children have higher ids than their parents)
+		int[] sizes = new int[paths];
+		for (int p = paths - 1; p >= 0; p--){
+			sizes[p]++;
+			int parent = plan.getParentPath(p);
+			if (parent >= 0) sizes[parent] += sizes[p];
+		}
+		// Pre-order numbers: a child is numbered after its parent and the subtrees of its preceding siblings
+		int[] numbers = new int[paths];
+		int[] next = new int[paths];
+		int root = 0;
+		for (int p = 0; p < paths; p++){
+			int parent = plan.getParentPath(p);
+			if (parent < 0){
+				numbers[p] = root;
+				root += sizes[p];
+			}else{
+				numbers[p] = next[parent];
+				next[parent] += sizes[p];
+			}
+			next[p] = numbers[p] + 1;
+		}
+		next = null;
+
+		// Groups sorted by the numbers of their (distinct) paths
+		int[] counts = new int[paths + 1];
+		int[] groupPaths = new int[2 * Byte.MAX_VALUE];
+		for (int g = 0; g < groups; g++){
+			int n = getPaths(g, groupPaths);
+			for (int i = 0; i < n; i++) counts[numbers[groupPaths[i]] + 1]++;
+		}
+		for (int i = 0; i < paths; i++) counts[i + 1] += counts[i];
+		int[] entries = new int[counts[paths]];
+		int[] positions = counts.clone();
+		for (int g = 0; g < groups; g++){
+			int n = getPaths(g, groupPaths);
+			for (int i = 0; i < n; i++) entries[positions[numbers[groupPaths[i]]]++] = g;
+		}
+		this.pathNumbers = numbers;
+		this.subtreeSizes = sizes;
+		this.offsets = counts;
+		this.entries = entries;
+	}
+
+	private int getPaths(int group, int[] result){
+		int n = 0;
+		int end = plan.getActionEnd(group);
+		for (int a = plan.getActionStart(group); a < end; a++){
+			n = addPath(plan.getSourcePath(a), result, n);
+			n = addPath(plan.getDestinationPath(a), result, n);
+		}
+		return n;
+	}
+
+	private static int addPath(int path, int[] result, int n){
+		if (path < 0) return n;
+		for (int i = 0; i < n; i++){
+			if (result[i] == path) return n;
+		}
+		result[n] = path;
+		return n + 1;
+	}
+
+	private static BitSet bits(Map<Character, BitSet> map, char c){
+		BitSet bits = map.get(c);
+		if (bits == null){
+			bits = new BitSet();
+			map.put(c, bits);
+		}
+		return bits;
+	}
+}
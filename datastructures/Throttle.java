@@ -0,0 +1,209 @@
+package datastructures;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the bytes and file operations per second of the actions which access a location (token buckets).
+ * Each bucket holds the tokens of one second at most, such that a location which was idle allows a short burst only.
+ * A request takes its tokens even if the bucket does not hold enough (the bucket goes into debt) and waits until
+ * the debt is paid; concurrent requests hence queue up in the order they were made, and large requests need not be split.
+ *
+ * Limits are configured per path in the sync file ("throttle") and can be changed while actions are executed:
+ * throttles which are in use keep their state and apply the new limits to the next request.
+ * @author Christoph Redl
+ */
+public class Throttle {
+
+	/**
+	 * Throttle of paths without configured limits.
+	 */
+	public static final Throttle UNLIMITED = new Throttle();
+
+	// Smallest part of a copy which is requested at once (smaller parts would only add calls)
+	private static final long MIN_CHUNK = 1 << 16;
+	// Parts of a copy are sized such that the throttle is consulted about this often per second
+	private static final int CHUNKS_PER_SECOND = 10;
+
+	// Configured throttles by absolute path (replaced as a whole when the configuration changes)
+	private static volatile Map<String, Throttle> throttles = new HashMap<String, Throttle>();
+	private static final AtomicLong waited = new AtomicLong();
+
+	/**
+	 * Throttle which applies the limits of two locations (e.g. source and destination of a copy).
+	 */
+	private static class Pair extends Throttle{
+		private final Throttle first;
+		private final Throttle second;
+
+		Pair(Throttle first, Throttle second){
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public void acquire(long bytes, int operations){
+			first.acquire(bytes, operations);
+			second.acquire(bytes, operations);
+		}
+
+		@Override
+		public long chunk(long size){
+			return second.chunk(first.chunk(size));
+		}
+	}
+
+	private volatile long bytesPerSecond = 0;
+	private volatile long operationsPerSecond = 0;
+	private double byteTokens = 0;
+	private double operationTokens = 0;
+	private long lastRefill = System.nanoTime();
+
+	private Throttle(){
+	}
+
+	/**
+	 * Configures the throttles as given by the sync file: "throttle" is a list of entries [path]=[bytes per second]/[operations per second],
+	 * where the bytes may have the suffix K, M or G and 0 or a missing part means unlimited. Paths which are no longer listed become unlimited.
+	 * @param prop Properties of the sync file
+	 * @throws IllegalArgumentException If a limit is not a number
+	 */
+	public static synchronized void configure(MultiProperties prop) throws IllegalArgumentException{
+		Map<String, Throttle> configured = new HashMap<String, Throttle>();
+		if (prop.containsKey("throttle")){
+			for (String entry : prop.getAsList("throttle")){
+				int split = entry.lastIndexOf('=');
+				if (split <= 0) continue;
+				String path = new File(entry.substring(0, split)).getAbsolutePath();
+				String[] limits = entry.substring(split + 1).split("/");
+				Throttle throttle = throttles.get(path);
+				if (throttle == null) throttle = new Throttle();
+				throttle.setLimits(parseSize(limits[0]), limits.length > 1 ? Long.parseLong(limits[1].trim()) : 0);
+				configured.put(path, throttle);
+			}
+		}
+		for (Map.Entry<String, Throttle> old : throttles.entrySet()){
+			if (!configured.containsKey(old.getKey())) old.getValue().setLimits(0, 0);
+		}
+		throttles = configured;
+	}
+
+	/**
+	 * Parses a number of bytes with an optional binary suffix (K, M or G).
+	 */
+	private static long parseSize(String size) throws IllegalArgumentException{
+		size = size.trim().toUpperCase();
+		if (size.length() == 0) return 0;
+		int shift = 0;
+		switch (size.charAt(size.length() - 1)){
+			case 'K': shift = 10; break;
+			case 'M': shift = 20; break;
+			case 'G': shift = 30; break;
+		}
+		if (shift > 0) size = size.substring(0, size.length() - 1).trim();
+		return Long.parseLong(size) << shift;
+	}
+
+	/**
+	 * Returns the throttle of a path: the throttle of the longest configured path which contains it.
+	 * @param path
+	 * @return Throttle (UNLIMITED if no configured path contains it)
+	 */
+	public static Throttle forPath(String path){
+		Map<String, Throttle> current = throttles;
+		if (current.isEmpty()) return UNLIMITED;
+		String absolute = new File(path).getAbsolutePath();
+		Throttle result = UNLIMITED;
+		int longest = -1;
+		for (Map.Entry<String, Throttle> entry : current.entrySet()){
+			String p = entry.getKey();
+			if (p.length() > longest && (absolute.equals(p) || absolute.startsWith(p.endsWith(File.separator) ? p : p + File.separator))){
+				result = entry.getValue();
+				longest = p.length();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the throttle of an action which accesses two paths (limits of both apply).
+	 * @param first
+	 * @param second
+	 * @return Throttle
+	 */
+	public static Throttle forPaths(String first, String second){
+		Throttle a = forPath(first);
+		Throttle b = forPath(second);
+		if (a == b || b == UNLIMITED) return a;
+		if (a == UNLIMITED) return b;
+		return new Pair(a, b);
+	}
+
+	/**
+	 * Returns the total time which actions waited for throttles.
+	 * @return long Milliseconds
+	 */
+	public static long getWaitedMillis(){
+		return TimeUnit.NANOSECONDS.toMillis(waited.get());
+	}
+
+	private synchronized void setLimits(long bytesPerSecond, long operationsPerSecond){
+		refill(System.nanoTime());
+		this.bytesPerSecond = bytesPerSecond;
+		this.operationsPerSecond = operationsPerSecond;
+		// Debts of removed limits are forgiven
+		byteTokens = bytesPerSecond > 0 ? Math.min(byteTokens, bytesPerSecond) : 0;
+		operationTokens = operationsPerSecond > 0 ? Math.min(operationTokens, operationsPerSecond) : 0;
+	}
+
+	/**
+	 * Waits until an access of this size is allowed.
+	 * If the thread is interrupted, the method returns immediately (the interrupt flag is kept).
+	 * @param bytes Number of bytes read or written
+	 * @param operations Number of file operations (e.g. opening, creating or deleting a file)
+	 */
+	public void acquire(long bytes, int operations){
+		if (bytesPerSecond <= 0 && operationsPerSecond <= 0) return;
+		long wait = 0;
+		synchronized (this){
+			refill(System.nanoTime());
+			long byteRate = bytesPerSecond;
+			long operationRate = operationsPerSecond;
+			if (byteRate > 0){
+				byteTokens -= bytes;
+				if (byteTokens < 0) wait = (long)(-byteTokens * 1e9 / byteRate);
+			}
+			if (operationRate > 0){
+				operationTokens -= operations;
+				if (operationTokens < 0) wait = Math.max(wait, (long)(-operationTokens * 1e9 / operationRate));
+			}
+		}
+		if (wait <= 0) return;
+		waited.addAndGet(wait);
+		try{
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the size of the parts in which a copy should request bytes, such that throttled copies proceed steadily.
+	 * @param size Preferred size of the parts
+	 * @return long
+	 */
+	public long chunk(long size){
+		long byteRate = bytesPerSecond;
+		if (byteRate <= 0) return size;
+		return Math.min(size, Math.max(MIN_CHUNK, byteRate / CHUNKS_PER_SECOND));
+	}
+
+	private void refill(long now){
+		double seconds = (now - lastRefill) / 1e9;
+		lastRefill = now;
+		byteTokens = Math.min(bytesPerSecond, byteTokens + seconds * bytesPerSecond);
+		operationTokens = Math.min(operationsPerSecond, operationTokens + seconds * operationsPerSecond);
+	}
+}
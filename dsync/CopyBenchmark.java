@@ -0,0 +1,117 @@
+package dsync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import datastructures.CopyEngine;
+import datastructures.FileSnapshot;
+
+/**
+ * Measures how many small files per second are copied by the copy methods.
+ * Usage: CopyBenchmark directory [number of files] [file size in bytes]
+ * The files are created in a new subdirectory of the given directory, which is deleted afterwards.
+ * Compared are the stream copy of earlier versions, the general path of the copy engine and its small-file path.
+ * @author Christoph Redl
+ */
+public class CopyBenchmark {
+
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws IOException{
+		if (args.length < 1 || args.length > 3){
+			System.out.println("Usage: CopyBenchmark directory [number of files] [file size in bytes]");
+			return;
+		}
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+
+		File root = new File(args[0], "dsync-benchmark-" + System.currentTimeMillis());
+		File source = new File(root, "source");
+		if (!source.mkdirs()){
+			System.err.println("Cannot create \"" + source + "\"");
+			return;
+		}
+		try{
+			byte[] content = new byte[size];
+			Random random = new Random(0);
+			for (int i = 0; i < count; i++){
+				random.nextBytes(content);
+				FileOutputStream fos = new FileOutputStream(new File(source, "f" + i));
+				try{
+					fos.write(content);
+				}finally{
+					fos.close();
+				}
+			}
+
+			CopyEngine general = new CopyEngine();
+			general.setSmallFileLimit(0);
+			CopyEngine small = new CopyEngine();
+			System.out.println(count + " files of " + size + " bytes, best of " + ROUNDS + " rounds:");
+			double streams = 0, generalPath = 0, smallPath = 0;
+			for (int round = 0; round < ROUNDS; round++){
+				streams = Math.max(streams, run(source, new File(root, "streams" + round), null));
+				generalPath = Math.max(generalPath, run(source, new File(root, "general" + round), general));
+				smallPath = Math.max(smallPath, run(source, new File(root, "small" + round), small));
+			}
+			System.out.println(String.format("  Streams:         %10.0f files/s", streams));
+			System.out.println(String.format("  General path:    %10.0f files/s", generalPath));
+			System.out.println(String.format("  Small-file path: %10.0f files/s", smallPath));
+		}finally{
+			delete(root);
+		}
+	}
+
+	/**
+	 * Copies all files of a directory into a new directory.
+	 * @param engine Copy engine (null copies with streams as earlier versions did)
+	 * @return double Files per second
+	 */
+	private static double run(File source, File dest, CopyEngine engine) throws IOException{
+		if (!dest.mkdir()) throw new IOException("Cannot create \"" + dest + "\"");
+		String[] names = source.list();
+		long start = System.nanoTime();
+		for (String name : names){
+			File s = new File(source, name);
+			File d = new File(dest, name);
+			if (engine == null){
+				copyStreams(s, d);
+			}else{
+				engine.copyFile(s, d, FileSnapshot.read(s.toPath(), true));
+			}
+		}
+		double files = names.length / ((System.nanoTime() - start) / 1e9);
+		delete(dest);
+		return files;
+	}
+
+	/**
+	 * Stream copy of earlier versions.
+	 */
+	private static void copyStreams(File source, File dest) throws IOException{
+		if (!source.isFile()) return;
+		long fs = source.length();
+		byte[] bytes = new byte[fs > 1024 * 1024 ? 1024 * 1024 : 1024];
+		FileInputStream fis = new FileInputStream(source);
+		FileOutputStream fos = new FileOutputStream(dest);
+		try{
+			int count;
+			while ((count = fis.read(bytes)) > 0) fos.write(bytes, 0, count);
+		}finally{
+			fos.close();
+			fis.close();
+		}
+		dest.setLastModified(source.lastModified());
+	}
+
+	private static void delete(File file){
+		File[] children = file.listFiles();
+		if (children != null){
+			for (File child : children) delete(child);
+		}
+		file.delete();
+	}
+}
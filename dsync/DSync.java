@@ -2,20 +2,37 @@
 package dsync;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.text.DateFormat;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
+import logic.ActionExecutor;
+import logic.ActionGroupSink;
+import logic.ExecutionJournal;
+import logic.SyncWatcher;
 import logic.Synchronizer;
 
 import datastructures.Action;
 import datastructures.ActionGroup;
 import datastructures.MultiProperties;
+import datastructures.Plan;
+import datastructures.PlanFile;
+import datastructures.PlanStore;
+import datastructures.SelectionModel;
+import datastructures.Throttle;
 
 /**
  * Main class. Version 1.3.
@@ -23,6 +40,11 @@ import datastructures.MultiProperties;
  */
 public class DSync {
 
+	// Milliseconds between checks of the sync file for new throttle limits
+	private static final long THROTTLE_RELOAD_INTERVAL = 2000;
+	// Longer action lists are summarized after changes of the selection (parts can be shown with 'show' and 'filter')
+	private static final int PRINT_LIMIT = 1000;
+
 	public static void main(String[] args){
 
 		String versionString = "2.40, 02.11.2022";
@@ -30,6 +52,32 @@ public class DSync {
 		MultiProperties prop = null;
 		List<ActionGroup> actions = null;
 		DateFormat df = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+
+		// Watch mode: sync file and (optionally) the delay in seconds are given
+		if ((args.length == 2 || args.length == 3) && args[0].compareTo("-watch") == 0){
+			watch(args[1], args.length == 3 ? Integer.parseInt(args[2]) : 2, df);
+			return;
+		}
+
+		// Resume mode: continue an interrupted execution of the sync file
+		if (args.length == 2 && args[0].compareTo("-resume") == 0){
+			resume(args[1], df);
+			return;
+		}
+
+		// Plan mode: save the actions of the sync file to a plan file, which is reviewed and executed later
+		if (args.length == 3 && args[0].compareTo("-plan") == 0){
+			savePlan(args[1], args[2], df);
+			return;
+		}
+		if (args.length == 2 && args[0].compareTo("-review") == 0){
+			reviewPlan(args[1]);
+			return;
+		}
+		if (args.length == 3 && args[0].compareTo("-execute") == 0){
+			executePlan(args[1], args[2], df);
+			return;
+		}
 		
 		switch (args.length){
 			case 4: // Two locations, a bidirectional flag and a reference date are given
@@ -45,7 +93,7 @@ public class DSync {
 					System.out.println("Collecting sync actions ... ");				
 					Synchronizer sync = new Synchronizer();
 					actions = sync.synchronize(args[0], args[1], bidirectional, referencedate);
-					System.out.println("Sync actions ... ok" + " (" + sync.getSyncTime() + " seconds)");
+					System.out.println("Sync actions ... ok" + " (" + sync.getSyncTime() + " seconds, " + sync.getStatistics() + ")");
 				} catch (Exception e) {
 					System.out.println("Error: " + e.getMessage());
 					e.printStackTrace();
@@ -65,7 +113,7 @@ public class DSync {
 					System.out.println("Collecting sync actions ... ");				
 					Synchronizer sync = new Synchronizer();
 					actions = sync.synchronize(args[0], args[1], bidirectional, referenceDate);
-					System.out.println("Sync actions ... ok" + " (" + sync.getSyncTime() + " seconds)");
+					System.out.println("Sync actions ... ok" + " (" + sync.getSyncTime() + " seconds, " + sync.getStatistics() + ")");
 				} catch (Exception e) {
 					System.out.println("Error: " + e.getMessage());
 					e.printStackTrace();
@@ -82,7 +130,7 @@ public class DSync {
 
 					Synchronizer sync = new Synchronizer();
 					actions = sync.synchronize(args[0], args[1], true, referenceDate);
-					System.out.println("Sync actions ... ok" + " (" + sync.getSyncTime() + " seconds)");
+					System.out.println("Sync actions ... ok" + " (" + sync.getSyncTime() + " seconds, " + sync.getStatistics() + ")");
 				} catch (Exception e) {
 					System.out.println("Error: " + e.getMessage());
 					e.printStackTrace();
@@ -106,21 +154,9 @@ public class DSync {
 						//		3. (lowest) syncdate stores as "syncdate" in sync file
 						//		2. syncdate stored in the file references by "lastsyncfile" in sync file
 						//		1. (highest) "referencedate" in syncfile
-						Date referenceDate = null;
-						if (prop.containsKey("referencedate")){
-							referenceDate = DateFormat.getDateInstance(DateFormat.SHORT).parse(prop.getProperty("referencedate"));
-							System.out.println("Using syncdate \"referencedate\" from sync file: " + df.format(referenceDate));
-						}else if (prop.containsKey("lastsyncfile")){
-							BufferedReader br = new BufferedReader(new FileReader(prop.getProperty("lastsyncfile")));
-							referenceDate = new Date(Long.parseLong(br.readLine()));
-							br.close();
-							System.out.println("Using syncdate from lastsyncfile \"" + prop.getProperty("lastsyncfile") + "\": " + df.format(referenceDate));
-						}else if (prop.containsKey("lastsync")){
-							referenceDate = new Date(Long.parseLong(prop.getProperty("lastsync")));
-							System.out.println("Using sync date \"lastsync\" from sync file: " + df.format(referenceDate));
-						}else{
-							referenceDate = new Date(0);
-							System.out.println("Using default reference date: " + df.format(referenceDate));
+						Date referenceDate = readReferenceDate(prop, df);
+						if (getJournalFile(prop, args[0]).exists()){
+							System.out.println("Note: An interrupted execution can be resumed with -resume; it is discarded if actions are executed now");
 						}
 
 						boolean useCache = prop.containsKey("usecache") && new Boolean(prop.getProperty("usecache")).booleanValue();
@@ -132,7 +168,7 @@ public class DSync {
 						System.out.println("Collecting sync actions ... ");
 						Synchronizer sync = new Synchronizer();
 						actions = sync.synchronize(args[0], referenceDate);
-						System.out.println("Sync actions ... ok" + " (" + sync.getSyncTime() + " seconds)");			
+						System.out.println("Sync actions ... ok" + " (" + sync.getSyncTime() + " seconds, " + sync.getStatistics() + ")");			
 					} catch (Exception e) {
 						System.out.println("Error: " + e.getMessage());
 						e.printStackTrace();
@@ -153,13 +189,13 @@ public class DSync {
 				System.out.println("If it is older than the reference date, it is deleted from the location where it exists. The reference date is the earliest possible date (01-01-1970) if no other one is specified. In case a sync file is used, the last synchronization date is automatically stored and used as reference date. In case no sync file is used, a reference date may be given as parameter.");
 				System.out.println("");
 				
-				System.out.println("Usage: You can use the program in the following ways:\n   - pass a sync file as parameter (see below)\n   - pass two locations (directories) as parameters\n   - pass two locations and bidirectional flag (true/false)\n   - pass two locations, bidirectional flag and reference date");
+				System.out.println("Usage: You can use the program in the following ways:\n   - pass a sync file as parameter (see below)\n   - pass -watch, a sync file and (optionally) a delay in seconds to keep the locations synchronized\n   - pass -resume and a sync file to continue an interrupted execution\n   - pass -plan, a sync file and a plan file to save the sync actions for later review and execution\n   - pass -review and a plan file to select the actions of a saved plan\n   - pass -execute, a sync file and a plan file to execute the selected actions of a saved plan\n   - pass two locations (directories) as parameters\n   - pass two locations and bidirectional flag (true/false)\n   - pass two locations, bidirectional flag and reference date");
 				System.out.println("");
 				
 				System.out.println("Default values (for missing parameters) are: bidirectional, reference date is January 1, 1970, 01:00:00 GMT");
 				System.out.println("");
 				
-				System.out.println("Sync file template:\n     synclocations=d1<-->d2;d3-->d4;d5<--d6\n     prefix1=/home/user\n     prefix2=/home/user\n     filter=Name:.*;;Path:.*\n     filterfile=[path]\n     referencedate=01.01.2000\n     lastsync=0     \n     lastsyncfile=[path]\n     usecaching=[boolean]\n     ignoresymboliclinks=[boolean]");
+				System.out.println("Sync file template:\n     synclocations=d1<-->d2;d3-->d4;d5<--d6\n     prefix1=/home/user\n     prefix2=/home/user\n     filter=Name:.*;;Path:.*\n     filterfile=[path]\n     referencedate=01.01.2000\n     lastsync=0     \n     lastsyncfile=[path]\n     usecaching=[boolean]\n     ignoresymboliclinks=[boolean]\n     threads=[number]\n     syncindex=[path]\n     comparemode=[date|hash]\n     hashcache=[path]\n     detectmoves=[boolean]\n     devicelimit=[number]\n     devices=[path]=[name];[path]=[name]\n     prefetch=[boolean]\n     executethreads=[number]\n     executedevicelimit=[number]\n     deltathreshold=[number]\n     deletethreads=[number]\n     verifycopies=[boolean]\n     journal=[path]\n     throttle=[path]=[bytes/s]/[operations/s];[path]=[bytes/s]/[operations/s]");
 				System.out.println("(Note: By default, the reference date is the last synchronization date. This can be overwritten by specifying attribute 'referencedate'.)");
 				break;
 		}
@@ -169,89 +205,33 @@ public class DSync {
 			if (actions != null){
 				if (actions.size() > 0){
 					// Let the user decide which actions to execute
-					String input = "";
-					BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-					boolean shortoutput = true;
-					
-					// Show action list to the user
-					System.out.println("Action list is:");
-					printActions(actions, shortoutput);
-					System.out.println(	"Enter 'ok' to execute the selected actions or 'cancel' to abort.\n" + 
-										"Enter [action-character] ([list of numbers] | * ) to select or unselect actions\n" +
-										"Enter long/short to toggle output details");
-					while (input.compareTo("ok") != 0 && input.compareTo("cancel") != 0){
-	
-						// Input handling
-						System.out.print(": ");
-						input = br.readLine();
-
-						try{
-							if (input.compareTo("ok") == 0 || input.compareTo("cancel") == 0){
-								System.out.println("");
-							}else if (input.compareTo("long") == 0){
-								shortoutput = false;
-
-								// Show modified action list
-								printActions(actions, shortoutput);
-							}else if (input.compareTo("short") == 0){
-								shortoutput = true;
-
-								// Show modified action list
-								printActions(actions, shortoutput);
-							}else if (input.startsWith("show ")){
-								String[] split = input.split(" ");
-								if (split.length != 3) throw new Exception("split expectes 2 arguments (lower and upper bound)");
-								int lowerbound = Integer.parseInt(split[1]);
-								int upperbound = Integer.parseInt(split[2]);
-								if (lowerbound < 1 || upperbound > actions.size()) throw new Exception("Invalid bounds");
-
-								// Show partial action list
-								printActions(actions, shortoutput, lowerbound, upperbound, false, ' ');
-							}else if (input.startsWith("filter ")){
-								String[] splitf = input.split(" ");
-								if (splitf.length != 2 || splitf[1].length() != 1) throw new Exception("filter expectes 1 argument (action character)");
-								char filteractionchar = splitf[1].charAt(0);
-
-								// Show partial action list
-								printActions(actions, shortoutput, 1, actions.size(), true, filteractionchar);
-							}else{
-								char actionChar = input.charAt(0);						
-								String[] nrs = input.substring(1).split(",");
-								for (int j = 0; j < nrs.length; j++){
-									setAction(actions, actionChar, nrs[j]);
-								}
-
-								// Show modified action list
-								printActions(actions, shortoutput);
-							}
-		
-						}catch(Exception e){
-							System.out.println("");
-							System.out.println("Error: " + e.getMessage());
-						}
-					}
-			
-					// ok or cancel?
-					if (input.compareTo("ok") == 0){
+					Plan plan = toPlan(actions);
+					if (selectActions(plan, "execute the selected actions")){
 						// Actually execute the actions on the file system
 						System.out.print("Processing actions ... \n");
-						String log = Action.executeActionList(ActionGroup.getSelectedActions(actions));
+						List<Action> selected = plan.getSelectedActions();
+						// With a sync file, the execution can be resumed after an interruption
+						ExecutionJournal journal = prop != null ? ExecutionJournal.create(getJournalFile(prop, args[0]), new Date(), selected) : null;
+						Timer reload = prop != null ? reloadThrottles(args[0]) : null;
+						String log;
+						try{
+							log = ActionExecutor.fromProperties(prop, args[0]).execute(selected, journal);
+						}finally{
+							if (reload != null) reload.cancel();
+						}
+						if (journal != null) journal.delete();
 						System.out.println("ok");
 						
 						// Write the new last sync date
 						df = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
-						Date now = new Date();
-						if (prop.containsKey("lastsyncfile")){
-							System.out.print("Writing new sync date (" + df.format(now) + ") into \"" + prop.getProperty("lastsyncfile") + "\" ... ");
-							PrintWriter pw = new PrintWriter(prop.getProperty("lastsyncfile"));
-							pw.println((new Long(now.getTime())).toString());
-							pw.close();
-						}else{
-							System.out.print("Writing new sync date (" + df.format(now) + ") into sync file ... ");
-							prop.setProperty("lastsync", (new Long(now.getTime())).toString());
-							prop.store(new FileOutputStream(args[0]), "");
+						writeSyncDate(prop, args[0], new Date(), df);
+
+						// Remember the state of the locations for the next synchronization
+						if (prop.containsKey("syncindex")){
+							System.out.print("Updating sync indexes in \"" + prop.getProperty("syncindex") + "\" ... ");
+							new Synchronizer().updateIndexes(args[0]);
+							System.out.println("ok");
 						}
-						System.out.println("ok");
 						
 						System.out.println("");
 						System.out.println("Log is:");
@@ -274,19 +254,427 @@ public class DSync {
 	}
 
 	/**
-	 * Sets a new action for a given action group or a range of action groups
+	 * Shows the action list and lets the user select actions until 'ok' or 'cancel' is entered.
+	 * The selection is changed through a SelectionModel, such that commands on many action groups are bulk operations.
 	 * @param actions
+	 * @param okText What 'ok' does
+	 * @return boolean True if 'ok' was entered
+	 * @throws IOException
+	 */
+	private static boolean selectActions(Plan actions, String okText) throws IOException{
+		String input = "";
+		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+		boolean shortoutput = true;
+		SelectionModel model = new SelectionModel(actions);
+		
+		// Show action list to the user
+		System.out.println("Action list is:");
+		printActions(actions, model, shortoutput);
+		System.out.println(	"Enter 'ok' to " + okText + " or 'cancel' to abort.\n" + 
+							"Enter [action-character] ([list of numbers] | * ) to select or unselect actions\n" +
+							"Enter select copy|delete|move [path] or unselect [path] to select actions by type and location\n" +
+							"Enter show [lower] [upper] or filter [action-character] to show parts of the list\n" +
+							"Enter long/short to toggle output details");
+		while (input.compareTo("ok") != 0 && input.compareTo("cancel") != 0){
+	
+			// Input handling
+			System.out.print(": ");
+			input = br.readLine();
+			if (input == null) input = "cancel";
+
+			try{
+				if (input.compareTo("ok") == 0 || input.compareTo("cancel") == 0){
+					System.out.println("");
+				}else if (input.compareTo("long") == 0){
+					shortoutput = false;
+
+					// Show modified action list
+					printActions(actions, model, shortoutput);
+				}else if (input.compareTo("short") == 0){
+					shortoutput = true;
+
+					// Show modified action list
+					printActions(actions, model, shortoutput);
+				}else if (input.startsWith("show ")){
+					String[] split = input.split(" ");
+					if (split.length != 3) throw new Exception("split expectes 2 arguments (lower and upper bound)");
+					int lowerbound = Integer.parseInt(split[1]);
+					int upperbound = Integer.parseInt(split[2]);
+					if (lowerbound < 1 || upperbound > actions.size()) throw new Exception("Invalid bounds");
+
+					// Show partial action list
+					printActions(actions, shortoutput, model.range(lowerbound - 1, Math.max(lowerbound - 1, upperbound)));
+				}else if (input.startsWith("filter ")){
+					String[] splitf = input.split(" ");
+					if (splitf.length != 2 || splitf[1].length() != 1) throw new Exception("filter expectes 1 argument (action character)");
+					char filteractionchar = splitf[1].charAt(0);
+
+					// Show partial action list
+					printActions(actions, shortoutput, model.getSelected(filteractionchar));
+				}else if (input.startsWith("select ") || input.compareTo("unselect") == 0 || input.startsWith("unselect ")){
+					selectGroups(model, input);
+
+					// Show modified action list
+					printActions(actions, model, shortoutput);
+				}else{
+					char actionChar = input.charAt(0);						
+					String[] nrs = input.substring(1).split(",");
+					for (int j = 0; j < nrs.length; j++){
+						setAction(model, actionChar, nrs[j]);
+					}
+
+					// Show modified action list
+					printActions(actions, model, shortoutput);
+				}
+		
+			}catch(Exception e){
+				System.out.println("");
+				System.out.println("Error: " + e.getMessage());
+			}
+		}
+		return input.compareTo("ok") == 0;
+	}
+
+	/**
+	 * Executes a 'select' or 'unselect' command: select copy|delete|move [path] selects the action of the given type in all
+	 * action groups (below the path); unselect [path] unselects all action groups (below the path).
+	 * @param model
+	 * @param input
+	 * @throws IllegalArgumentException In case of an invalid command
+	 */
+	private static void selectGroups(SelectionModel model, String input) throws IllegalArgumentException{
+		boolean select = input.startsWith("select ");
+		String arguments = input.substring(select ? "select ".length() : "unselect".length()).trim();
+		EnumSet<Action.Type> types = null;
+		if (select){
+			String type = arguments.split(" ")[0];
+			arguments = arguments.substring(type.length()).trim();
+			if (type.compareTo("copy") == 0) types = EnumSet.of(Action.Type.CopyFile, Action.Type.CopyDirectory, Action.Type.DelAndCopyFile, Action.Type.DelAndCopyDirectory);
+			else if (type.compareTo("delete") == 0) types = EnumSet.of(Action.Type.DeleteFile, Action.Type.DeleteDirectory);
+			else if (type.compareTo("move") == 0) types = EnumSet.of(Action.Type.Move);
+			else throw new IllegalArgumentException("select expects copy, delete or move");
+		}
+		long start = System.nanoTime();
+		BitSet groups = arguments.length() == 0 ? model.all() : model.under(new File(arguments).getAbsolutePath());
+		int count;
+		if (select){
+			count = model.selectType(types, groups);
+		}else{
+			count = groups.cardinality();
+			model.unselect(groups);
+		}
+		System.out.println((select ? "Selected " : "Unselected ") + count + " of " + groups.cardinality() + " action groups"
+				+ (arguments.length() == 0 ? "" : " below \"" + new File(arguments).getAbsolutePath() + "\"")
+				+ " (" + (System.nanoTime() - start) / 1000 + " microseconds)");
+	}
+
+	/**
+	 * Continues an interrupted execution of the actions of a sync file (without analyzing the locations again).
+	 * Afterwards, the date of the interrupted execution is stored as sync date.
+	 * @param syncFile
+	 * @param df
+	 */
+	private static void resume(String syncFile, DateFormat df){
+		try{
+			System.out.print("Reading sync file \"" + syncFile + "\" ... ");
+			MultiProperties prop = new MultiProperties();
+			prop.load(new FileInputStream(syncFile));
+			System.out.println("ok");
+
+			File journalFile = getJournalFile(prop, syncFile);
+			if (!journalFile.exists()){
+				System.out.println("No interrupted execution found in \"" + journalFile + "\"");
+				return;
+			}
+			ExecutionJournal journal = ExecutionJournal.open(journalFile);
+			System.out.println("Resuming execution of " + df.format(journal.getPlanDate()) + ": " + journal.getRemaining() + " of " + journal.getActions().size() + " actions remaining");
+			Timer reload = reloadThrottles(syncFile);
+			String log;
+			try{
+				log = ActionExecutor.fromProperties(prop, syncFile).execute(journal.getActions(), journal);
+			}finally{
+				reload.cancel();
+			}
+			journal.delete();
+			System.out.println("ok");
+
+			// Elements modified after the actions were determined have not been synchronized yet
+			writeSyncDate(prop, syncFile, journal.getPlanDate(), df);
+			if (prop.containsKey("syncindex")){
+				System.out.print("Updating sync indexes in \"" + prop.getProperty("syncindex") + "\" ... ");
+				new Synchronizer().updateIndexes(syncFile);
+				System.out.println("ok");
+			}
+
+			System.out.println("");
+			System.out.println("Log is:");
+			System.out.println(log);
+			System.out.println("");
+			System.out.println("Finished!");
+		} catch (Exception e) {
+			System.out.println("Error: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Determines the actions for the locations of a sync file and saves them to a plan file (without executing them).
+	 * The action groups are written as they are found, such that large plans need not be kept in memory.
+	 * @param syncFile
+	 * @param planFile
+	 * @param df
+	 */
+	private static void savePlan(String syncFile, String planFile, DateFormat df){
+		try{
+			System.out.print("Reading sync file \"" + syncFile + "\" ... ");
+			MultiProperties prop = new MultiProperties();
+			prop.load(new FileInputStream(syncFile));
+			System.out.println("ok");
+			Date referenceDate = readReferenceDate(prop, df);
+
+			System.out.println("Collecting sync actions ... ");
+			Date planDate = new Date();
+			final PlanFile.Writer writer = new PlanFile.Writer(new File(planFile), planDate);
+			try{
+				Synchronizer sync = new Synchronizer();
+				sync.synchronize(syncFile, referenceDate, new ActionGroupSink(){
+					public void add(ActionGroup actionGroup){
+						try{
+							writer.add(actionGroup);
+						}catch(IOException ioe){
+							throw new UncheckedIOException(ioe);
+						}
+					}
+				});
+				System.out.println("Sync actions ... ok" + " (" + sync.getSyncTime() + " seconds, " + sync.getStatistics() + ")");
+				writer.finish();
+			}finally{
+				writer.close();
+			}
+			System.out.println("Plan of " + df.format(planDate) + " with " + writer.size() + " action groups saved to \"" + planFile + "\"");
+		} catch (Exception e) {
+			System.out.println("Error: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Lets the user select the actions of a saved plan; the selection is saved to the plan file.
+	 * @param planFile
+	 */
+	private static void reviewPlan(String planFile){
+		try{
+			PlanFile plan = PlanFile.open(new File(planFile));
+			System.out.println("Plan of " + DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(plan.getPlanDate()) + " with " + plan.size() + " action groups");
+			if (plan.size() == 0){
+				System.out.println("Locations were synchron! Nothing to do.");
+				return;
+			}
+			if (selectActions(plan, "save the selection")){
+				plan.saveSelections();
+				System.out.println("Selection saved to \"" + planFile + "\"");
+			}else{
+				System.out.println("Cancelled, the selection was not changed");
+			}
+		} catch (Exception e) {
+			System.out.println("Error: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Executes the selected actions of a saved plan without confirmation. Actions whose elements were changed since the plan
+	 * was made are skipped; the date of the plan is stored as sync date, such that these elements are synchronized next time.
+	 * @param syncFile
+	 * @param planFile
+	 * @param df
+	 */
+	private static void executePlan(String syncFile, String planFile, DateFormat df){
+		try{
+			System.out.print("Reading sync file \"" + syncFile + "\" ... ");
+			MultiProperties prop = new MultiProperties();
+			prop.load(new FileInputStream(syncFile));
+			System.out.println("ok");
+
+			PlanFile plan = PlanFile.open(new File(planFile));
+			List<Action> selected = plan.getSelectedActions();
+			System.out.println("Executing plan of " + df.format(plan.getPlanDate()) + ": " + selected.size() + " of " + plan.size() + " action groups selected");
+			ExecutionJournal journal = ExecutionJournal.create(getJournalFile(prop, syncFile), plan.getPlanDate(), selected);
+			ActionExecutor executor = ActionExecutor.fromProperties(prop, syncFile);
+			executor.setRevalidate(plan.getPlanDate());
+			Timer reload = reloadThrottles(syncFile);
+			String log;
+			try{
+				log = executor.execute(selected, journal);
+			}finally{
+				reload.cancel();
+			}
+			journal.delete();
+			System.out.println("ok");
+
+			// Elements modified after the plan was made have not been synchronized yet
+			writeSyncDate(prop, syncFile, plan.getPlanDate(), df);
+			if (prop.containsKey("syncindex")){
+				System.out.print("Updating sync indexes in \"" + prop.getProperty("syncindex") + "\" ... ");
+				new Synchronizer().updateIndexes(syncFile);
+				System.out.println("ok");
+			}
+
+			System.out.println("");
+			System.out.println("Log is:");
+			System.out.println(log);
+			System.out.println("");
+			System.out.println("Finished!");
+		} catch (Exception e) {
+			System.out.println("Error: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Applies changes of the throttle limits in a sync file while actions are executed (the file is checked every few seconds).
+	 * @param syncFile
+	 * @return Timer to be cancelled after the execution
+	 */
+	private static Timer reloadThrottles(final String syncFile){
+		Timer timer = new Timer("throttle reload", true);
+		timer.schedule(new TimerTask(){
+			private long lastModified = new File(syncFile).lastModified();
+
+			public void run(){
+				long modified = new File(syncFile).lastModified();
+				if (modified == lastModified) return;
+				lastModified = modified;
+				try{
+					MultiProperties prop = new MultiProperties();
+					FileInputStream fis = new FileInputStream(syncFile);
+					try{
+						prop.load(fis);
+					}finally{
+						fis.close();
+					}
+					Throttle.configure(prop);
+					System.out.println("      Throttle limits reloaded from \"" + syncFile + "\"");
+				}catch(Exception e){
+					// E.g. while the file is being saved; the next modification is tried again
+					System.err.println("      WARNING: Cannot reload throttle limits from \"" + syncFile + "\": " + e.getMessage());
+				}
+			}
+		}, THROTTLE_RELOAD_INTERVAL, THROTTLE_RELOAD_INTERVAL);
+		return timer;
+	}
+
+	/**
+	 * Returns the execution journal of a sync file ("journal", by default the sync file name with suffix ".journal").
+	 * @param prop
+	 * @param syncFile
+	 * @return File
+	 */
+	private static File getJournalFile(MultiProperties prop, String syncFile){
+		return new File(prop.containsKey("journal") ? prop.getProperty("journal") : syncFile + ".journal");
+	}
+
+	/**
+	 * Keeps the locations of a sync file synchronized until the program is terminated.
+	 * Selected actions are executed without confirmation; the sync date is updated after each cycle.
+	 * @param syncFile
+	 * @param delay Number of seconds without further changes before changed elements are synchronized
+	 * @param df
+	 */
+	private static void watch(final String syncFile, int delay, final DateFormat df){
+		try{
+			System.out.print("Reading sync file \"" + syncFile + "\" ... ");
+			final MultiProperties prop = new MultiProperties();
+			prop.load(new FileInputStream(syncFile));
+			System.out.println("ok");
+			Date referenceDate = readReferenceDate(prop, df);
+
+			System.out.println("Watching sync locations (delay: " + delay + " seconds)");
+			new SyncWatcher(syncFile, delay * 1000L){
+				protected void cycleCompleted(Date syncDate, boolean fullRescan, Collection<File> modified) throws Exception{
+					writeSyncDate(prop, syncFile, syncDate, df);
+
+					// Sync indexes are only used for full rescans, but they have to describe the state after each cycle
+					if (prop.containsKey("syncindex") && (fullRescan || !modified.isEmpty())){
+						System.out.print("Updating sync indexes in \"" + prop.getProperty("syncindex") + "\" ... ");
+						if (fullRescan){
+							new Synchronizer().updateIndexes(syncFile);
+						}else{
+							new Synchronizer().updateIndexes(syncFile, modified);
+						}
+						System.out.println("ok");
+					}
+				}
+			}.run(referenceDate);
+		} catch (Exception e) {
+			System.out.println("Error: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the reference date from a sync file ("referencedate", "lastsyncfile" or "lastsync").
+	 * @param prop
+	 * @param df
+	 * @return Date
+	 * @throws Exception
+	 */
+	private static Date readReferenceDate(MultiProperties prop, DateFormat df) throws Exception{
+		Date referenceDate = null;
+		if (prop.containsKey("referencedate")){
+			referenceDate = DateFormat.getDateInstance(DateFormat.SHORT).parse(prop.getProperty("referencedate"));
+			System.out.println("Using syncdate \"referencedate\" from sync file: " + df.format(referenceDate));
+		}else if (prop.containsKey("lastsyncfile")){
+			BufferedReader br = new BufferedReader(new FileReader(prop.getProperty("lastsyncfile")));
+			referenceDate = new Date(Long.parseLong(br.readLine()));
+			br.close();
+			System.out.println("Using syncdate from lastsyncfile \"" + prop.getProperty("lastsyncfile") + "\": " + df.format(referenceDate));
+		}else if (prop.containsKey("lastsync")){
+			referenceDate = new Date(Long.parseLong(prop.getProperty("lastsync")));
+			System.out.println("Using sync date \"lastsync\" from sync file: " + df.format(referenceDate));
+		}else{
+			referenceDate = new Date(0);
+			System.out.println("Using default reference date: " + df.format(referenceDate));
+		}
+		return referenceDate;
+	}
+
+	/**
+	 * Writes the new last sync date (into the lastsyncfile if defined, otherwise into the sync file).
+	 * @param prop
+	 * @param syncFile
+	 * @param now
+	 * @param df
+	 * @throws Exception
+	 */
+	private static void writeSyncDate(MultiProperties prop, String syncFile, Date now, DateFormat df) throws Exception{
+		if (prop.containsKey("lastsyncfile")){
+			System.out.print("Writing new sync date (" + df.format(now) + ") into \"" + prop.getProperty("lastsyncfile") + "\" ... ");
+			PrintWriter pw = new PrintWriter(prop.getProperty("lastsyncfile"));
+			pw.println((new Long(now.getTime())).toString());
+			pw.close();
+		}else{
+			System.out.print("Writing new sync date (" + df.format(now) + ") into sync file ... ");
+			prop.setProperty("lastsync", (new Long(now.getTime())).toString());
+			prop.store(new FileOutputStream(syncFile), "");
+		}
+		System.out.println("ok");
+	}
+
+	/**
+	 * Selects an action character in a single action group or a range of action groups.
+	 * @param model
 	 * @param actionChar
 	 * @param nr: Either a single action id or a range of action ids
 	 * @param IllegalArgumentException In case of invalid ids
 	 */
-	private static void setAction(List<ActionGroup> actions, char actionChar, String nr) throws IllegalArgumentException{
+	private static void setAction(SelectionModel model, char actionChar, String nr) throws IllegalArgumentException{
 		// Range of ids?
 		int lowerbound, upperbound;
 		try{
 			if (nr.compareTo("*") == 0){
 				lowerbound = 1;
-				upperbound = actions.size();
+				upperbound = model.size();
 			}else if (nr.contains("-")){
 				// Extract lower and upper bound
 				lowerbound = Integer.parseInt(nr.substring(0, nr.indexOf("-")));
@@ -300,59 +688,73 @@ public class DSync {
 		}catch(NumberFormatException nfe){
 			throw new IllegalArgumentException(nr + " is not a valid number or range");
 		}
-		if (lowerbound < 1 || lowerbound > actions.size()) throw new IllegalArgumentException(lowerbound + " is out of bounds");
-		if (upperbound < 1 || upperbound > actions.size()) throw new IllegalArgumentException(upperbound + " is out of bounds");
+		if (lowerbound < 1 || lowerbound > model.size()) throw new IllegalArgumentException(lowerbound + " is out of bounds");
+		if (upperbound < 1 || upperbound > model.size()) throw new IllegalArgumentException(upperbound + " is out of bounds");
 		if (upperbound <  lowerbound) throw new IllegalArgumentException(nr + " is invalid since " + upperbound + "<" + lowerbound);
 		
-		// Check if all actions in range support the selected action character
-		for (int index = lowerbound; index <= upperbound; index++){
-			if (!(actions.get(index - 1).supportsAction(actionChar) || actionChar == '+' || actionChar == '-')) throw new IllegalArgumentException("Action '" + actionChar + "' is not supported by all selected actions");
-		}
-		
-		// Actually set the actions
-		for (int index = lowerbound; index <= upperbound; index++){
-			// Recognize shortcut for unselection and selection of first action
-			switch(actionChar){
-				case '+':
-					actions.get(index - 1).selectAction(0);
-					break;
-				case '-':
-					actions.get(index - 1).unselectAction();
-					break;
-				default:
-					actions.get(index - 1).selectAction(actionChar);
-					break;
-			}
+		// Actually set the actions (recognize shortcut for unselection and selection of first action)
+		BitSet range = model.range(lowerbound - 1, upperbound);
+		switch(actionChar){
+			case '+':
+				model.selectFirst(range);
+				break;
+			case '-':
+				model.unselect(range);
+				break;
+			default:
+				// Fails if not all actions in range support the selected action character
+				model.select(actionChar, range);
+				break;
 		}
 	}
+
+	/**
+	 * Returns a list of action groups as plan (lists which are no plan are copied).
+	 * @param actions
+	 * @return Plan
+	 */
+	private static Plan toPlan(List<ActionGroup> actions){
+		if (actions instanceof Plan) return (Plan)actions;
+		PlanStore plan = new PlanStore();
+		plan.addAll(actions);
+		return plan;
+	}
 	
 	/**
-	 * Prints a list of action groups and marks the currently selected actions 
+	 * Prints a list of action groups and marks the currently selected actions; long lists are summarized.
 	 * @param actionGroup
+	 * @param model
 	 */
-	private static void printActions(List<ActionGroup> actionGroup, boolean shortoutput){
-		printActions(actionGroup, shortoutput, 1, actionGroup.size(), false, ' ');
+	private static void printActions(List<ActionGroup> actionGroup, SelectionModel model, boolean shortoutput){
+		if (actionGroup.size() <= PRINT_LIMIT){
+			printActions(actionGroup, shortoutput, model.all());
+			return;
+		}
+		StringBuilder summary = new StringBuilder(actionGroup.size() + " action groups:");
+		for (char c : model.getActionChars()) summary.append(" " + model.getSelectedCount(c) + " with '" + c + "' selected,");
+		summary.append(" " + model.getUnselectedCount() + " unselected");
+		System.out.println(summary.toString());
+		System.out.println("(Use show [lower] [upper] or filter [action-character] to list action groups)");
+		System.out.flush();
 	}
-	private static void printActions(List<ActionGroup> actionGroup, boolean shortoutput, int lowerbound, int upperbound, boolean filterbychar, char filteractionchar){
+	private static void printActions(List<ActionGroup> actionGroup, boolean shortoutput, BitSet indexes){
 		int longestLine = 0;
 		StringBuilder output = new StringBuilder("");
-		for (int i = lowerbound; i <= upperbound; i++){
+		for (int i = indexes.nextSetBit(0) + 1; i > 0; i = indexes.nextSetBit(i) + 1){
 			ActionGroup currentActionGroup = actionGroup.get(i - 1);
 			
-			if (!filterbychar || (currentActionGroup.getSelectedActionChar() != null && currentActionGroup.getSelectedActionChar().charValue() == filteractionchar)){
-				String nr = (new Integer(i)).toString();
-				output.append("[" + nr + "] ");
-				String[] lines = currentActionGroup.toString(shortoutput).split("\n"); 
-				for (int lineIndex = 0; lineIndex < lines.length; lineIndex++){
-					if (lineIndex > 0){
-						output.append("\n");
-						for (int j = 0; j < nr.length() + 3; j++) output.append(" ");
-					}
-					output.append(lines[lineIndex]);
-					longestLine = Math.max(longestLine, lines[lineIndex].length() + nr.length() + 3);
+			String nr = (new Integer(i)).toString();
+			output.append("[" + nr + "] ");
+			String[] lines = currentActionGroup.toString(shortoutput).split("\n"); 
+			for (int lineIndex = 0; lineIndex < lines.length; lineIndex++){
+				if (lineIndex > 0){
+					output.append("\n");
+					for (int j = 0; j < nr.length() + 3; j++) output.append(" ");
 				}
-				output.append("\n");
+				output.append(lines[lineIndex]);
+				longestLine = Math.max(longestLine, lines[lineIndex].length() + nr.length() + 3);
 			}
+			output.append("\n");
 		}
 		for (int j = 0; j < longestLine; j++) System.out.print("-");
 		System.out.println("");
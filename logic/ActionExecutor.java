@@ -0,0 +1,371 @@
+package logic;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Pattern;
+
+import datastructures.Action;
+import datastructures.CopyEngine;
+import datastructures.DeleteEngine;
+import datastructures.FileSnapshot;
+import datastructures.MultiProperties;
+import datastructures.Throttle;
+
+/**
+ * Executes a list of actions on several threads.
+ * An action waits for all earlier actions which access the same path or a path above or below it, unless both only read
+ * (e.g. a directory is created before its children are copied into it, and a replaced element is deleted before it is copied);
+ * all other actions run concurrently. Hence the result is the same as when executing the actions one after another.
+ * Copies of hard links of the same file wait for the first copy, to which they are linked (see Action.assignLinkTargets).
+ * The number of concurrent actions per device (of the modified path, see Synchronizer.getDeviceGroup) is limited.
+ * The log lists the actions in the given order, independent of the order of execution.
+ * @author Christoph Redl
+ */
+public class ActionExecutor {
+
+	/**
+	 * Node of the tree of accessed paths: the last action which modified the path and the actions which read it since.
+	 */
+	private static class PathNode{
+		Map<String, PathNode> children;
+		int writer = -1;
+		List<Integer> readers;
+
+		PathNode getChild(String name){
+			if (children == null) children = new HashMap<String, PathNode>();
+			PathNode child = children.get(name);
+			if (child == null){
+				child = new PathNode();
+				children.put(name, child);
+			}
+			return child;
+		}
+
+		/**
+		 * Adds the actions at this node which conflict with a new access.
+		 */
+		void conflicts(boolean write, Set<Integer> dependencies){
+			if (writer >= 0) dependencies.add(writer);
+			if (write && readers != null) dependencies.addAll(readers);
+		}
+
+		/**
+		 * Adds the actions below this node which conflict with a new access.
+		 */
+		void subtreeConflicts(boolean write, Set<Integer> dependencies){
+			if (children == null) return;
+			for (PathNode child : children.values()){
+				child.conflicts(write, dependencies);
+				child.subtreeConflicts(write, dependencies);
+			}
+		}
+	}
+
+	private final int threads;
+	private final int deviceLimit;
+	private final Map<String, String> devices;
+	// Device groups by directory
+	private final Map<String, String> deviceGroups = new ConcurrentHashMap<String, String>();
+	// Receives the hashes of verified copies (null if they are not stored)
+	private HashCache hashCache = null;
+	// Skip actions whose elements were changed since the actions were determined at this date (null if they are not checked)
+	private Date revalidateSince = null;
+
+	/**
+	 * Constructor
+	 * @param threads Number of actions which may be executed concurrently (1 executes the actions one after another)
+	 * @param deviceLimit Number of actions which may modify the same device concurrently
+	 * @param devices Configured device groups by path (see Synchronizer.readDevices)
+	 * @throws IllegalArgumentException If threads or deviceLimit is smaller than 1
+	 */
+	public ActionExecutor(int threads, int deviceLimit, Map<String, String> devices) throws IllegalArgumentException{
+		if (threads < 1 || deviceLimit < 1) throw new IllegalArgumentException("Number of threads and device limit must be at least 1");
+		this.threads = threads;
+		this.deviceLimit = deviceLimit;
+		this.devices = devices;
+	}
+
+	/**
+	 * Creates an executor as configured in a sync file (see below); hashes of verified copies are only stored if "hashcache" is set.
+	 * @param prop Properties of the sync file (null executes the actions one after another)
+	 * @return ActionExecutor
+	 */
+	public static ActionExecutor fromProperties(MultiProperties prop){
+		return fromProperties(prop, null);
+	}
+
+	/**
+	 * Creates an executor as configured in a sync file ("executethreads", "executedevicelimit" and "devices").
+	 * The copy engine is configured as well ("deltathreshold" in MiB, 0 disables delta mode; "verifycopies"), and so are the delete engine
+	 * ("deletethreads") and the throttles ("throttle"). Hashes of verified copies are stored in the hash cache of the sync file
+	 * ("hashcache", by default the sync file name with suffix ".hashes"), such that later comparisons by hash need not read the files.
+	 * @param prop Properties of the sync file (null executes the actions one after another)
+	 * @param syncFile Path of the sync file (may be null)
+	 * @return ActionExecutor
+	 */
+	public static ActionExecutor fromProperties(MultiProperties prop, String syncFile){
+		if (prop == null) return new ActionExecutor(1, 1, new HashMap<String, String>());
+		Throttle.configure(prop);
+		HashCache hashCache = null;
+		if (prop.containsKey("verifycopies") && Boolean.parseBoolean(prop.getProperty("verifycopies"))){
+			if (prop.containsKey("hashcache") || syncFile != null) hashCache = HashCache.load(new File(prop.containsKey("hashcache") ? prop.getProperty("hashcache") : syncFile + ".hashes"));
+			final HashCache cache = hashCache;
+			CopyEngine.getDefault().setVerify(true, cache == null ? null : new CopyEngine.VerifyListener(){
+				public void verified(File source, FileSnapshot sourceSnapshot, File dest, FileSnapshot destSnapshot, byte[] hash){
+					cache.put(source, sourceSnapshot, hash);
+					cache.put(dest, destSnapshot, hash);
+				}
+			});
+		}else{
+			CopyEngine.getDefault().setVerify(false, null);
+		}
+		if (prop.containsKey("deletethreads")) DeleteEngine.getDefault().setThreads(Integer.parseInt(prop.getProperty("deletethreads")));
+		if (prop.containsKey("deltathreshold")) CopyEngine.getDefault().setDeltaThreshold(Long.parseLong(prop.getProperty("deltathreshold")) << 20);
+		int threads = prop.containsKey("executethreads") ? Integer.parseInt(prop.getProperty("executethreads")) : 1;
+		int deviceLimit = prop.containsKey("executedevicelimit") ? Integer.parseInt(prop.getProperty("executedevicelimit")) : threads;
+		ActionExecutor executor = new ActionExecutor(threads, deviceLimit, Synchronizer.readDevices(prop));
+		executor.hashCache = hashCache;
+		return executor;
+	}
+
+	/**
+	 * Sets whether actions are skipped (and reported as failed) if their elements were changed since the actions were determined
+	 * (see Action.findChange), e.g. when the actions of a saved plan are executed later. Entries of deleted directories which
+	 * were modified after the date are kept (see Action.setKeepModifiedAfter).
+	 * @param since Date when the actions were determined (null if actions are not checked)
+	 */
+	public void setRevalidate(Date since){
+		this.revalidateSince = since;
+	}
+
+	/**
+	 * Executes a list of actions.
+	 * @param actions
+	 * @return log (in the order of the actions)
+	 * @throws InterruptedException
+	 */
+	public String execute(List<Action> actions) throws InterruptedException{
+		return execute(actions, null);
+	}
+
+	/**
+	 * Executes a list of actions and records the progress in a journal. Actions which the journal reports as completed are skipped,
+	 * interrupted file copies are continued.
+	 * @param actions
+	 * @param journal (may be null)
+	 * @return log (in the order of the actions)
+	 * @throws InterruptedException
+	 */
+	public String execute(List<Action> actions, ExecutionJournal journal) throws InterruptedException{
+		try{
+			if (threads == 1 && journal == null && revalidateSince == null) return Action.executeActionList(actions);
+			return executeConcurrently(actions, journal);
+		}finally{
+			if (hashCache != null){
+				try{
+					hashCache.save();
+				}catch(IOException ioe){
+					System.err.println("      WARNING: Cannot write hash cache: " + ioe.getMessage());
+				}
+			}
+		}
+	}
+
+	private String executeConcurrently(final List<Action> actions, final ExecutionJournal journal) throws InterruptedException{
+		Action.assignLinkTargets(actions);
+		final int count = actions.size();
+		final List<List<Integer>> dependents = buildDependencies(actions);
+		final AtomicIntegerArray pending = new AtomicIntegerArray(count);
+		for (List<Integer> d : dependents){
+			for (int j : d) pending.incrementAndGet(j);
+		}
+
+		final String[] log = new String[count];
+		final ConcurrentHashMap<String, Semaphore> deviceLimits = new ConcurrentHashMap<String, Semaphore>();
+		final CountDownLatch done = new CountDownLatch(count);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try{
+			// Tasks submit their dependents when they are the last action these wait for
+			final Runnable[] tasks = new Runnable[count];
+			for (int i = 0; i < count; i++){
+				final int index = i;
+				tasks[i] = new Runnable(){
+					public void run(){
+						try{
+							Action action = actions.get(index);
+							if (journal != null && (journal.isCompleted(index) || isApplied(action))){
+								log[index] = "# Completed before the interruption: " + action.getType() + " \"" + action.getSource() + "\"" + (action.getDestination() != null ? " to \"" + action.getDestination() + "\"" : "");
+								return;
+							}
+							if (revalidateSince != null){
+								String change = action.findChange();
+								if (change != null){
+									log[index] = "! Skipped action: [" + action.toString() + "], " + change;
+									if (journal != null) journal.completed(index, false);
+									return;
+								}
+								action.setKeepModifiedAfter(revalidateSince.getTime());
+							}
+							Semaphore limit = getDeviceLimit(deviceLimits, action);
+							limit.acquireUninterruptibly();
+							try{
+								System.out.println("  " + (index + 1) + " of " + count + "\n" + action.toString());
+								if (journal == null){
+									log[index] = action.executeLogged();
+								}else{
+									log[index] = action.executeLogged(journal.getResumeOffset(index), new CopyEngine.ProgressListener(){
+										public void progress(FileSnapshot source, long copied){
+											journal.progress(index, source, copied);
+										}
+									});
+									journal.completed(index, log[index].startsWith("#"));
+								}
+							}finally{
+								limit.release();
+							}
+						}catch(RuntimeException e){
+							log[index] = "! Failed to execute action: [" + actions.get(index).toString() + "], " + e.getMessage();
+						}finally{
+							for (int j : dependents.get(index)){
+								if (pending.decrementAndGet(j) == 0) executor.execute(tasks[j]);
+							}
+							done.countDown();
+						}
+					}
+				};
+			}
+			for (int i = 0; i < count; i++){
+				if (pending.get(i) == 0) executor.execute(tasks[i]);
+			}
+			done.await();
+		}finally{
+			executor.shutdownNow();
+		}
+		Action.printCopyStatistics();
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++){
+			if (i > 0) sb.append("\n");
+			sb.append(log[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Determines which actions have to wait for which earlier actions.
+	 * @param actions
+	 * @return List<List<Integer>> For each action the later actions which have to wait for it
+	 */
+	static List<List<Integer>> buildDependencies(List<Action> actions){
+		List<List<Integer>> dependents = new ArrayList<List<Integer>>(actions.size());
+		PathNode root = new PathNode();
+		for (int i = 0; i < actions.size(); i++){
+			dependents.add(new ArrayList<Integer>(0));
+			Action action = actions.get(i);
+			String[] paths = getPaths(action);
+			boolean[] writes = getWrites(action);
+
+			// Collect the conflicts of all accesses before recording them, such that an action does not conflict with itself
+			Set<Integer> dependencies = new HashSet<Integer>();
+			List<PathNode> nodes = new ArrayList<PathNode>(paths.length);
+			for (int p = 0; p < paths.length; p++){
+				PathNode node = root;
+				for (String name : new File(paths[p]).getAbsolutePath().split(Pattern.quote(File.separator))){
+					if (name.length() == 0) continue;
+					node.conflicts(writes[p], dependencies);
+					node = node.getChild(name);
+				}
+				node.conflicts(writes[p], dependencies);
+				node.subtreeConflicts(writes[p], dependencies);
+				nodes.add(node);
+			}
+			for (int d : dependencies) dependents.get(d).add(i);
+
+			for (int p = 0; p < paths.length; p++){
+				PathNode node = nodes.get(p);
+				if (writes[p]){
+					// Later accesses below this path depend on this action, which depends on all earlier ones
+					node.children = null;
+					node.readers = null;
+					node.writer = i;
+				}else{
+					if (node.readers == null) node.readers = new ArrayList<Integer>(1);
+					node.readers.add(i);
+				}
+			}
+		}
+		return dependents;
+	}
+
+	/**
+	 * Checks if an action which cannot be repeated was already executed although it was not recorded as completed
+	 * (the journal is not forced to disk after each action).
+	 */
+	private static boolean isApplied(Action action){
+		return action.getType() == Action.Type.Move && !new File(action.getSource()).exists() && new File(action.getDestination()).exists();
+	}
+
+	/**
+	 * Returns the paths accessed by an action (a copy which recreates a hard link reads the copy it links to).
+	 */
+	private static String[] getPaths(Action action){
+		if (action.getLinkTarget() != null) return new String[]{ action.getSource(), action.getDestination(), action.getLinkTarget() };
+		return action.getDestination() == null ? new String[]{ action.getSource() } : new String[]{ action.getSource(), action.getDestination() };
+	}
+
+	/**
+	 * Returns for each path of getPaths if it is modified by the action.
+	 */
+	private static boolean[] getWrites(Action action){
+		switch (action.getType()){
+			case CopyFile:
+			case CopyDirectory:
+			case DelAndCopyFile:
+			case DelAndCopyDirectory:
+				return action.getLinkTarget() != null ? new boolean[]{ false, true, false } : new boolean[]{ false, true };
+			default:
+				return action.getDestination() == null ? new boolean[]{ true } : new boolean[]{ true, true };
+		}
+	}
+
+	/**
+	 * Returns the semaphore of the device modified by an action.
+	 */
+	private Semaphore getDeviceLimit(ConcurrentHashMap<String, Semaphore> deviceLimits, Action action){
+		String modified = action.getDestination() != null ? action.getDestination() : action.getSource();
+		String group = getDeviceGroup(new File(modified).getAbsoluteFile().getParentFile());
+		Semaphore limit = deviceLimits.get(group);
+		if (limit == null){
+			Semaphore newLimit = new Semaphore(deviceLimit);
+			limit = deviceLimits.putIfAbsent(group, newLimit);
+			if (limit == null) limit = newLimit;
+		}
+		return limit;
+	}
+
+	/**
+	 * Returns the device group of a directory (of its nearest existing ancestor if it does not exist yet).
+	 */
+	private String getDeviceGroup(File directory){
+		if (directory == null) return "";
+		String path = directory.getPath();
+		String group = deviceGroups.get(path);
+		if (group == null){
+			group = directory.exists() ? Synchronizer.getDeviceGroup(path, devices) : getDeviceGroup(directory.getParentFile());
+			deviceGroups.put(path, group);
+		}
+		return group;
+	}
+}
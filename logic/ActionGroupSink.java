@@ -0,0 +1,16 @@
+package logic;
+
+import datastructures.ActionGroup;
+
+/**
+ * Receives the action groups found by the synchronizer in traversal order, as soon as they are found.
+ * @author Christoph Redl
+ */
+public interface ActionGroupSink {
+
+	/**
+	 * Called for each action group (from the thread which called the synchronizer).
+	 * @param actionGroup
+	 */
+	public void add(ActionGroup actionGroup);
+}
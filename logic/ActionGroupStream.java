@@ -0,0 +1,131 @@
+package logic;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import datastructures.ActionGroup;
+
+/**
+ * Iterator over action groups which are produced by a background thread.
+ * At most a fixed number of action groups is buffered; the producer waits while the buffer is full.
+ * A consumer which stops before the end of the stream must close it, such that the producer is stopped.
+ * @author Christoph Redl
+ */
+public abstract class ActionGroupStream implements Iterator<ActionGroup>, ActionGroupSink, Closeable {
+
+	// Marks the end of the stream in the buffer
+	private static final ActionGroup END = new ActionGroup();
+
+	private final BlockingQueue<ActionGroup> buffer;
+	private ActionGroup next = null;
+	private volatile Exception error = null;
+	private boolean started = false;
+	private Thread producer = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 * @param capacity Maximum number of buffered action groups
+	 */
+	public ActionGroupStream(int capacity){
+		buffer = new ArrayBlockingQueue<ActionGroup>(capacity);
+	}
+
+	/**
+	 * Produces the action groups by passing them to add.
+	 * @throws Exception
+	 */
+	protected abstract void produce() throws Exception;
+
+	/**
+	 * Starts the producer thread (called on first access if not called before).
+	 */
+	public synchronized void start(){
+		if (started || closed) return;
+		started = true;
+		producer = new Thread("dsync-producer"){
+			public void run(){
+				try{
+					produce();
+				}catch(Exception e){
+					error = e;
+				}finally{
+					try{
+						put(END);
+					}catch(IllegalStateException e){
+						// The stream was closed
+					}
+				}
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	/**
+	 * Adds an action group to the buffer (waits while the buffer is full).
+	 * @param actionGroup
+	 */
+	@Override
+	public void add(ActionGroup actionGroup){
+		// Aborts the producer
+		if (closed) throw new IllegalStateException("Stream was closed");
+		put(actionGroup);
+	}
+
+	private void put(ActionGroup actionGroup){
+		try{
+			buffer.put(actionGroup);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(closed ? "Stream was closed" : "Interrupted while waiting for the consumer");
+		}
+	}
+
+	/**
+	 * Stops the producer and discards the buffered action groups. The producer stops when it adds the next action group
+	 * (waiting for the buffer is interrupted), which releases the resources of the comparison.
+	 */
+	@Override
+	public synchronized void close(){
+		if (closed) return;
+		closed = true;
+		if (producer != null) producer.interrupt();
+		buffer.clear();
+		next = null;
+	}
+
+	@Override
+	public boolean hasNext(){
+		if (closed) return false;
+		start();
+		if (next == null){
+			try{
+				next = buffer.take();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the producer");
+			}
+		}
+		if (next == END){
+			if (error != null) throw new IllegalStateException(error.getMessage(), error);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public ActionGroup next(){
+		if (!hasNext()) throw new NoSuchElementException();
+		ActionGroup result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void remove(){
+		throw new UnsupportedOperationException();
+	}
+}
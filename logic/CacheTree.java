@@ -0,0 +1,255 @@
+package logic;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact in-memory image of a directory tree, used by the file system cache.
+ * Every entry is a node id; names are interned path segments, dates and sizes are stored in primitive arrays
+ * and the children of each node are a sorted range of an int array. The file keys of files are kept such that
+ * hard links are recognized as with uncached locations.
+ * @author Christoph Redl
+ */
+class CacheTree {
+
+	static final byte DIRECTORY = 1;
+	static final byte FILE = 2;
+	// Attributes of symbolic links describe the link itself; these are read from the file system on demand
+	static final byte LINK = 4;
+
+	private final String root;
+	private int count = 0;
+	private String[] names = new String[1024];
+	private long[] lastModified = new long[1024];
+	private long[] size = new long[1024];
+	private byte[] flags = new byte[1024];
+	private Object[] fileKeys = new Object[1024];
+	private int fileKeyCount;
+	private int[] childStart;
+	private int[] childIds;
+	private int uniqueNames;
+	private long uniqueNameChars;
+
+	/**
+	 * Reads a directory tree.
+	 * @param rootPath Absolute path of the root directory
+	 * @throws IOException
+	 */
+	CacheTree(String rootPath) throws IOException{
+		this.root = rootPath;
+		final Map<String, String> interned = new HashMap<String, String>();
+		final int[][] parentHolder = new int[][]{ new int[1024] };
+
+		Files.walkFileTree(Paths.get(rootPath), new SimpleFileVisitor<Path>(){
+			// Node ids of the directories on the current path
+			int[] stack = new int[64];
+			int depth = 0;
+
+			int add(Path p, BasicFileAttributes attrs, byte type){
+				if (count == names.length) grow();
+				if (count == parentHolder[0].length) parentHolder[0] = Arrays.copyOf(parentHolder[0], count * 2);
+				String name = count == 0 ? "" : p.getFileName().toString();
+				String internedName = interned.get(name);
+				if (internedName == null){
+					interned.put(name, name);
+					internedName = name;
+					uniqueNameChars += name.length();
+				}
+				names[count] = internedName;
+				flags[count] = type;
+				if (type != LINK){
+					lastModified[count] = attrs.lastModifiedTime().toMillis();
+					size[count] = attrs.size();
+				}
+				if (type == FILE && attrs.fileKey() != null){
+					fileKeys[count] = attrs.fileKey();
+					fileKeyCount++;
+				}
+				parentHolder[0][count] = depth == 0 ? -1 : stack[depth - 1];
+				return count++;
+			}
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs){
+				int id = add(dir, attrs, DIRECTORY);
+				if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+				stack[depth++] = id;
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs){
+				add(file, attrs, attrs.isSymbolicLink() ? LINK : FILE);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException ioe){
+				return ioe == null ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException ioe){
+				depth--;
+				return ioe == null ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+			}
+		});
+		uniqueNames = interned.size();
+
+		// Trim arrays
+		names = Arrays.copyOf(names, count);
+		lastModified = Arrays.copyOf(lastModified, count);
+		size = Arrays.copyOf(size, count);
+		flags = Arrays.copyOf(flags, count);
+		fileKeys = Arrays.copyOf(fileKeys, count);
+
+		// Build the child ranges (children of node i are childIds[childStart[i] .. childStart[i + 1] - 1], sorted by name)
+		int[] parent = parentHolder[0];
+		childStart = new int[count + 1];
+		for (int i = 1; i < count; i++) childStart[parent[i] + 1]++;
+		for (int i = 0; i < count; i++) childStart[i + 1] += childStart[i];
+		childIds = new int[Math.max(count - 1, 0)];
+		int[] fill = Arrays.copyOf(childStart, count);
+		for (int i = 1; i < count; i++) childIds[fill[parent[i]]++] = i;
+		int[] tmp = new int[childIds.length];
+		for (int i = 0; i < count; i++){
+			if (childStart[i + 1] - childStart[i] > 1) sortByName(childIds, tmp, childStart[i], childStart[i + 1]);
+		}
+	}
+
+	private void grow(){
+		int capacity = names.length * 2;
+		names = Arrays.copyOf(names, capacity);
+		lastModified = Arrays.copyOf(lastModified, capacity);
+		size = Arrays.copyOf(size, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		fileKeys = Arrays.copyOf(fileKeys, capacity);
+	}
+
+	/**
+	 * Merge sort of a range of node ids by their names.
+	 */
+	private void sortByName(int[] a, int[] tmp, int from, int to){
+		if (to - from < 2) return;
+		int mid = (from + to) >>> 1;
+		sortByName(a, tmp, from, mid);
+		sortByName(a, tmp, mid, to);
+		int i = from, j = mid, k = from;
+		while (i < mid && j < to) tmp[k++] = names[a[i]].compareTo(names[a[j]]) <= 0 ? a[i++] : a[j++];
+		while (i < mid) tmp[k++] = a[i++];
+		while (j < to) tmp[k++] = a[j++];
+		System.arraycopy(tmp, from, a, from, to - from);
+	}
+
+	/**
+	 * Looks up an absolute path.
+	 * @param path
+	 * @return int Node id or -1, if the path is not in the tree
+	 */
+	int lookup(String path){
+		if (count == 0 || !path.startsWith(root)) return -1;
+		int start = root.length();
+		if (start < path.length()){
+			if (path.charAt(start) == File.separatorChar) start++;
+			else if (!root.endsWith(File.separator)) return -1;
+		}
+		int node = 0;
+		while (node != -1 && start < path.length()){
+			int end = path.indexOf(File.separatorChar, start);
+			if (end == -1) end = path.length();
+			node = child(node, path.substring(start, end));
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/**
+	 * Looks up a child by name (binary search).
+	 * @param node
+	 * @param name
+	 * @return int Node id or -1, if there is no such child
+	 */
+	int child(int node, String name){
+		int low = childStart[node];
+		int high = childStart[node + 1] - 1;
+		while (low <= high){
+			int mid = (low + high) >>> 1;
+			int cmp = names[childIds[mid]].compareTo(name);
+			if (cmp < 0) low = mid + 1;
+			else if (cmp > 0) high = mid - 1;
+			else return childIds[mid];
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the names of the children of a node (sorted).
+	 * @param node
+	 * @return String[]
+	 */
+	String[] list(int node){
+		String[] result = new String[childStart[node + 1] - childStart[node]];
+		for (int i = 0; i < result.length; i++) result[i] = names[childIds[childStart[node] + i]];
+		return result;
+	}
+
+	boolean isDirectory(int node){
+		return flags[node] == DIRECTORY;
+	}
+
+	boolean isLink(int node){
+		return flags[node] == LINK;
+	}
+
+	long lastModified(int node){
+		return lastModified[node];
+	}
+
+	long size(int node){
+		return size[node];
+	}
+
+	/**
+	 * Returns the file key of a file (see BasicFileAttributes.fileKey()).
+	 * @param node
+	 * @return Object File key or null (for directories or if the file system has none)
+	 */
+	Object fileKey(int node){
+		return fileKeys[node];
+	}
+
+	/**
+	 * Returns the number of entries.
+	 * @return int
+	 */
+	int size(){
+		return count;
+	}
+
+	/**
+	 * Estimates the heap used by this tree per entry (arrays plus interned names, assuming compressed references).
+	 * @return long Bytes per entry
+	 */
+	long getBytesPerEntry(){
+		if (count == 0) return 0;
+		long bytes = 4L * count			// names (references)
+				+ 8L * count				// lastModified
+				+ 8L * count				// size
+				+ 1L * count				// flags
+				+ 4L * count				// fileKeys (references)
+				+ 32L * fileKeyCount		// file key objects
+				+ 4L * (count + 1)			// childStart
+				+ 4L * childIds.length		// childIds
+				+ 6 * 16					// array headers
+				+ uniqueNames * 40L + uniqueNameChars * 2;	// String objects and their characters
+		return bytes / count;
+	}
+}
@@ -0,0 +1,301 @@
+package logic;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import datastructures.Action;
+import datastructures.FileSnapshot;
+
+/**
+ * Write-ahead journal of the execution of an action list, such that an interrupted execution can be resumed.
+ * The selected actions are written before the first one is executed; afterwards, a record is appended whenever an action
+ * was completed or failed, and whenever a part of a large file copy was written to disk (see CopyEngine).
+ * When resuming, completed actions are skipped and file copies continue at the last recorded offset if the source file is unchanged.
+ *
+ * Format: magic, version, date of the plan, number of actions, actions (type, source, flag and destination),
+ * followed by records (kind, index of the action and, for progress records, the offset, size and modification date of the source).
+ * A truncated last record (e.g. after a power loss) is ignored.
+ * @author Christoph Redl
+ */
+public class ExecutionJournal {
+
+	private static final int MAGIC = 0x44534a52; // "DSJR"
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final byte RECORD_COMPLETED = 1;
+	private static final byte RECORD_FAILED = 2;
+	private static final byte RECORD_PROGRESS = 3;
+
+	/**
+	 * Last recorded progress of a file copy.
+	 */
+	private static class Progress{
+		final long copied;
+		final long sourceSize;
+		final long sourceModified;
+
+		Progress(long copied, long sourceSize, long sourceModified){
+			this.copied = copied;
+			this.sourceSize = sourceSize;
+			this.sourceModified = sourceModified;
+		}
+	}
+
+	private final File file;
+	private final Date planDate;
+	private final List<Action> actions;
+	private final boolean[] completed;
+	private final Map<Integer, Progress> progress = new HashMap<Integer, Progress>();
+	private int failed = 0;
+	private DataOutputStream out;
+	private boolean writeFailed = false;
+
+	private ExecutionJournal(File file, Date planDate, List<Action> actions){
+		this.file = file;
+		this.planDate = planDate;
+		this.actions = actions;
+		this.completed = new boolean[actions.size()];
+	}
+
+	/**
+	 * Writes the journal of a new execution (an existing journal is replaced).
+	 * @param file
+	 * @param planDate Date when the actions were determined (used as sync date when the execution is resumed)
+	 * @param actions The actions to be executed
+	 * @return ExecutionJournal
+	 * @throws IOException
+	 */
+	public static ExecutionJournal create(File file, Date planDate, List<Action> actions) throws IOException{
+		ExecutionJournal journal = new ExecutionJournal(file, planDate, actions);
+		File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		DataOutputStream plan = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+		try{
+			plan.writeInt(MAGIC);
+			plan.writeInt(VERSION);
+			plan.writeLong(planDate.getTime());
+			plan.writeInt(actions.size());
+			for (Action action : actions){
+				plan.writeByte(action.getType().ordinal());
+				plan.writeUTF(action.getSource());
+				plan.writeBoolean(action.getDestination() != null);
+				if (action.getDestination() != null) plan.writeUTF(action.getDestination());
+			}
+			plan.flush();
+			// The plan must be complete before the first action modifies anything
+			fos.getChannel().force(true);
+		}finally{
+			plan.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		journal.openForAppend();
+		return journal;
+	}
+
+	/**
+	 * Reads the journal of an interrupted execution.
+	 * @param file
+	 * @return ExecutionJournal
+	 * @throws IOException If the journal cannot be read
+	 */
+	public static ExecutionJournal open(File file) throws IOException{
+		ExecutionJournal journal;
+		byte[] data = Files.readAllBytes(file.toPath());
+		ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+		DataInputStream in = new DataInputStream(bytes);
+		long validLength;
+		try{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("\"" + file + "\" is no execution journal of this version");
+			Date planDate = new Date(in.readLong());
+			int count = in.readInt();
+			List<Action> actions = new ArrayList<Action>(count);
+			Action.Type[] types = Action.Type.values();
+			for (int i = 0; i < count; i++){
+				Action.Type type = types[in.readUnsignedByte()];
+				String source = in.readUTF();
+				actions.add(in.readBoolean() ? new Action(type, source, in.readUTF()) : new Action(type, source));
+			}
+			journal = new ExecutionJournal(file, planDate, actions);
+			validLength = data.length - bytes.available();
+
+			try{
+				while (true){
+					byte kind = in.readByte();
+					int index = in.readInt();
+					if (index < 0 || index >= count) throw new IOException("Corrupt record in execution journal \"" + file + "\"");
+					if (kind == RECORD_COMPLETED){
+						journal.completed[index] = true;
+						journal.progress.remove(index);
+					}else if (kind == RECORD_FAILED){
+						journal.failed++;
+					}else if (kind == RECORD_PROGRESS){
+						journal.progress.put(index, new Progress(in.readLong(), in.readLong(), in.readLong()));
+					}else{
+						throw new IOException("Corrupt record in execution journal \"" + file + "\"");
+					}
+					validLength = data.length - bytes.available();
+				}
+			}catch(EOFException eofe){
+				// End of the journal (possibly within the last record)
+			}
+		}catch(EOFException eofe){
+			throw new IOException("Execution journal \"" + file + "\" is truncated");
+		}finally{
+			in.close();
+		}
+
+		// Drop an incomplete last record, such that new records are appended after the last complete one
+		if (validLength < data.length){
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try{
+				raf.setLength(validLength);
+			}finally{
+				raf.close();
+			}
+		}
+		journal.openForAppend();
+		return journal;
+	}
+
+	private void openForAppend() throws IOException{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+	}
+
+	/**
+	 * Returns the actions of the execution.
+	 * @return List<Action>
+	 */
+	public List<Action> getActions(){
+		return Collections.unmodifiableList(actions);
+	}
+
+	/**
+	 * Returns the date when the actions were determined.
+	 * @return Date
+	 */
+	public Date getPlanDate(){
+		return planDate;
+	}
+
+	/**
+	 * Checks if an action was completed.
+	 * @param index
+	 * @return boolean
+	 */
+	public synchronized boolean isCompleted(int index){
+		return completed[index];
+	}
+
+	/**
+	 * Returns the number of actions which were not completed yet.
+	 * @return int
+	 */
+	public synchronized int getRemaining(){
+		int remaining = 0;
+		for (boolean c : completed){
+			if (!c) remaining++;
+		}
+		return remaining;
+	}
+
+	/**
+	 * Returns the number of failures recorded (including failures of previous attempts).
+	 * @return int
+	 */
+	public synchronized int getFailed(){
+		return failed;
+	}
+
+	/**
+	 * Returns the offset where an interrupted file copy can be continued.
+	 * @param index
+	 * @return long Number of bytes which were completed, or 0 if the copy has to start from the beginning (e.g. because the source was modified since)
+	 */
+	public synchronized long getResumeOffset(int index){
+		Progress p = progress.get(index);
+		if (p == null) return 0;
+		FileSnapshot source = FileSnapshot.read(new File(actions.get(index).getSource()).toPath(), true);
+		return source.length() == p.sourceSize && source.lastModified() == p.sourceModified ? p.copied : 0;
+	}
+
+	/**
+	 * Records that an action was executed.
+	 * @param index
+	 * @param success
+	 */
+	public synchronized void completed(int index, boolean success){
+		if (success){
+			completed[index] = true;
+			progress.remove(index);
+		}else{
+			// A partial copy may still be continued by the next attempt
+			failed++;
+		}
+		try{
+			out.writeByte(success ? RECORD_COMPLETED : RECORD_FAILED);
+			out.writeInt(index);
+			out.flush();
+		}catch(IOException ioe){
+			warn(ioe);
+		}
+	}
+
+	/**
+	 * Records the progress of a file copy.
+	 * @param index
+	 * @param source Attributes of the source file
+	 * @param copied Number of bytes which were written to disk
+	 */
+	public synchronized void progress(int index, FileSnapshot source, long copied){
+		progress.put(index, new Progress(copied, source.length(), source.lastModified()));
+		try{
+			out.writeByte(RECORD_PROGRESS);
+			out.writeInt(index);
+			out.writeLong(copied);
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			out.flush();
+		}catch(IOException ioe){
+			warn(ioe);
+		}
+	}
+
+	/**
+	 * Execution continues if the journal cannot be written (it can only not be resumed then).
+	 */
+	private void warn(IOException ioe){
+		if (!writeFailed) System.err.println("      WARNING: Cannot write execution journal " + file + ": " + ioe.getMessage());
+		writeFailed = true;
+	}
+
+	/**
+	 * Closes the journal.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException{
+		out.close();
+	}
+
+	/**
+	 * Closes and deletes the journal (after the execution was finished).
+	 * @throws IOException
+	 */
+	public synchronized void delete() throws IOException{
+		out.close();
+		Files.deleteIfExists(file.toPath());
+	}
+}
@@ -0,0 +1,304 @@
+package logic;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of the sync filters ("Name:[regex]" and "Path:[regex]").
+ * Literal, prefix (abc.*) and suffix (.*abc) patterns are answered by hash lookups, all other patterns are combined into a single regular expression.
+ * Path patterns are restricted per directory to those which may match an element below it.
+ * @author Christoph Redl
+ */
+public class FilterEngine {
+
+	private final String[] filters;
+	private final AtomicLongArray hits;
+	private final PatternSet names;
+	private final PatternSet paths;
+	private final String[] pathPrefixes;
+	private final Pattern[] generic;
+	private final int[] genericIds;
+
+	// Restricted path pattern sets by the selected patterns (shared by all directories with the same restriction)
+	private final Map<BitSet, FilterEngine> restrictions;
+
+	/**
+	 * Compiles a list of filters.
+	 * @param filterlist
+	 */
+	public FilterEngine(List<String> filterlist){
+		filters = filterlist == null ? new String[0] : filterlist.toArray(new String[filterlist.size()]);
+		hits = new AtomicLongArray(filters.length);
+		restrictions = new ConcurrentHashMap<BitSet, FilterEngine>();
+
+		List<Integer> nameIds = new ArrayList<Integer>();
+		List<Integer> pathIds = new ArrayList<Integer>();
+		List<Integer> genericIdList = new ArrayList<Integer>();
+		for (int i = 0; i < filters.length; i++){
+			if (filters[i].startsWith("Name:")){
+				nameIds.add(i);
+			}else if (filters[i].startsWith("Path:")){
+				pathIds.add(i);
+			}else{
+				genericIdList.add(i);
+			}
+		}
+		names = new PatternSet(filters, nameIds, "Name:".length());
+		paths = new PatternSet(filters, pathIds, "Path:".length());
+		pathPrefixes = new String[filters.length];
+		for (Integer id : pathIds) pathPrefixes[id] = literalPrefix(filters[id].substring("Path:".length()));
+
+		// Filters without "Name:" or "Path:" are matched against both strings as before
+		generic = new Pattern[genericIdList.size()];
+		genericIds = new int[genericIdList.size()];
+		for (int i = 0; i < generic.length; i++){
+			genericIds[i] = genericIdList.get(i);
+			generic[i] = Pattern.compile(filters[genericIds[i]]);
+		}
+	}
+
+	private FilterEngine(FilterEngine parent, PatternSet paths){
+		this.filters = parent.filters;
+		this.hits = parent.hits;
+		this.names = parent.names;
+		this.paths = paths;
+		this.pathPrefixes = parent.pathPrefixes;
+		this.generic = parent.generic;
+		this.genericIds = parent.genericIds;
+		this.restrictions = parent.restrictions;
+	}
+
+	/**
+	 * Checks if an element is excluded by one of the filters.
+	 * @param name File name of the element
+	 * @param path Absolute path of the element with '/' as separator (may be null if needsPath returns false)
+	 * @return boolean
+	 */
+	public boolean isExcluded(String name, String path){
+		int id = names.match(name);
+		if (id == -1 && path != null) id = paths.match(path);
+		for (int i = 0; id == -1 && i < generic.length; i++){
+			if (generic[i].matcher("Name:" + name).matches() || generic[i].matcher("Path:" + path).matches()) id = genericIds[i];
+		}
+		if (id == -1) return false;
+		hits.incrementAndGet(id);
+		return true;
+	}
+
+	/**
+	 * Returns true if path filters need to be evaluated for elements in the scope of this engine.
+	 * @return boolean
+	 */
+	public boolean needsPath(){
+		return !paths.isEmpty() || generic.length > 0;
+	}
+
+	/**
+	 * Returns an engine for the elements below a directory. Path patterns which cannot match any element below it are dropped.
+	 * @param directory Absolute path of the directory with '/' as separator
+	 * @return FilterEngine
+	 */
+	public FilterEngine restrictTo(String directory){
+		if (paths.isEmpty()) return this;
+		String prefix = directory.endsWith("/") ? directory : directory + "/";
+		BitSet selected = new BitSet(filters.length);
+		for (int id : paths.ids){
+			String literal = pathPrefixes[id];
+			if (literal.startsWith(prefix) || prefix.startsWith(literal)) selected.set(id);
+		}
+		if (selected.cardinality() == paths.ids.length) return this;
+
+		FilterEngine restricted = restrictions.get(selected);
+		if (restricted == null){
+			List<Integer> ids = new ArrayList<Integer>();
+			for (int id = selected.nextSetBit(0); id >= 0; id = selected.nextSetBit(id + 1)) ids.add(id);
+			restricted = new FilterEngine(this, new PatternSet(filters, ids, "Path:".length()));
+			restrictions.put(selected, restricted);
+		}
+		return restricted;
+	}
+
+	/**
+	 * Returns the number of exclusions per filter.
+	 * @return String
+	 */
+	public String getStatistics(){
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < filters.length; i++){
+			if (i > 0) sb.append("\n");
+			sb.append(hits.get(i) + "\t" + filters[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the number of filters.
+	 * @return int
+	 */
+	public int size(){
+		return filters.length;
+	}
+
+	/**
+	 * Returns the unescaped string if a regular expression matches exactly one literal string, otherwise null.
+	 * @param regex
+	 * @return String
+	 */
+	static String literal(String regex){
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < regex.length(); i++){
+			char c = regex.charAt(i);
+			if (c == '\\'){
+				if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) return null;
+				sb.append(regex.charAt(++i));
+			}else if (".[]{}()*+?^$|".indexOf(c) >= 0){
+				return null;
+			}else{
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the longest literal string which every match of a regular expression starts with.
+	 * @param regex
+	 * @return String
+	 */
+	static String literalPrefix(String regex){
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < regex.length(); i++){
+			char c = regex.charAt(i);
+			if (c == '\\'){
+				if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) break;
+				sb.append(regex.charAt(++i));
+			}else if (c == '*' || c == '?' || c == '{'){
+				// The previous character is optional
+				if (sb.length() > 0) sb.setLength(sb.length() - 1);
+				break;
+			}else if (".[]()+^$|".indexOf(c) >= 0){
+				break;
+			}else{
+				sb.append(c);
+			}
+		}
+		// Alternatives may start with anything
+		for (int i = 0; i < regex.length(); i++){
+			if (regex.charAt(i) == '\\') i++;
+			else if (regex.charAt(i) == '|') return "";
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A set of patterns for the same kind of string (names or paths).
+	 */
+	private static class PatternSet{
+		final int[] ids;
+		final Map<String, Integer> literals = new HashMap<String, Integer>();
+		final Map<String, Integer> prefixes = new HashMap<String, Integer>();
+		final Map<String, Integer> suffixes = new HashMap<String, Integer>();
+		final int[] prefixLengths;
+		final int[] suffixLengths;
+		final Pattern combined;
+		final int[] groupIds;
+		final Pattern[] separate;
+		final int[] separateIds;
+
+		PatternSet(String[] filters, List<Integer> idList, int skip){
+			ids = new int[idList.size()];
+			TreeSet<Integer> prefixLengthSet = new TreeSet<Integer>();
+			TreeSet<Integer> suffixLengthSet = new TreeSet<Integer>();
+			StringBuilder combinedRegex = new StringBuilder();
+			List<Integer> groups = new ArrayList<Integer>();
+			List<Pattern> separateList = new ArrayList<Pattern>();
+			List<Integer> separateIdList = new ArrayList<Integer>();
+			groups.add(-1);
+			for (int i = 0; i < ids.length; i++){
+				int id = idList.get(i);
+				ids[i] = id;
+				String regex = filters[id].substring(skip);
+				String lit = literal(regex);
+				String prefix = regex.endsWith(".*") ? literal(regex.substring(0, regex.length() - 2)) : null;
+				String suffix = regex.startsWith(".*") ? literal(regex.substring(2)) : null;
+				if (lit != null){
+					if (!literals.containsKey(lit)) literals.put(lit, id);
+				}else if (prefix != null){
+					if (!prefixes.containsKey(prefix)) prefixes.put(prefix, id);
+					prefixLengthSet.add(prefix.length());
+				}else if (suffix != null){
+					if (!suffixes.containsKey(suffix)) suffixes.put(suffix, id);
+					suffixLengthSet.add(suffix.length());
+				}else if (regex.matches(".*\\\\[1-9].*")){
+					// Back references would be shifted in the combined expression
+					separateList.add(Pattern.compile(regex));
+					separateIdList.add(id);
+				}else{
+					// Each alternative is a capturing group; its own groups follow it
+					if (combinedRegex.length() > 0) combinedRegex.append("|");
+					combinedRegex.append("(" + regex + ")");
+					groups.add(id);
+					int ownGroups = Pattern.compile(regex).matcher("").groupCount();
+					for (int g = 0; g < ownGroups; g++) groups.add(-1);
+				}
+			}
+			prefixLengths = toArray(prefixLengthSet);
+			suffixLengths = toArray(suffixLengthSet);
+			combined = combinedRegex.length() > 0 ? Pattern.compile(combinedRegex.toString()) : null;
+			groupIds = new int[groups.size()];
+			for (int i = 0; i < groupIds.length; i++) groupIds[i] = groups.get(i);
+			separate = separateList.toArray(new Pattern[separateList.size()]);
+			separateIds = new int[separateIdList.size()];
+			for (int i = 0; i < separateIds.length; i++) separateIds[i] = separateIdList.get(i);
+		}
+
+		private static int[] toArray(TreeSet<Integer> set){
+			int[] result = new int[set.size()];
+			int i = 0;
+			for (Integer v : set) result[i++] = v;
+			return result;
+		}
+
+		boolean isEmpty(){
+			return ids.length == 0;
+		}
+
+		/**
+		 * Returns the id of a matching pattern or -1.
+		 */
+		int match(String s){
+			if (ids.length == 0) return -1;
+			Integer id = literals.get(s);
+			if (id != null) return id;
+			for (int length : prefixLengths){
+				if (length > s.length()) break;
+				id = prefixes.get(s.substring(0, length));
+				if (id != null) return id;
+			}
+			for (int length : suffixLengths){
+				if (length > s.length()) break;
+				id = suffixes.get(s.substring(s.length() - length));
+				if (id != null) return id;
+			}
+			if (combined != null){
+				Matcher m = combined.matcher(s);
+				if (m.matches()){
+					for (int g = 1; g < groupIds.length; g++){
+						if (groupIds[g] != -1 && m.start(g) != -1) return groupIds[g];
+					}
+				}
+			}
+			for (int i = 0; i < separate.length; i++){
+				if (separate[i].matcher(s).matches()) return separateIds[i];
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package logic;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import datastructures.CopyEngine;
+import datastructures.FileSnapshot;
+
+/**
+ * Persistent cache of file content hashes (SHA-256).
+ * Hashes are stored with the size, modification date and file key of the file at the time of hashing;
+ * a cached hash is only used as long as all of them are unchanged, hence unchanged files are never read again.
+ * Entries of files which were deleted or modified are removed after the locations containing them were synchronized (see prune).
+ *
+ * Format: magic, version, number of entries, entries (UTF-8 path, size, modification date, hash of the file key, hash).
+ * @author Christoph Redl
+ */
+public class HashCache {
+
+	private static final int MAGIC = 0x44534843; // "DSHC"
+	private static final int VERSION = 1;
+
+	// Files of at least this size are read through memory mappings
+	private static final long MAP_THRESHOLD = 1 << 20;
+	// Size of the mapped windows (files larger than this are mapped in several parts)
+	private static final long MAP_WINDOW = 64L << 20;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static class Entry{
+		final long size;
+		final long lastModified;
+		final long fileKey;
+		final byte[] hash;
+
+		Entry(long size, long lastModified, long fileKey, byte[] hash){
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+			this.hash = hash;
+		}
+
+		boolean matches(FileSnapshot snapshot){
+			if (snapshot.length() != size || snapshot.lastModified() != lastModified) return false;
+			long currentKey = SyncIndex.hashFileKey(snapshot.getFileKey());
+			return fileKey == 0 || currentKey == 0 || currentKey == fileKey;
+		}
+	}
+
+	private final File file;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hashedFiles = new AtomicLong();
+	private final AtomicLong hashedBytes = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong prunedEntries = new AtomicLong();
+	private volatile boolean modified = false;
+
+	/**
+	 * Creates an empty cache.
+	 * @param file File where the cache is stored by save (null if the cache is not persistent)
+	 */
+	public HashCache(File file){
+		this.file = file;
+	}
+
+	/**
+	 * Loads a cache from a file. If the file does not exist or cannot be read, the cache is empty.
+	 * @param file
+	 * @return HashCache
+	 */
+	public static HashCache load(File file){
+		HashCache cache = new HashCache(file);
+		if (!file.isFile()) return cache;
+		try{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			try{
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) return cache;
+				int count = in.readInt();
+				for (int i = 0; i < count; i++){
+					String path = in.readUTF();
+					long size = in.readLong();
+					long lastModified = in.readLong();
+					long fileKey = in.readLong();
+					byte[] hash = new byte[in.readUnsignedByte()];
+					in.readFully(hash);
+					cache.entries.put(path, new Entry(size, lastModified, fileKey, hash));
+				}
+			}finally{
+				in.close();
+			}
+		}catch(EOFException eofe){
+			System.err.println("      WARNING: Hash cache " + file + " is truncated");
+		}catch(IOException ioe){
+			System.err.println("      WARNING: Cannot read hash cache " + file + ": " + ioe.getMessage());
+		}
+		return cache;
+	}
+
+	/**
+	 * Writes the cache to its file (if it was modified).
+	 * @throws IOException
+	 */
+	public void save() throws IOException{
+		if (file == null || !modified) return;
+		File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE));
+		try{
+			// Copy of the entries, such that the number of entries is consistent
+			Map<String, Entry> snapshot = new HashMap<String, Entry>(entries);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, Entry> e : snapshot.entrySet()){
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue().size);
+				out.writeLong(e.getValue().lastModified);
+				out.writeLong(e.getValue().fileKey);
+				out.writeByte(e.getValue().hash.length);
+				out.write(e.getValue().hash);
+			}
+		}finally{
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		modified = false;
+	}
+
+	/**
+	 * Returns the hash of a file, either from the cache or by reading the file.
+	 * @param location
+	 * @param snapshot Current attributes of the file
+	 * @return byte[] Hash or null, if the file cannot be read
+	 */
+	public byte[] getHash(File location, FileSnapshot snapshot){
+		String path = location.getAbsolutePath();
+		Entry entry = entries.get(path);
+		if (entry != null && entry.matches(snapshot)){
+			cacheHits.incrementAndGet();
+			return entry.hash;
+		}
+		try{
+			byte[] hash = hash(location, snapshot.length());
+			put(location, snapshot, hash);
+			return hash;
+		}catch(IOException ioe){
+			System.err.println("      WARNING: Cannot read " + path + ": " + ioe.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the hash of a file which is known without reading it (e.g. because it was computed while copying).
+	 * @param location
+	 * @param snapshot Attributes of the file
+	 * @param hash
+	 */
+	public void put(File location, FileSnapshot snapshot, byte[] hash){
+		entries.put(location.getAbsolutePath(), new Entry(snapshot.length(), snapshot.lastModified(), SyncIndex.hashFileKey(snapshot.getFileKey()), hash));
+		modified = true;
+	}
+
+	/**
+	 * Removes the entries of files below certain paths which do not exist anymore or were modified since they were hashed
+	 * (their hashes would never be used again). Every such entry costs one stat call.
+	 * @param roots Absolute paths of the synchronized locations
+	 */
+	public void prune(Collection<String> roots){
+		for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ){
+			Map.Entry<String, Entry> e = it.next();
+			if (!isBelow(e.getKey(), roots)) continue;
+			FileSnapshot snapshot = FileSnapshot.read(Paths.get(e.getKey()), true);
+			if (!snapshot.exists() || !e.getValue().matches(snapshot)){
+				it.remove();
+				prunedEntries.incrementAndGet();
+				modified = true;
+			}
+		}
+	}
+
+	private static boolean isBelow(String path, Collection<String> roots){
+		for (String root : roots){
+			if (path.startsWith(root) && (path.length() == root.length() || root.endsWith(File.separator) || path.charAt(root.length()) == File.separatorChar)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Computes the hash of a file. Large files are read through memory mappings, small ones with a buffered channel.
+	 * @param location
+	 * @param size
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	byte[] hash(File location, long size) throws IOException{
+		MessageDigest digest = newDigest();
+		RandomAccessFile raf = new RandomAccessFile(location, "r");
+		try{
+			FileChannel channel = raf.getChannel();
+			if (size >= MAP_THRESHOLD){
+				for (long position = 0; position < channel.size(); position += MAP_WINDOW){
+					MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, channel.size() - position));
+					digest.update(window);
+				}
+			}else{
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				while (channel.read(buffer) != -1){
+					buffer.flip();
+					digest.update(buffer);
+					buffer.clear();
+				}
+			}
+		}finally{
+			raf.close();
+		}
+		hashedFiles.incrementAndGet();
+		hashedBytes.addAndGet(size);
+		return digest.digest();
+	}
+
+	/**
+	 * Creates a digest of the algorithm used by the cache.
+	 * @return MessageDigest
+	 */
+	static MessageDigest newDigest(){
+		// The same algorithm as for verified copies, whose hashes are stored in the cache
+		return CopyEngine.newDigest();
+	}
+
+	/**
+	 * Returns the number of files read, the number of bytes read, the number of hashes taken from the cache and the number of removed entries.
+	 * @return String
+	 */
+	public String getStatistics(){
+		return hashedFiles.get() + " files hashed (" + (hashedBytes.get() >> 10) + " KiB), " + cacheHits.get() + " hashes from cache, " + prunedEntries.get() + " entries removed";
+	}
+}
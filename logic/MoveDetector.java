@@ -0,0 +1,240 @@
+package logic;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import datastructures.Action;
+import datastructures.ActionGroup;
+import datastructures.FileSnapshot;
+
+/**
+ * Detects elements which were renamed or moved at one location since the last synchronization.
+ * Such an element shows up as a new element at the one location and as an element deleted from the other location;
+ * instead of copying the new element and deleting the old one, the element is moved at the other location.
+ *
+ * Candidates are held back until the traversal of a pair of locations is complete, or until MAX_CANDIDATES are held
+ * (moves between candidates which were held at different times are not detected then). Elements which cannot be paired
+ * (e.g. empty directories, or elements which would be moved at location1 of a unidirectional pair) are passed on in place.
+ * Files are paired by their size and
+ * modification date (in seconds), non-empty directories by the names of their children; only unique pairs are merged.
+ * If a hash cache is available, files are additionally confirmed by their contents; directories are confirmed by the types,
+ * sizes and modification dates of their children. If it is unknown whether an element
+ * was created or deleted, the location where the parent directory was modified last is assumed to be the renaming one.
+ * The remaining candidates and the moves are passed on in traversal order after the other action groups found so far.
+ * In unidirectional mode, elements deleted from location1 are candidates as well, although they have no action group
+ * of their own: they are only moved at location2 if they are paired with an element renamed at location1.
+ * @author Christoph Redl
+ */
+class MoveDetector {
+
+	// Maximum number of candidates which are held back before they are paired and passed on
+	private static final int MAX_CANDIDATES = 10000;
+
+	private static class Candidate{
+		final ActionGroup group;
+		final File location;
+		final File counterpart;
+		final FileSnapshot snapshot;
+		// 1 or 2
+		final int side;
+		final boolean created;
+		final boolean uncertain;
+		final String[] relativePath;
+		// Sorted names of the children of a directory (listed once when the candidate is added)
+		final String[] children;
+		final String key;
+
+		Candidate(ActionGroup group, File location, File counterpart, FileSnapshot snapshot, int side, boolean created, boolean uncertain, String[] relativePath){
+			this.group = group;
+			this.location = location;
+			this.counterpart = counterpart;
+			this.snapshot = snapshot;
+			this.side = side;
+			this.created = created;
+			this.uncertain = uncertain;
+			this.relativePath = relativePath;
+			String[] children = snapshot.isDirectory() ? location.list() : null;
+			if (children != null) Arrays.sort(children);
+			this.children = children;
+			this.key = key(this);
+		}
+	}
+
+	private final String root1;
+	private final String root2;
+	private final boolean bidirectional;
+	private final HashCache hashCache;
+	private final List<Candidate> candidates = new ArrayList<Candidate>();
+	private int moves = 0;
+
+	/**
+	 * Constructor
+	 * @param root1 Absolute path of location1
+	 * @param root2 Absolute path of location2
+	 * @param bidirectional If false, only moves at location2 are suggested
+	 * @param hashCache Used to confirm file moves by their contents (may be null)
+	 */
+	MoveDetector(String root1, String root2, boolean bidirectional, HashCache hashCache){
+		this.root1 = root1;
+		this.root2 = root2;
+		this.bidirectional = bidirectional;
+		this.hashCache = hashCache;
+	}
+
+	/**
+	 * Adds an action group for an element which exists only at one location.
+	 * @param group The action group which is used if the element is not moved (null if there is no action in this case)
+	 * @param location The element
+	 * @param counterpart The path of the element at the other location
+	 * @param snapshot
+	 * @param side The location of the element (1 or 2)
+	 * @param created True if the element was (probably) created, false if it was (probably) deleted from the other location
+	 * @param uncertain True if it is unknown whether the element was created or deleted
+	 * @param sink Receives the action group if the element cannot be paired, and the held candidates if there are too many of them
+	 */
+	synchronized void add(ActionGroup group, File location, File counterpart, FileSnapshot snapshot, int side, boolean created, boolean uncertain, ActionGroupSink sink){
+		int moveSide = created ? 3 - side : side;
+		Candidate c = null;
+		if (bidirectional || moveSide == 2){
+			String root = side == 1 ? root1 : root2;
+			String path = location.getAbsolutePath();
+			String relative = path.length() <= root.length() ? "" : path.substring(root.endsWith(File.separator) ? root.length() : root.length() + 1);
+			c = new Candidate(group, location, counterpart, snapshot, side, created, uncertain, relative.split(Pattern.quote(File.separator)));
+		}
+		if (c == null || c.key == null){
+			if (group != null) sink.add(group);
+			return;
+		}
+		candidates.add(c);
+		if (candidates.size() >= MAX_CANDIDATES) flush(sink);
+	}
+
+	/**
+	 * Pairs the candidates and passes the resulting action groups to a sink (in traversal order).
+	 * @param sink
+	 */
+	synchronized void flush(ActionGroupSink sink){
+		// Traversal order (pre-order with children sorted by name), independent of the order in which candidates were added
+		Collections.sort(candidates, new Comparator<Candidate>(){
+			public int compare(Candidate a, Candidate b){
+				int n = Math.min(a.relativePath.length, b.relativePath.length);
+				for (int i = 0; i < n; i++){
+					int cmp = a.relativePath[i].compareTo(b.relativePath[i]);
+					if (cmp != 0) return cmp;
+				}
+				return a.relativePath.length - b.relativePath.length;
+			}
+		});
+
+		// Group by the location where the move would take place and the attributes of the element
+		Map<String, List<Candidate>> createdByKey = new HashMap<String, List<Candidate>>();
+		Map<String, List<Candidate>> deletedByKey = new HashMap<String, List<Candidate>>();
+		for (Candidate c : candidates){
+			if (c.key == null) continue;
+			Map<String, List<Candidate>> map = c.created ? createdByKey : deletedByKey;
+			List<Candidate> list = map.get(c.key);
+			if (list == null){
+				list = new ArrayList<Candidate>(1);
+				map.put(c.key, list);
+			}
+			list.add(c);
+		}
+
+		// Merge unique pairs
+		Map<Candidate, ActionGroup> replacements = new HashMap<Candidate, ActionGroup>();
+		for (Map.Entry<String, List<Candidate>> e : createdByKey.entrySet()){
+			List<Candidate> deleted = deletedByKey.get(e.getKey());
+			if (e.getValue().size() != 1 || deleted == null || deleted.size() != 1) continue;
+			Candidate newElement = e.getValue().get(0);
+			Candidate oldElement = deleted.get(0);
+			if (!sameContent(newElement, oldElement)) continue;
+
+			// Primary action is: move at the location of the old element; alternative is: move the new element back
+			char forward = oldElement.side == 2 ? '>' : '<';
+			char backward = oldElement.side == 2 ? '<' : '>';
+			Action move = new Action(Action.Type.Move, oldElement.location.getAbsolutePath(), newElement.counterpart.getAbsolutePath());
+			Action moveBack = new Action(Action.Type.Move, newElement.location.getAbsolutePath(), oldElement.counterpart.getAbsolutePath());
+			move.setSnapshots(oldElement.snapshot, FileSnapshot.MISSING);
+			moveBack.setSnapshots(newElement.snapshot, FileSnapshot.MISSING);
+			replacements.put(newElement, new ActionGroup(newElement.uncertain || oldElement.uncertain ? "(please check)" : "", forward, backward, move, moveBack));
+			replacements.put(oldElement, null);
+			moves++;
+		}
+
+		for (Candidate c : candidates){
+			if (!replacements.containsKey(c)){
+				if (c.group != null) sink.add(c.group);
+			}else if (replacements.get(c) != null){
+				sink.add(replacements.get(c));
+			}
+		}
+		candidates.clear();
+	}
+
+	/**
+	 * Key of a candidate: location of the move (the other location for new elements), type and attributes
+	 * (taken from the snapshot and the listing of the comparison).
+	 * @param c
+	 * @return String Key or null, if the element cannot be a moved element
+	 */
+	private static String key(Candidate c){
+		int moveSide = c.created ? 3 - c.side : c.side;
+		if (c.snapshot.isFile()){
+			return moveSide + "F" + c.snapshot.length() + ":" + (c.snapshot.lastModified() / 1000);
+		}else if (c.snapshot.isDirectory()){
+			// The date of a directory may change when it is moved
+			if (c.children == null || c.children.length == 0) return null;
+			StringBuilder sb = new StringBuilder(moveSide + "D");
+			for (String child : c.children) sb.append('/').append(child);
+			return sb.toString();
+		}
+		return null;
+	}
+
+	/**
+	 * Confirms a move of a file by the contents (if hashes are available), of a directory by the attributes of its children.
+	 */
+	private boolean sameContent(Candidate a, Candidate b){
+		if (a.snapshot.isDirectory()) return sameChildren(a, b);
+		if (hashCache == null) return true;
+		byte[] hash1 = hashCache.getHash(a.location, a.snapshot);
+		byte[] hash2 = hashCache.getHash(b.location, b.snapshot);
+		return hash1 != null && hash2 != null && Arrays.equals(hash1, hash2);
+	}
+
+	/**
+	 * Compares the children of two directories with the same names by their types, sizes and modification dates (in seconds).
+	 */
+	private static boolean sameChildren(Candidate a, Candidate b){
+		for (String name : a.children){
+			FileSnapshot child1 = Synchronizer.snapshot(child(a.location, name));
+			FileSnapshot child2 = Synchronizer.snapshot(child(b.location, name));
+			if (!child1.exists() || !child2.exists() || child1.isDirectory() != child2.isDirectory()) return false;
+			if (child1.isFile() && (child1.length() != child2.length() || child1.lastModified() / 1000 != child2.lastModified() / 1000)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a child of a directory (from the file system cache, if the directory is cached).
+	 */
+	private static File child(File directory, String name){
+		String path = directory.getAbsolutePath() + File.separator + name;
+		if (directory instanceof Synchronizer.CachedFile) return new Synchronizer.CachedFile(path, (Synchronizer.CachedFile)directory);
+		return new File(path);
+	}
+
+	/**
+	 * Returns the number of detected moves.
+	 * @return int
+	 */
+	int getMoves(){
+		return moves;
+	}
+}
@@ -0,0 +1,257 @@
+package logic;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import datastructures.FileSnapshot;
+
+/**
+ * Reads directories of one location ahead of the comparison: the listing and the attributes of all entries.
+ * When a directory is requested, its subdirectories are read in the background, such that high-latency file systems
+ * (e.g. network mounts) are accessed with many concurrent requests instead of one at a time.
+ *
+ * The number of concurrent reads is adapted to the observed latency per file system call (additive increase while the smoothed latency
+ * stays close to the lowest latency seen so far, multiplicative decrease otherwise). Results are kept in a bounded cache;
+ * the least recently read directories are dropped first (their entries are then read again on demand).
+ * @author Christoph Redl
+ */
+class Prefetcher {
+
+	private static final int MAX_CONCURRENCY = 64;
+	private static final int INITIAL_CONCURRENCY = 4;
+	// The latency is considered increased if it exceeds the lowest latency by this factor
+	private static final double LATENCY_TOLERANCE = 2.0;
+	// Weight of the last read in the smoothed latency
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	/**
+	 * Listing and attributes of a directory.
+	 */
+	static class Directory{
+		// Sorted names
+		final String[] names;
+		final FileSnapshot[] snapshots;
+
+		Directory(String[] names, FileSnapshot[] snapshots){
+			this.names = names;
+			this.snapshots = snapshots;
+		}
+
+		FileSnapshot snapshot(String name){
+			int i = Arrays.binarySearch(names, name);
+			return i >= 0 ? snapshots[i] : null;
+		}
+	}
+
+	/**
+	 * A directory which is read or queued to be read.
+	 */
+	private class Read implements Runnable{
+		final String path;
+		Directory result = null;
+		boolean done = false;
+
+		Read(String path){
+			this.path = path;
+		}
+
+		public void run(){
+			long start = System.nanoTime();
+			Directory directory = read(path);
+			long calls = directory == null ? 1 : directory.names.length + 1;
+			synchronized (Prefetcher.this){
+				result = directory;
+				done = true;
+				running--;
+				adapt((System.nanoTime() - start) / calls);
+				Prefetcher.this.notifyAll();
+				pump();
+			}
+		}
+	}
+
+	private final ExecutorService executor;
+	private final int capacity;
+	private final boolean followLinks;
+	// Directories by path (in the order they were requested or queued)
+	private final LinkedHashMap<String, Read> cache;
+	private final Deque<Read> queue = new ArrayDeque<Read>();
+	private int running = 0;
+	private double concurrency = INITIAL_CONCURRENCY;
+	private long minLatency = Long.MAX_VALUE;
+	private double smoothedLatency = -1;
+	private final AtomicLong prefetched = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param name Name of the prefetch threads
+	 * @param capacity Maximum number of cached directories
+	 * @param followLinks If true, the attributes of the targets of symbolic links are read
+	 */
+	Prefetcher(final String name, final int capacity, boolean followLinks){
+		this.capacity = capacity;
+		this.followLinks = followLinks;
+		this.cache = new LinkedHashMap<String, Read>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Read> eldest){
+				return size() > Prefetcher.this.capacity && eldest.getValue().done;
+			}
+		};
+		executor = Executors.newFixedThreadPool(MAX_CONCURRENCY, new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Returns the listing and attributes of a directory (waits until it was read) and starts reading its subdirectories.
+	 * @param directory
+	 * @return Directory or null, if the directory cannot be read
+	 * @throws InterruptedException
+	 */
+	Directory get(File directory) throws InterruptedException{
+		String path = directory.getAbsolutePath();
+		Read read;
+		synchronized (this){
+			read = cache.get(path);
+			if (read == null){
+				read = new Read(path);
+				cache.put(path, read);
+				queue.addFirst(read);
+				pump();
+			}else if (!read.done && queue.remove(read)){
+				// Needed now: read it before all prefetched directories
+				queue.addFirst(read);
+				pump();
+			}else{
+				hits.incrementAndGet();
+			}
+			while (!read.done) wait();
+
+			// Read ahead: the subdirectories are compared next
+			if (read.result != null){
+				List<Read> children = new ArrayList<Read>();
+				for (int i = 0; i < read.result.names.length && queue.size() < capacity; i++){
+					FileSnapshot s = read.result.snapshots[i];
+					if (!s.isDirectory() || s.isSymbolicLink()) continue;
+					String childPath = new File(path, read.result.names[i]).getPath();
+					if (cache.containsKey(childPath)) continue;
+					Read child = new Read(childPath);
+					cache.put(childPath, child);
+					children.add(child);
+				}
+				// In traversal order before the directories queued earlier
+				for (int i = children.size() - 1; i >= 0; i--) queue.addFirst(children.get(i));
+				prefetched.addAndGet(children.size());
+				pump();
+			}
+		}
+		return read.result;
+	}
+
+	/**
+	 * Returns the attributes of an element if they were read with its parent directory.
+	 * @param location
+	 * @return FileSnapshot or null, if the parent directory is not cached
+	 */
+	synchronized FileSnapshot snapshot(File location){
+		String parent = location.getAbsoluteFile().getParent();
+		if (parent == null) return null;
+		Read read = cache.get(parent);
+		if (read == null || !read.done || read.result == null) return null;
+		return read.result.snapshot(location.getName());
+	}
+
+	/**
+	 * Starts queued reads as long as the concurrency limit allows.
+	 */
+	private void pump(){
+		while (running < (int)concurrency && !queue.isEmpty()){
+			running++;
+			executor.execute(queue.pollFirst());
+		}
+	}
+
+	/**
+	 * Adapts the concurrency limit to the latency of the last read (AIMD).
+	 * @param latency Nanoseconds per file system call
+	 */
+	private void adapt(long latency){
+		minLatency = Math.min(minLatency, latency);
+		// Single slow reads (e.g. large directories) should not halve the limit
+		smoothedLatency = smoothedLatency < 0 ? latency : (1 - LATENCY_WEIGHT) * smoothedLatency + LATENCY_WEIGHT * latency;
+		if (smoothedLatency <= minLatency * LATENCY_TOLERANCE){
+			// Additive increase: by one per round of concurrent reads
+			concurrency = Math.min(MAX_CONCURRENCY, concurrency + 1.0 / concurrency);
+		}else{
+			// Multiplicative decrease
+			concurrency = Math.max(1, concurrency / 2);
+			smoothedLatency = minLatency * LATENCY_TOLERANCE;
+			// Latencies drift (e.g. caches, load of the server); forget the lowest latency slowly
+			minLatency = Math.min(Long.MAX_VALUE / 2, minLatency + minLatency / 8);
+		}
+	}
+
+	/**
+	 * Reads the listing and the attributes of a directory.
+	 * @param path
+	 * @return Directory or null, if the directory cannot be read
+	 */
+	private Directory read(String path){
+		List<String> names = new ArrayList<String>();
+		try{
+			DirectoryStream<Path> stream = Files.newDirectoryStream(new File(path).toPath());
+			try{
+				for (Path p : stream){
+					String name = p.getFileName().toString();
+					if (name.length() != 0) names.add(name);
+				}
+			}finally{
+				stream.close();
+			}
+		}catch(IOException ioe){
+			return null;
+		}
+		String[] sorted = names.toArray(new String[names.size()]);
+		Arrays.sort(sorted);
+		FileSnapshot[] snapshots = new FileSnapshot[sorted.length];
+		for (int i = 0; i < sorted.length; i++){
+			snapshots[i] = FileSnapshot.read(new File(path, sorted[i]).toPath(), followLinks);
+		}
+		return new Directory(sorted, snapshots);
+	}
+
+	/**
+	 * Returns the number of directories read ahead, the number of requests answered by them and the current concurrency limit.
+	 * @return String
+	 */
+	synchronized String getStatistics(){
+		return prefetched.get() + " directories read ahead, " + hits.get() + " requests answered by read-ahead, concurrency " + (int)concurrency;
+	}
+
+	/**
+	 * Stops the prefetch threads.
+	 */
+	void shutdown(){
+		executor.shutdownNow();
+	}
+}
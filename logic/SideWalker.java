@@ -0,0 +1,135 @@
+package logic;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import datastructures.CopyEngine;
+import datastructures.FileSnapshot;
+
+/**
+ * Lists the directories (and hashes the files) of one sync location on its own threads, such that the latencies of both locations overlap.
+ * Listings are delivered sorted by name; listings of cached directories are taken from memory without a thread hand-off.
+ * Optionally, directories are read ahead by a Prefetcher, which also provides the attributes of the listed entries.
+ * @author Christoph Redl
+ */
+class SideWalker {
+
+	private final ExecutorService executor;
+	// Null if directories are only read on demand
+	private final Prefetcher prefetcher;
+
+	/**
+	 * Constructor
+	 * @param name Name of the walker threads
+	 * @param threads Number of directories which may be listed concurrently
+	 * @param prefetcher Reads directories ahead (may be null)
+	 */
+	SideWalker(final String name, int threads, Prefetcher prefetcher){
+		this.prefetcher = prefetcher;
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts listing a directory.
+	 * @param directory
+	 * @return Future<String[]> Names of the entries in ascending order, or null if the directory cannot be read
+	 */
+	Future<String[]> list(final File directory){
+		Callable<String[]> listing = new Callable<String[]>(){
+			public String[] call() throws InterruptedException{
+				String[] names;
+				if (prefetcher != null && !(directory instanceof Synchronizer.CachedFile)){
+					Prefetcher.Directory read = prefetcher.get(directory);
+					names = read == null ? null : read.names.clone();
+				}else{
+					names = (directory instanceof Synchronizer.CachedFile ? directory : new File(directory.getAbsolutePath())).list();
+				}
+				if (names == null) return null;
+				// Empty names are no valid entries; staging files of interrupted copies are no elements of the location
+				int n = 0;
+				for (int i = 0; i < names.length; i++){
+					if (names[i].length() != 0 && !names[i].endsWith(CopyEngine.STAGING_SUFFIX)) names[n++] = names[i];
+				}
+				if (n < names.length) names = Arrays.copyOf(names, n);
+				Arrays.sort(names);
+				return names;
+			}
+		};
+		if (directory instanceof Synchronizer.CachedFile){
+			// No I/O necessary
+			FutureTask<String[]> result = new FutureTask<String[]>(listing);
+			result.run();
+			return result;
+		}
+		return executor.submit(listing);
+	}
+
+	/**
+	 * Returns the attributes of an element which were read together with its parent directory.
+	 * @param location
+	 * @return FileSnapshot or null, if the attributes were not read ahead
+	 */
+	FileSnapshot snapshot(File location){
+		if (prefetcher == null || location instanceof Synchronizer.CachedFile) return null;
+		return prefetcher.snapshot(location);
+	}
+
+	/**
+	 * Starts hashing a file (see HashCache).
+	 * @param cache
+	 * @param location
+	 * @param snapshot Current attributes of the file
+	 * @return Future<byte[]> Hash or null, if the file cannot be read
+	 */
+	Future<byte[]> hash(final HashCache cache, final File location, final FileSnapshot snapshot){
+		return executor.submit(new Callable<byte[]>(){
+			public byte[] call(){
+				return cache.getHash(location, snapshot);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the result of a listing or hash.
+	 * @param result
+	 * @return T Result or null, if the file or directory cannot be read
+	 */
+	static <T> T get(Future<T> result){
+		try{
+			return result.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return null;
+		}catch(ExecutionException e){
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the statistics of the prefetcher.
+	 * @return String Statistics or null, if directories are not read ahead
+	 */
+	String getPrefetchStatistics(){
+		return prefetcher == null ? null : prefetcher.getStatistics();
+	}
+
+	/**
+	 * Stops the walker threads.
+	 */
+	void shutdown(){
+		executor.shutdown();
+		if (prefetcher != null) prefetcher.shutdown();
+	}
+}
@@ -0,0 +1,375 @@
+package logic;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import datastructures.FileSnapshot;
+
+/**
+ * Persistent index of the state of one sync location after the last successful synchronization.
+ * For each entry, the relative path, size, modification date and file key are stored; symbolic links are followed,
+ * i.e. the attributes of their targets are stored, as they are compared.
+ * The file is sorted by path and memory-mapped for lookups.
+ *
+ * Format: magic, version, root path, number of entries, offset table (one int per entry), entries
+ * (path length, UTF-8 path, size, modification date, hash of the file key, flags).
+ * @author Christoph Redl
+ */
+public class SyncIndex {
+
+	private static final int MAGIC = 0x44534958; // "DSIX"
+	private static final int VERSION = 1;
+	private static final byte FLAG_DIRECTORY = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A single entry of the index.
+	 */
+	public static class Entry{
+		final String path;
+		final long size;
+		final long lastModified;
+		final long fileKey;
+		final boolean directory;
+
+		Entry(String path, long size, long lastModified, long fileKey, boolean directory){
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+			this.directory = directory;
+		}
+
+		/**
+		 * Checks if a snapshot of the entry still describes the indexed state.
+		 * For directories, the modification date is compared (it changes if entries are added, removed or renamed).
+		 * @param snapshot
+		 * @param timemargin The maximum number of seconds between two timestamps to be treated as equal
+		 * @return boolean
+		 */
+		public boolean matches(FileSnapshot snapshot, int timemargin){
+			if (!snapshot.exists() || snapshot.isDirectory() != directory) return false;
+			if (Math.abs((snapshot.lastModified() / 1000) - (lastModified / 1000)) > timemargin) return false;
+			if (directory) return true;
+			if (snapshot.length() != size) return false;
+			long currentKey = hashFileKey(snapshot.getFileKey());
+			return fileKey == 0 || currentKey == 0 || currentKey == fileKey;
+		}
+
+		/**
+		 * @return true if the entry is a directory
+		 */
+		public boolean isDirectory(){
+			return directory;
+		}
+	}
+
+	private final String root;
+	private final MappedByteBuffer buffer;
+	private final int count;
+	private final int offsetTable;
+
+	private SyncIndex(String root, MappedByteBuffer buffer, int count, int offsetTable){
+		this.root = root;
+		this.buffer = buffer;
+		this.count = count;
+		this.offsetTable = offsetTable;
+	}
+
+	/**
+	 * Returns the index file of a sync location within the index directory.
+	 * @param indexDirectory
+	 * @param location
+	 * @return File
+	 */
+	public static File getIndexFile(String indexDirectory, String location){
+		String root = new File(location).getAbsolutePath();
+		return new File(indexDirectory, "dsync-" + Integer.toHexString(root.hashCode()) + ".idx");
+	}
+
+	/**
+	 * Opens the index of a sync location.
+	 * @param indexDirectory
+	 * @param location
+	 * @return SyncIndex The index or null, if there is no (valid) index for this location yet
+	 */
+	public static SyncIndex open(String indexDirectory, String location){
+		String root = new File(location).getAbsolutePath();
+		File indexFile = getIndexFile(indexDirectory, location);
+		if (!indexFile.isFile()) return null;
+		try{
+			RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+			try{
+				FileChannel channel = raf.getChannel();
+				if (channel.size() > Integer.MAX_VALUE) throw new IOException("Index file " + indexFile + " is too large");
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+				int rootLength = buffer.getShort(8) & 0xFFFF;
+				byte[] rootBytes = new byte[rootLength];
+				for (int i = 0; i < rootLength; i++) rootBytes[i] = buffer.get(10 + i);
+				// Index of another location with the same hash code
+				if (!new String(rootBytes, UTF8).equals(root)) return null;
+				int count = buffer.getInt(10 + rootLength);
+				return new SyncIndex(root, buffer, count, 14 + rootLength);
+			}finally{
+				raf.close();
+			}
+		}catch(IOException ioe){
+			System.err.println("      WARNING: Cannot read sync index " + indexFile + ": " + ioe.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the absolute path of the indexed location.
+	 * @return String
+	 */
+	public String getRoot(){
+		return root;
+	}
+
+	/**
+	 * Returns the number of entries.
+	 * @return int
+	 */
+	public int size(){
+		return count;
+	}
+
+	/**
+	 * Looks up an entry (binary search in the mapped file).
+	 * @param relativePath Path relative to the indexed location with '/' as separator ("" for the location itself)
+	 * @return Entry The entry or null, if the path was not present after the last synchronization
+	 */
+	public Entry lookup(String relativePath){
+		byte[] key = relativePath.getBytes(UTF8);
+		int low = 0;
+		int high = count - 1;
+		while (low <= high){
+			int mid = (low + high) >>> 1;
+			int offset = buffer.getInt(offsetTable + 4 * mid);
+			int cmp = compareAt(offset, key);
+			if (cmp < 0){
+				low = mid + 1;
+			}else if (cmp > 0){
+				high = mid - 1;
+			}else{
+				int length = buffer.getShort(offset) & 0xFFFF;
+				int pos = offset + 2 + length;
+				return new Entry(relativePath, buffer.getLong(pos), buffer.getLong(pos + 8), buffer.getLong(pos + 16), buffer.get(pos + 24) == FLAG_DIRECTORY);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Compares the path stored at a given offset with a key (unsigned byte order).
+	 */
+	private int compareAt(int offset, byte[] key){
+		int length = buffer.getShort(offset) & 0xFFFF;
+		int n = Math.min(length, key.length);
+		for (int i = 0; i < n; i++){
+			int a = buffer.get(offset + 2 + i) & 0xFF;
+			int b = key[i] & 0xFF;
+			if (a != b) return a - b;
+		}
+		return length - key.length;
+	}
+
+	/**
+	 * Maps a file key to a long value (0 if there is no file key).
+	 * @param fileKey
+	 * @return long
+	 */
+	static long hashFileKey(Object fileKey){
+		if (fileKey == null) return 0;
+		long h = 1125899906842597L;
+		String s = fileKey.toString();
+		for (int i = 0; i < s.length(); i++) h = 31 * h + s.charAt(i);
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Scans a sync location and writes its index (replacing the previous one).
+	 * @param indexDirectory
+	 * @param location
+	 * @return int Number of indexed entries
+	 * @throws IOException
+	 */
+	public static int write(String indexDirectory, String location) throws IOException{
+		Path rootPath = Paths.get(new File(location).getAbsolutePath());
+		List<byte[]> paths = new ArrayList<byte[]>();
+		List<long[]> attributes = new ArrayList<long[]>();
+		collect(rootPath, rootPath, paths, attributes);
+		return write(indexDirectory, location, rootPath, paths, attributes);
+	}
+
+	/**
+	 * Updates the index of a sync location after some of its elements were synchronized: these elements and the entries
+	 * below them are read again, as well as the entries of the directories above them (whose dates change if
+	 * entries are added or removed); all other entries are taken from the previous index. If there is no index yet, the
+	 * location is scanned completely.
+	 * @param indexDirectory
+	 * @param location
+	 * @param relativePaths Paths of the synchronized elements relative to the location ("" for the location itself)
+	 * @return int Number of indexed entries
+	 * @throws IOException
+	 */
+	public static int update(String indexDirectory, String location, Collection<String> relativePaths) throws IOException{
+		SyncIndex index = open(indexDirectory, location);
+		if (index == null) return write(indexDirectory, location);
+		Path rootPath = Paths.get(index.root);
+		List<String> subtrees = new ArrayList<String>();
+		Set<String> parents = new HashSet<String>();
+		for (String relativePath : relativePaths){
+			String path = relativePath.replace(File.separator, "/");
+			if (path.isEmpty()) return write(indexDirectory, location);
+			subtrees.add(path);
+			for (int slash = path.lastIndexOf('/'); slash >= 0; slash = path.lastIndexOf('/', slash - 1)) parents.add(path.substring(0, slash));
+			parents.add("");
+		}
+
+		// Keep the entries outside of the synchronized elements
+		List<byte[]> paths = new ArrayList<byte[]>();
+		List<long[]> attributes = new ArrayList<long[]>();
+		for (int i = 0; i < index.count; i++){
+			int offset = index.buffer.getInt(index.offsetTable + 4 * i);
+			byte[] path = new byte[index.buffer.getShort(offset) & 0xFFFF];
+			for (int j = 0; j < path.length; j++) path[j] = index.buffer.get(offset + 2 + j);
+			String relativePath = new String(path, UTF8);
+			if (parents.contains(relativePath) || isBelow(relativePath, subtrees)) continue;
+			int pos = offset + 2 + path.length;
+			paths.add(path);
+			attributes.add(new long[]{ index.buffer.getLong(pos), index.buffer.getLong(pos + 8), index.buffer.getLong(pos + 16), index.buffer.get(pos + 24) == FLAG_DIRECTORY ? 1 : 0 });
+		}
+
+		// Read the synchronized elements and their parent directories again (elements which do not exist anymore are dropped)
+		for (String subtree : subtrees){
+			Path start = rootPath.resolve(subtree.replace("/", File.separator));
+			if (Files.exists(start)) collect(rootPath, start, paths, attributes);
+		}
+		for (String parent : parents){
+			try{
+				BasicFileAttributes attrs = Files.readAttributes(rootPath.resolve(parent.replace("/", File.separator)), BasicFileAttributes.class);
+				paths.add(parent.getBytes(UTF8));
+				attributes.add(new long[]{ attrs.size(), attrs.lastModifiedTime().toMillis(), hashFileKey(attrs.fileKey()), attrs.isDirectory() ? 1 : 0 });
+			}catch(IOException ioe){
+				// The directory does not exist anymore
+			}
+		}
+		return write(indexDirectory, location, rootPath, paths, attributes);
+	}
+
+	private static boolean isBelow(String path, List<String> subtrees){
+		for (String subtree : subtrees){
+			if (path.startsWith(subtree) && (path.length() == subtree.length() || path.charAt(subtree.length()) == '/')) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the entries of an element of a location and of all entries below it (attributes are delivered by the walk, no additional stat calls).
+	 * Symbolic links are followed like by the comparison (see FileSnapshot.read); directories which form a cycle are skipped.
+	 */
+	private static void collect(final Path rootPath, Path start, final List<byte[]> paths, final List<long[]> attributes) throws IOException{
+		Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>(){
+			void add(Path p, BasicFileAttributes attrs){
+				byte[] relativePath = rootPath.relativize(p).toString().replace(File.separator, "/").getBytes(UTF8);
+				if (relativePath.length > 0xFFFF) return;
+				paths.add(relativePath);
+				attributes.add(new long[]{ attrs.size(), attrs.lastModifiedTime().toMillis(), hashFileKey(attrs.fileKey()), attrs.isDirectory() ? 1 : 0 });
+			}
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs){
+				add(dir, attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs){
+				// Attributes of a link are only delivered if its target does not exist (the comparison treats it as missing)
+				if (!attrs.isSymbolicLink()) add(file, attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException ioe){
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Sorts entries by path and writes them as the index of a location (replacing the previous one).
+	 */
+	private static int write(String indexDirectory, String location, Path rootPath, final List<byte[]> paths, List<long[]> attributes) throws IOException{
+		// Sort by path
+		Integer[] order = new Integer[paths.size()];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		java.util.Arrays.sort(order, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				byte[] x = paths.get(a);
+				byte[] y = paths.get(b);
+				int n = Math.min(x.length, y.length);
+				for (int i = 0; i < n; i++){
+					if (x[i] != y[i]) return (x[i] & 0xFF) - (y[i] & 0xFF);
+				}
+				return x.length - y.length;
+			}
+		});
+
+		// Write to a temporary file first, then replace the index
+		new File(indexDirectory).mkdirs();
+		File indexFile = getIndexFile(indexDirectory, location);
+		File tmpFile = new File(indexFile.getAbsolutePath() + ".tmp");
+		byte[] rootBytes = rootPath.toString().getBytes(UTF8);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeShort(rootBytes.length);
+			out.write(rootBytes);
+			out.writeInt(order.length);
+			int offset = 14 + rootBytes.length + 4 * order.length;
+			for (Integer i : order){
+				out.writeInt(offset);
+				offset += 2 + paths.get(i).length + 25;
+			}
+			for (Integer i : order){
+				byte[] path = paths.get(i);
+				long[] attrs = attributes.get(i);
+				out.writeShort(path.length);
+				out.write(path);
+				out.writeLong(attrs[0]);
+				out.writeLong(attrs[1]);
+				out.writeLong(attrs[2]);
+				out.writeByte(attrs[3] == 1 ? FLAG_DIRECTORY : 0);
+			}
+		}finally{
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), indexFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		return order.length;
+	}
+}
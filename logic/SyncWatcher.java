@@ -0,0 +1,214 @@
+package logic;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import datastructures.Action;
+import datastructures.ActionGroup;
+
+/**
+ * Keeps the locations of a sync file synchronized by watching them for changes.
+ * After an initial full synchronization, only the elements reported by the file system as changed are compared again
+ * (with the start of the previous cycle as reference date). Changes are collected until no further change was reported
+ * for a delay; if events were lost, the locations are rescanned completely.
+ * Only selected actions are executed, conflicts are skipped. Events caused by the executed actions are ignored until the
+ * first quiet period after the cycle, hence changes of the same elements by the user within this period are only noticed by the next full rescan.
+ * @author Christoph Redl
+ */
+public class SyncWatcher {
+
+	// Maximum time to collect changes (in multiples of the delay), such that continuous changes do not defer synchronization forever
+	private static final int MAX_DELAYS = 10;
+
+	private final String syncFile;
+	private final long delay;
+	private final Synchronizer sync = new Synchronizer();
+	private WatchService watchService;
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+
+	/**
+	 * Constructor
+	 * @param syncFile
+	 * @param delay Number of milliseconds without further changes before a cycle starts
+	 */
+	public SyncWatcher(String syncFile, long delay){
+		this.syncFile = syncFile;
+		this.delay = delay;
+	}
+
+	/**
+	 * Synchronizes the locations, then watches them and synchronizes the changed elements (until the thread is interrupted).
+	 * @param referenceDate Reference date of the initial synchronization
+	 * @throws Exception
+	 */
+	public void run(Date referenceDate) throws Exception{
+		watchService = FileSystems.getDefault().newWatchService();
+		try{
+			boolean fullRescan = true;
+			Set<File> changed = new HashSet<File>();
+			Set<String> ownChanges = new HashSet<String>();
+			while (!Thread.currentThread().isInterrupted()){
+				// Register the directories before they are scanned, such that no change is missed
+				if (fullRescan) registerAll();
+
+				Date cycleStart = new Date();
+				List<ActionGroup> actions;
+				if (fullRescan){
+					System.out.println("Full synchronization ...");
+					actions = sync.synchronize(syncFile, referenceDate);
+				}else{
+					System.out.println("Synchronizing " + changed.size() + " changed elements ...");
+					Synchronizer.CollectingSink sink = new Synchronizer.CollectingSink();
+					sync.synchronize(syncFile, referenceDate, changed, sink);
+					actions = sink.actions;
+				}
+				boolean executed = execute(actions, ownChanges);
+				cycleCompleted(cycleStart, fullRescan, executed && !fullRescan ? changed : Collections.<File>emptySet());
+				referenceDate = cycleStart;
+
+				// Wait for the next changes
+				changed.clear();
+				fullRescan = collectChanges(changed, ownChanges);
+			}
+		}finally{
+			watchService.close();
+		}
+	}
+
+	/**
+	 * Called after each cycle, e.g. to store the new sync date and to update the sync indexes.
+	 * @param syncDate Start of the cycle (elements modified later were not synchronized yet)
+	 * @param fullRescan True if the locations were compared completely
+	 * @param modified Elements compared by a cycle which was not a full rescan, if actions were executed (empty otherwise)
+	 * @throws Exception
+	 */
+	protected void cycleCompleted(Date syncDate, boolean fullRescan, Collection<File> modified) throws Exception{
+	}
+
+	/**
+	 * Executes the selected actions. The affected paths are remembered, such that the resulting events do not trigger another cycle.
+	 * @param actions
+	 * @param ownChanges
+	 * @return boolean True if actions were executed
+	 * @throws InterruptedException
+	 */
+	private boolean execute(List<ActionGroup> actions, Set<String> ownChanges) throws InterruptedException{
+		List<Action> selected = ActionGroup.getSelectedActions(actions);
+		if (selected.size() < actions.size()) System.out.println("   " + (actions.size() - selected.size()) + " conflicts skipped");
+		if (selected.size() == 0) return false;
+		for (Action action : selected){
+			ownChanges.add(new File(action.getSource()).getAbsolutePath());
+			if (action.getDestination() != null) ownChanges.add(new File(action.getDestination()).getAbsolutePath());
+		}
+		System.out.println(ActionExecutor.fromProperties(sync.prop, syncFile).execute(selected));
+		return true;
+	}
+
+	/**
+	 * Waits for changes and collects them until no further change is reported for the delay.
+	 * @param changed Changed elements are added to this set
+	 * @param ownChanges Paths modified by the previous cycle (events for them are ignored)
+	 * @return boolean True if events were lost and a full rescan is necessary
+	 * @throws InterruptedException
+	 */
+	private boolean collectChanges(Set<File> changed, Set<String> ownChanges) throws InterruptedException{
+		boolean overflow = false;
+		while (changed.isEmpty() && !overflow){
+			WatchKey key = watchService.take();
+			long deadline = System.currentTimeMillis() + MAX_DELAYS * delay;
+			while (key != null){
+				Path dir = keys.get(key);
+				for (WatchEvent<?> event : key.pollEvents()){
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null){
+						overflow = true;
+						continue;
+					}
+					Path child = dir.resolve((Path)event.context());
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)){
+						// Directories created by the previous cycle have to be watched as well
+						register(child);
+					}
+					if (!isOwnChange(child.toFile(), ownChanges)) changed.add(child.toFile());
+				}
+				if (!key.reset()) keys.remove(key);
+
+				long remaining = Math.min(delay, deadline - System.currentTimeMillis());
+				key = remaining > 0 ? watchService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+			}
+
+			// Events of the previous cycle were delivered by now; later events are changes of the user
+			ownChanges.clear();
+		}
+		if (overflow) System.out.println("Changes were lost, rescanning all locations");
+		return overflow;
+	}
+
+	/**
+	 * Checks if an element was modified by the previous cycle (directly or as part of a directory).
+	 * @param element
+	 * @param ownChanges
+	 * @return boolean
+	 */
+	private static boolean isOwnChange(File element, Set<String> ownChanges){
+		for (File f = element; f != null; f = f.getParentFile()){
+			if (ownChanges.contains(f.getAbsolutePath())) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Registers all directories of all locations (previous registrations are cancelled).
+	 * @throws IOException
+	 */
+	private void registerAll() throws IOException{
+		for (WatchKey key : keys.keySet()) key.cancel();
+		keys.clear();
+		for (Synchronizer.SyncLocation location : sync.readSyncLocations(syncFile)){
+			register(new File(location.location1).toPath());
+			register(new File(location.location2).toPath());
+		}
+	}
+
+	/**
+	 * Registers a directory and all directories below it.
+	 * @param root
+	 */
+	private void register(Path root){
+		try{
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>(){
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException{
+					keys.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException ioe){
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}catch(IOException ioe){
+			// e.g. the limit of watched directories was reached
+			System.err.println("      WARNING: Cannot watch " + root + ": " + ioe.getMessage());
+		}
+	}
+}
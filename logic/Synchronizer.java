@@ -3,28 +3,38 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import datastructures.Action;
 import datastructures.ActionGroup;
+import datastructures.FileSnapshot;
 import datastructures.MultiProperties;
+import datastructures.PlanStore;
 
 /**
  * Synchronizes two directories. The method does not apply any file operations. Rather it generates a list of suggested modifications.
@@ -34,54 +44,32 @@ public class Synchronizer{
 
 	MultiProperties prop;
 	long syncTime;
+	int threads = 1;
+	// Number of action groups buffered by the iterators
+	static final int STREAM_BUFFER = 1024;
+	// Limits of the parallel comparison ahead of the traversal: action groups which were found but not yet passed to the sink,
+	// and compare tasks per thread which were started but not yet passed to the sink completely
+	static final int COMPARE_BUFFER = 4096;
+	static final int COMPARE_TASKS_PER_THREAD = 4;
+	ForkJoinPool pool;
+	String indexDirectory;
+	// Content hashes (null if files are compared by their modification dates only)
+	HashCache hashCache;
+	boolean detectMoves = false;
+	// Number of directories per location which may be read ahead (0 disables prefetching)
+	int prefetch = 0;
+	static final int PREFETCH_CAPACITY = 1024;
+	long statCalls;
+	final AtomicLong comparedEntries = new AtomicLong();
 
 	/**
 	 * Extends java.io.File by a file system cache for faster traversal.
 	 */
 	static class CachedFile extends File{
-		java.util.Set<String> ordinaryFiles;
-		java.util.Set<String> directories;
-		java.util.HashMap<String, LinkedList<String> > children;
-		java.util.HashMap<String, Long> lastmodified;
-
-		private class ProcessFile extends SimpleFileVisitor<Path>{
-			void addToCache(Path p){
-				if (p.getParent() != null){
-					String parent = p.getParent().toString();
-					String child = p.getName(p.getNameCount() - 1).toString();
-					if (!children.containsKey(parent)){
-						children.put(parent, new LinkedList<String>());
-					}
-					children.get(parent).add(child);
-				}
-			}
-		
-			@Override
-			public FileVisitResult visitFile(Path aFile, BasicFileAttributes aAttrs) throws IOException{
-				ordinaryFiles.add(aFile.toString());
-				lastmodified.put(aFile.toString(), java.nio.file.Files.getLastModifiedTime(aFile).toMillis());
-				addToCache(aFile);
-				return FileVisitResult.CONTINUE;
-			}
+		CacheTree tree;
+		// Node of this location in the tree (-1 if it is not in the tree)
+		int node = -1;
 
-			@Override
-			public FileVisitResult preVisitDirectory(Path aDir, BasicFileAttributes aAttrs) throws IOException{
-				directories.add(aDir.toString());
-				addToCache(aDir);
-				return FileVisitResult.CONTINUE;
-			}
-			
-			@Override
-			public FileVisitResult visitFileFailed(Path file, IOException ioe){
-				return ioe == null ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
-			}
-			
-			@Override
-			public FileVisitResult postVisitDirectory(Path aDir, IOException ioe){
-				return ioe == null ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
-			}
-		}
-		
 		public CachedFile(String filename){
 			super(filename);
 
@@ -89,66 +77,135 @@ public class Synchronizer{
 				if (super.isDirectory()){
 					System.out.print("   Setting up cache for " + filename + " ... ");
 
-					ordinaryFiles = new java.util.HashSet<String>();
-					directories = new java.util.HashSet<String>();
-					children = new java.util.HashMap<String, LinkedList<String> >();
-					lastmodified = new java.util.HashMap<String, Long>();
-				
-					FileVisitor<Path> fileProcessor = new ProcessFile();
-					Files.walkFileTree(Paths.get(getAbsolutePath()), fileProcessor);
+					tree = new CacheTree(getAbsolutePath());
+					node = tree.lookup(getAbsolutePath());
 
-					System.out.println("done");
+					System.out.println("done (" + tree.size() + " entries, ~" + tree.getBytesPerEntry() + " bytes per entry)");
 				}
 			}catch(IOException ioe){
 			System.out.println(ioe);
-				ordinaryFiles = null;
-				directories = null;
-				children = null;
-				lastmodified = null;
+				tree = null;
 			}
 		}
 
 		public CachedFile(String filename, CachedFile overtakeCache){
 			super(filename);
 
-			this.ordinaryFiles = overtakeCache.ordinaryFiles;
-			this.directories = overtakeCache.directories;
-			this.children = overtakeCache.children;
-			this.lastmodified = overtakeCache.lastmodified;
+			this.tree = overtakeCache.tree;
+			if (tree != null){
+				// Children of a cached directory are found without walking the whole path
+				String parent = getParent();
+				if (overtakeCache.node != -1 && parent != null && parent.equals(overtakeCache.getAbsolutePath())){
+					node = tree.child(overtakeCache.node, getName());
+				}else{
+					node = tree.lookup(getAbsolutePath());
+				}
+			}
 		}
 		
 		public boolean exists(){
-			if (ordinaryFiles != null && directories != null){
-				return (ordinaryFiles.contains(getAbsolutePath()) || directories.contains(getAbsolutePath()));
+			if (tree != null){
+				return node != -1;
 			}else{
 				return super.exists();
 			}
 		}
 		
 		public String[] list(){
-			LinkedList<String> curchildren = children.get(getAbsolutePath());
-			if (curchildren != null){
-				return curchildren.toArray(new String[curchildren.size()]);
+			if (tree != null && node != -1 && tree.isDirectory(node)){
+				return tree.list(node);
 			}
 			return null;
 		}
 		
 		public boolean isFile(){
-			if (directories != null && directories.contains(getAbsolutePath())) return false;
-			if (ordinaryFiles != null && ordinaryFiles.contains(getAbsolutePath())) return true;
+			if (tree != null && node != -1 && !tree.isLink(node)) return !tree.isDirectory(node);
 			return super.isFile();
 		}
 		
 		public boolean isDirectory(){
-			if (directories != null && directories.contains(getAbsolutePath())) return true;
-			if (ordinaryFiles != null && ordinaryFiles.contains(getAbsolutePath())) return false;
+			if (tree != null && node != -1 && !tree.isLink(node)) return tree.isDirectory(node);
 			return super.isDirectory();
 		}
 		
 		public long lastModified(){
-			if (lastmodified != null && lastmodified.containsKey(getAbsolutePath())) return lastmodified.get(getAbsolutePath());
+			if (tree != null && node != -1 && !tree.isLink(node)) return tree.lastModified(node);
 			return super.lastModified();
 		}
+
+		/**
+		 * Returns the snapshot of this location. Entries which are not in the cache do not exist; no stat call is necessary for them.
+		 * @return FileSnapshot
+		 */
+		public FileSnapshot snapshot(){
+			if (tree == null || (node != -1 && tree.isLink(node))) return FileSnapshot.read(toPath(), true);
+			if (node == -1) return FileSnapshot.MISSING;
+			boolean directory = tree.isDirectory(node);
+			return new FileSnapshot(true, !directory, directory, false, tree.lastModified(node), tree.size(node), tree.fileKey(node));
+		}
+	}
+
+	/**
+	 * A pair of sync locations as defined in a sync file.
+	 */
+	static class SyncLocation{
+		final String location1;
+		final String location2;
+		final boolean bidirectional;
+
+		SyncLocation(String location1, String location2, boolean bidirectional){
+			this.location1 = location1;
+			this.location2 = location2;
+			this.bidirectional = bidirectional;
+		}
+	}
+
+	/**
+	 * Reads the pairs of sync locations from the loaded sync file (invalid definitions are skipped).
+	 * @return List<SyncLocation>
+	 */
+	private List<SyncLocation> readSyncLocations(){
+		// Read sync prefix
+		String prefix1 = (prop.containsKey("prefix1") ? prop.getProperty("prefix1") : "").replace("\\", File.separator).replace("/", File.separator) + File.separator;
+		String prefix2 = (prop.containsKey("prefix2") ? prop.getProperty("prefix2") : "").replace("\\", File.separator).replace("/", File.separator) + File.separator;
+
+		// Read sync locations
+		List<SyncLocation> syncLocations = new ArrayList<SyncLocation>();
+		for (String currentLocation : prop.getAsList("synclocations")){
+			// locations and type of synchronization
+			if (currentLocation.contains("<-->")){
+				String[] sublocations = currentLocation.split("<-->");
+				syncLocations.add(new SyncLocation(	(sublocations[0].startsWith("!") ? sublocations[0].substring(1) : prefix1 + sublocations[0]),
+													(sublocations[1].startsWith("!") ? sublocations[1].substring(1) : prefix2 + sublocations[1]), true));
+			}else if (currentLocation.contains("-->")){
+				String[] sublocations = currentLocation.split("-->");
+				syncLocations.add(new SyncLocation(	(sublocations[0].startsWith("!") ? sublocations[0].substring(1) : prefix1 + sublocations[0]),
+													(sublocations[1].startsWith("!") ? sublocations[1].substring(1) : prefix2 + sublocations[1]), false));
+			}else if (currentLocation.contains("<--")){
+				String[] sublocations = currentLocation.split("<--");
+				syncLocations.add(new SyncLocation(	(sublocations[0].startsWith("!") ? sublocations[0].substring(1) : prefix1 + sublocations[1]),
+													(sublocations[1].startsWith("!") ? sublocations[1].substring(1) : prefix2 + sublocations[0]), false));
+			}
+			// otherwise: Error
+		}
+		return syncLocations;
+	}
+
+	/**
+	 * Loads a sync file and reads the pairs of sync locations from it.
+	 * @param syncFile
+	 * @return List<SyncLocation>
+	 * @throws IOException
+	 */
+	List<SyncLocation> readSyncLocations(String syncFile) throws IOException{
+		prop = new MultiProperties();
+		FileInputStream in = new FileInputStream(syncFile);
+		try{
+			prop.load(in);
+		}finally{
+			in.close();
+		}
+		return readSyncLocations();
 	}
 
 	/**
@@ -158,27 +215,71 @@ public class Synchronizer{
 	 * @return List<Action> Sync actions planned to perform
 	 * @throws Exception
 	 */
+	public List<ActionGroup> synchronize(String syncFile, Date referenceDate) throws Exception{
+		CollectingSink sink = new CollectingSink();
+		synchronize(syncFile, referenceDate, sink);
+		return sink.actions;
+	}
+
+	/**
+	 * Collections sync actions for the locations defined in a sync file and passes them to a sink as soon as they are found.
+	 * @param syncFile
+	 * @param referenceDate
+	 * @param sink
+	 * @throws Exception
+	 */
+	public void synchronize(String syncFile, Date referenceDate, ActionGroupSink sink) throws Exception{
+		synchronize(syncFile, referenceDate, null, sink);
+	}
+
+	/**
+	 * Collections sync actions for some elements of the locations defined in a sync file and passes them to a sink as soon as they are found.
+	 * Each element is compared to the corresponding element at the other location (including subdirectories);
+	 * the sync indexes and the file system cache are not used.
+	 * @param syncFile
+	 * @param referenceDate
+	 * @param subtrees Elements of the locations (or null to compare the whole locations)
+	 * @param sink
+	 * @throws Exception
+	 */
 	@SuppressWarnings("unchecked")
-	public List<ActionGroup> synchronize(String syncFile, Date referenceDate) throws Exception{		
+	public void synchronize(String syncFile, Date referenceDate, Collection<File> subtrees, ActionGroupSink sink) throws Exception{
 		long startTime = System.currentTimeMillis();
+		long startStatCalls = FileSnapshot.getStatCalls();
+		comparedEntries.set(0);
 		try {
 			// Read sync file
 			prop = new MultiProperties();
 			prop.load(new FileInputStream(syncFile));
 			
-			// Read sync prefix
-			String prefix1 = (prop.containsKey("prefix1") ? prop.getProperty("prefix1") : "").replace("\\", File.separator).replace("/", File.separator) + File.separator;
-			String prefix2 = (prop.containsKey("prefix2") ? prop.getProperty("prefix2") : "").replace("\\", File.separator).replace("/", File.separator) + File.separator;
-
 			// Use cache (in case)
 			boolean useCache = prop.containsKey("usecache") && new Boolean(prop.getProperty("usecache")).booleanValue();
 		
 			// Read time margin
 			int timemargin = 0;
 			if (prop.containsKey("timemargin")) timemargin = Integer.parseInt(prop.getProperty("timemargin"));
-			
-			// Read sync locations
-			List<String> locations = (List<String>)prop.getAsList("synclocations");
+
+			// Read number of threads used for comparing directories
+			if (prop.containsKey("threads")) setThreads(Integer.parseInt(prop.getProperty("threads")));
+
+			// Read directory of the sync indexes
+			if (prop.containsKey("syncindex")) setIndexDirectory(prop.getProperty("syncindex"));
+
+			// Read if renamed or moved elements are detected
+			setDetectMoves(prop.containsKey("detectmoves") && Boolean.parseBoolean(prop.getProperty("detectmoves")));
+
+			// Read if directories are read ahead (for high-latency file systems)
+			setPrefetch(prop.containsKey("prefetch") && Boolean.parseBoolean(prop.getProperty("prefetch")) ? PREFETCH_CAPACITY : 0);
+
+			// Read compare mode ("date" or "hash")
+			String comparemode = prop.containsKey("comparemode") ? prop.getProperty("comparemode") : "date";
+			if (comparemode.equals("hash")){
+				setHashCache(HashCache.load(new File(prop.containsKey("hashcache") ? prop.getProperty("hashcache") : syncFile + ".hashes")));
+			}else if (comparemode.equals("date")){
+				setHashCache(null);
+			}else{
+				throw new Exception("Error: Unknown compare mode \"" + comparemode + "\" (must be \"date\" or \"hash\")");
+			}
 			
 			// Read sync filters
 			List<String> filter = new ArrayList<String>();
@@ -189,55 +290,38 @@ public class Synchronizer{
 			}else if (prop.containsKey("filter")){
 				filter = (List<String>)prop.getAsList("filter");
 			}
+			FilterEngine filterEngine = new FilterEngine(filter);
 
 			// Synchronize all directories and collect file system actions
-			List<ActionGroup> actiongroups = new ArrayList<ActionGroup>();
-			for (String currentLocation : locations){
-			
-				// locations and type of synchronization
-				boolean bidirectional = false;
-				String loc1 = "";
-				String loc2 = "";
-				if (currentLocation.contains("<-->")){
-					String[] sublocations = currentLocation.split("<-->");
-					bidirectional = true;
-					loc1 = (sublocations[0].startsWith("!") ? sublocations[0].substring(1) : prefix1 + sublocations[0]);
-					loc2 = (sublocations[1].startsWith("!") ? sublocations[1].substring(1) : prefix2 + sublocations[1]);
-				}else if (currentLocation.contains("-->")){
-					String[] sublocations = currentLocation.split("-->");
-					bidirectional = false;
-					loc1 = (sublocations[0].startsWith("!") ? sublocations[0].substring(1) : prefix1 + sublocations[0]);
-					loc2 = (sublocations[1].startsWith("!") ? sublocations[1].substring(1) : prefix2 + sublocations[1]);
-				}else if (currentLocation.contains("<--")){
-					String[] sublocations = currentLocation.split("<--");
-					bidirectional = false;
-					loc1 = (sublocations[0].startsWith("!") ? sublocations[0].substring(1) : prefix1 + sublocations[1]);
-					loc2 = (sublocations[1].startsWith("!") ? sublocations[1].substring(1) : prefix2 + sublocations[0]);
-				}else{
-					// Error
-					continue;
+			List<SyncLocation> syncLocations = readSyncLocations();
+			if (prop.containsKey("devicelimit") && syncLocations.size() > 1){
+				synchronizeConcurrently(syncLocations, Integer.parseInt(prop.getProperty("devicelimit")), referenceDate, subtrees, useCache, filterEngine, timemargin, sink);
+			}else{
+				for (SyncLocation currentLocation : syncLocations){
+					long pairStartTime = System.currentTimeMillis();
+					CountingSink pairSink = new CountingSink(sink);
+					synchronize(currentLocation, referenceDate, subtrees, useCache, filterEngine, timemargin, pairSink);
+					printPairStatistics(currentLocation, pairSink.count, System.currentTimeMillis() - pairStartTime);
 				}
-
-				if ((!(new File(loc1).exists())) || (!(new File(loc2).exists()))){
-					String rd = (!(new File(loc1).exists())) ? loc1 : loc2;
-					throw new Exception("Error: One of the root sync directories (" + rd + ") could not be accessed. Make sure that all devices are correctly mounted.");
+			}
+			syncTime = System.currentTimeMillis() - startTime;
+			statCalls = FileSnapshot.getStatCalls() - startStatCalls;
+			if (filterEngine.size() > 0) System.out.println("   Excluded elements per filter:\n      " + filterEngine.getStatistics().replace("\n", "\n      "));
+			if (hashCache != null){
+				// Entries of deleted or modified files below the compared elements are not needed anymore
+				List<String> hashedRoots = new ArrayList<String>();
+				if (subtrees != null){
+					for (File subtree : subtrees) hashedRoots.add(subtree.getAbsolutePath());
 				}else{
-					// Synchronize locations
-					System.out.println("   Analyzing " + loc1 + (bidirectional ? " <--> " : " --> ") + loc2);
-					if (useCache){
-						actiongroups.addAll(synchronize(	new CachedFile(loc1),
-															new CachedFile(loc2),
-															referenceDate, bidirectional, filter, timemargin));
-					}else{
-						actiongroups.addAll(synchronize(	new File(loc1),
-															new File(loc2),
-															referenceDate, bidirectional, filter, timemargin));
+					for (SyncLocation currentLocation : syncLocations){
+						hashedRoots.add(new File(currentLocation.location1).getAbsolutePath());
+						hashedRoots.add(new File(currentLocation.location2).getAbsolutePath());
 					}
 				}
+				hashCache.prune(hashedRoots);
+				System.out.println("   " + hashCache.getStatistics());
+				hashCache.save();
 			}
-			syncTime = System.currentTimeMillis() - startTime;
-
-			return actiongroups;
 		} catch (FileNotFoundException e) {
 			throw new Exception("Error: sync config file could not be found");
 		} catch (IOException e) {
@@ -245,6 +329,266 @@ public class Synchronizer{
 		}
 	}
 
+	/**
+	 * Synchronizes one pair of sync locations.
+	 * @param currentLocation
+	 * @param referenceDate
+	 * @param subtrees Elements of the locations to be compared (or null to compare the whole locations)
+	 * @param useCache
+	 * @param filterEngine
+	 * @param timemargin
+	 * @param sink
+	 * @throws Exception If one of the locations does not exist
+	 */
+	private void synchronize(SyncLocation currentLocation, Date referenceDate, Collection<File> subtrees, boolean useCache, FilterEngine filterEngine, int timemargin, ActionGroupSink sink) throws Exception{
+		String loc1 = currentLocation.location1;
+		String loc2 = currentLocation.location2;
+		boolean bidirectional = currentLocation.bidirectional;
+
+		if ((!(new File(loc1).exists())) || (!(new File(loc2).exists()))){
+			String rd = (!(new File(loc1).exists())) ? loc1 : loc2;
+			throw new Exception("Error: One of the root sync directories (" + rd + ") could not be accessed. Make sure that all devices are correctly mounted.");
+		}else if (subtrees != null){
+			// Synchronize the given elements of the locations
+			List<String> relativePaths = getRelativePaths(subtrees, loc1, loc2);
+			if (relativePaths.size() == 0) return;
+			System.out.println("   Analyzing " + relativePaths.size() + " subtrees of " + loc1 + (bidirectional ? " <--> " : " --> ") + loc2);
+			File[] subtrees1 = new File[relativePaths.size()];
+			File[] subtrees2 = new File[relativePaths.size()];
+			for (int i = 0; i < subtrees1.length; i++){
+				subtrees1[i] = new File(loc1, relativePaths.get(i));
+				subtrees2[i] = new File(loc2, relativePaths.get(i));
+			}
+			synchronize(	new File(loc1), new File(loc2), subtrees1, subtrees2,
+							referenceDate, bidirectional, filterEngine, timemargin, false, sink);
+		}else{
+			// Synchronize locations
+			System.out.println("   Analyzing " + loc1 + (bidirectional ? " <--> " : " --> ") + loc2);
+			if (useCache){
+				synchronize(	new CachedFile(loc1),
+								new CachedFile(loc2),
+								referenceDate, bidirectional, filterEngine, timemargin, sink);
+			}else{
+				synchronize(	new File(loc1),
+								new File(loc2),
+								referenceDate, bidirectional, filterEngine, timemargin, sink);
+			}
+		}
+	}
+
+	/**
+	 * Synchronizes several pairs of sync locations concurrently. Each location belongs to a device group (see getDeviceGroup);
+	 * at most deviceLimit pairs access the same device group at the same time. The action groups are passed to the sink in the order of the pairs:
+	 * the groups of the first unfinished pair are passed on while they are found, those of later pairs are queued until the pairs before are finished.
+	 * @param syncLocations
+	 * @param deviceLimit
+	 * @param referenceDate
+	 * @param subtrees
+	 * @param useCache
+	 * @param filterEngine
+	 * @param timemargin
+	 * @param sink
+	 * @throws Exception
+	 */
+	private void synchronizeConcurrently(List<SyncLocation> syncLocations, int deviceLimit, final Date referenceDate, final Collection<File> subtrees, final boolean useCache, final FilterEngine filterEngine, final int timemargin, ActionGroupSink sink) throws Exception{
+		if (deviceLimit < 1) throw new Exception("Error: devicelimit must be at least 1");
+
+		Map<String, String> devices = readDevices(prop);
+
+		// One semaphore per device group
+		final Map<String, Semaphore> groupLimits = new HashMap<String, Semaphore>();
+		ExecutorService executor = Executors.newFixedThreadPool(syncLocations.size());
+		try{
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			List<QueueSink> pairSinks = new ArrayList<QueueSink>();
+			final long[] pairTimes = new long[syncLocations.size()];
+			for (int i = 0; i < syncLocations.size(); i++){
+				final int index = i;
+				final SyncLocation currentLocation = syncLocations.get(i);
+				// Groups are acquired in a fixed order to avoid deadlocks
+				TreeSet<String> groups = new TreeSet<String>();
+				groups.add(getDeviceGroup(currentLocation.location1, devices));
+				groups.add(getDeviceGroup(currentLocation.location2, devices));
+				final List<Semaphore> limits = new ArrayList<Semaphore>();
+				for (String group : groups){
+					if (!groupLimits.containsKey(group)) groupLimits.put(group, new Semaphore(deviceLimit, true));
+					limits.add(groupLimits.get(group));
+				}
+				final QueueSink pairSink = new QueueSink();
+				pairSinks.add(pairSink);
+				results.add(executor.submit(new Callable<Void>(){
+					public Void call() throws Exception{
+						try{
+							for (Semaphore limit : limits) limit.acquire();
+							try{
+								long pairStartTime = System.currentTimeMillis();
+								synchronize(currentLocation, referenceDate, subtrees, useCache, filterEngine, timemargin, pairSink);
+								pairTimes[index] = System.currentTimeMillis() - pairStartTime;
+								return null;
+							}finally{
+								for (Semaphore limit : limits) limit.release();
+							}
+						}finally{
+							pairSink.finish();
+						}
+					}
+				}));
+			}
+			System.out.println("   " + groupLimits.size() + " device groups, at most " + deviceLimit + " pairs per device group");
+
+			// Pass the action groups on in the order of the pairs (from this thread, see ActionGroupSink)
+			for (int i = 0; i < results.size(); i++){
+				int count = 0;
+				for (ActionGroup ag = pairSinks.get(i).take(); ag != null; ag = pairSinks.get(i).take()){
+					sink.add(ag);
+					count++;
+				}
+				try{
+					results.get(i).get();
+				}catch(ExecutionException e){
+					if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+					throw e;
+				}
+				printPairStatistics(syncLocations.get(i), count, pairTimes[i]);
+			}
+		}finally{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads the device groups configured as "devices=[path]=[group];...".
+	 * @param prop
+	 * @return Map<String, String> Device groups by absolute path
+	 */
+	static Map<String, String> readDevices(MultiProperties prop){
+		Map<String, String> devices = new HashMap<String, String>();
+		if (prop.containsKey("devices")){
+			for (String device : prop.getAsList("devices")){
+				int split = device.lastIndexOf('=');
+				if (split > 0) devices.put(new File(device.substring(0, split)).getAbsolutePath(), device.substring(split + 1));
+			}
+		}
+		return devices;
+	}
+
+	/**
+	 * Returns the device group of a location: the group of the longest configured path which contains the location,
+	 * otherwise the file store of the location.
+	 * @param location
+	 * @param devices Configured device groups by path
+	 * @return String
+	 */
+	static String getDeviceGroup(String location, Map<String, String> devices){
+		String path = new File(location).getAbsolutePath();
+		String group = null;
+		int length = -1;
+		for (Map.Entry<String, String> device : devices.entrySet()){
+			String prefix = device.getKey();
+			if ((path.equals(prefix) || path.startsWith(prefix.endsWith(File.separator) ? prefix : prefix + File.separator)) && prefix.length() > length){
+				group = device.getValue();
+				length = prefix.length();
+			}
+		}
+		if (group != null) return group;
+		try{
+			return Files.getFileStore(Paths.get(path)).toString();
+		}catch(IOException ioe){
+			return path;
+		}
+	}
+
+	/**
+	 * Prints the number of action groups and the time needed for one pair of sync locations.
+	 * @param currentLocation
+	 * @param actionGroups
+	 * @param time Milliseconds
+	 */
+	private static void printPairStatistics(SyncLocation currentLocation, int actionGroups, long time){
+		System.out.println("   " + currentLocation.location1 + (currentLocation.bidirectional ? " <--> " : " --> ") + currentLocation.location2 + ": "
+				+ actionGroups + " action groups, " + String.format("%.2f", time / 1000.0) + " seconds");
+	}
+
+	/**
+	 * Passes action groups on to another sink and counts them.
+	 */
+	private static class CountingSink implements ActionGroupSink{
+		final ActionGroupSink sink;
+		int count = 0;
+
+		CountingSink(ActionGroupSink sink){
+			this.sink = sink;
+		}
+
+		public void add(ActionGroup actionGroup){
+			count++;
+			sink.add(actionGroup);
+		}
+	}
+
+	/**
+	 * Queues the action groups of a pair which is synchronized by another thread.
+	 */
+	private static class QueueSink implements ActionGroupSink{
+		// Marks the end of the queue (the pair is finished or failed)
+		private static final Object END = new Object();
+		private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+
+		public void add(ActionGroup actionGroup){
+			queue.add(actionGroup);
+		}
+
+		void finish(){
+			queue.add(END);
+		}
+
+		/**
+		 * Waits for the next action group.
+		 * @return ActionGroup Action group or null, if the pair is finished
+		 * @throws InterruptedException
+		 */
+		ActionGroup take() throws InterruptedException{
+			Object next = queue.take();
+			return next == END ? null : (ActionGroup)next;
+		}
+	}
+
+	/**
+	 * Returns the paths of the elements below location1 or location2 relative to their location.
+	 * Elements below another element of the list are dropped, since they are compared as part of the subtree of the other one.
+	 * @param subtrees
+	 * @param loc1
+	 * @param loc2
+	 * @return List<String> Relative paths (sorted)
+	 */
+	private static List<String> getRelativePaths(Collection<File> subtrees, String loc1, String loc2){
+		List<String> relativePaths = new ArrayList<String>();
+		for (File subtree : subtrees){
+			String path = subtree.getAbsolutePath();
+			for (String root : new String[]{ new File(loc1).getAbsolutePath(), new File(loc2).getAbsolutePath() }){
+				if (path.equals(root)){
+					relativePaths.add("");
+				}else if (path.startsWith(root.endsWith(File.separator) ? root : root + File.separator)){
+					relativePaths.add(path.substring(root.endsWith(File.separator) ? root.length() : root.length() + 1));
+				}
+			}
+		}
+		Collections.sort(relativePaths);
+		Set<String> kept = new HashSet<String>();
+		List<String> result = new ArrayList<String>();
+		for (String relativePath : relativePaths){
+			boolean covered = kept.contains("");
+			for (String p = relativePath; !covered && p != null; p = new File(p).getParent()){
+				covered = kept.contains(p);
+			}
+			if (!covered){
+				kept.add(relativePath);
+				result.add(relativePath);
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * Synchronizes two directories. The method does not apply any file operations. Rather it generates a list of suggested modifications.
 	 * @param location1
@@ -256,15 +600,20 @@ public class Synchronizer{
 	public List<ActionGroup> synchronize(String loc1, String loc2, boolean bidirectional, Date referencedate) throws Exception{	
 		// Synchronize locations
 		long startTime = System.currentTimeMillis();
+		long startStatCalls = FileSnapshot.getStatCalls();
+		comparedEntries.set(0);
 		List<ActionGroup> actiongroups = synchronize(	new File(loc1),
 														new File(loc2),
-														referencedate, bidirectional, null, 0);
+														referencedate, bidirectional, (List<String>)null, 0);
 		syncTime = System.currentTimeMillis() - startTime;
+		statCalls = FileSnapshot.getStatCalls() - startStatCalls;
 		return actiongroups;
 	}
 	
 	/**
 	 * Synchronizes two directories. The method does not apply any file operations. Rather it generates a list of suggested modifications.
+	 * If more than one thread is configured (see setThreads), subdirectory pairs are compared in parallel by a fork-join pool;
+	 * the resulting list is in the same order as the one of the sequential traversal.
 	 * @param location1
 	 * @param location2
 	 * @param referenceDate (should be the date of the last import)
@@ -276,186 +625,844 @@ public class Synchronizer{
 	 * @throws IllegalArgumentException If one of the locations is a subpath of the other one
 	 */
 	public List<ActionGroup> synchronize(File location1, File location2, Date referenceDate, boolean bidirectional, List<String> filter, int timemargin) throws IllegalArgumentException{
+		return synchronize(location1, location2, referenceDate, bidirectional, new FilterEngine(filter), timemargin);
+	}
+
+	/**
+	 * Synchronizes two directories using precompiled filters.
+	 * @param location1
+	 * @param location2
+	 * @param referenceDate (should be the date of the last import)
+	 * @param bidirectional If false, synchronization will only occur from location1 to location2
+	 * @param filter
+	 * @param timemargin The maximum number of seconds between two timestamps to be treated as equal
+	 * @return List<ActionGroup> List of suggested file operations
+	 * @throws IllegalArgumentException If one of the locations is a subpath of the other one
+	 */
+	public List<ActionGroup> synchronize(File location1, File location2, Date referenceDate, boolean bidirectional, FilterEngine filter, int timemargin) throws IllegalArgumentException{
+		CollectingSink sink = new CollectingSink();
+		synchronize(location1, location2, referenceDate, bidirectional, filter, timemargin, sink);
+		return sink.actions;
+	}
+
+	/**
+	 * Synchronizes two directories and passes the suggested modifications to a sink in traversal order, as soon as they are found.
+	 * In sequential mode, no action groups are kept in memory. In parallel mode, subtrees which were compared ahead of the
+	 * traversal are kept until all preceding action groups were passed to the sink; the comparison runs ahead only as far
+	 * as COMPARE_BUFFER and COMPARE_TASKS_PER_THREAD allow, hence a slow sink also slows down the comparison.
+	 * @param location1
+	 * @param location2
+	 * @param referenceDate (should be the date of the last import)
+	 * @param bidirectional If false, synchronization will only occur from location1 to location2
+	 * @param filter
+	 * @param timemargin The maximum number of seconds between two timestamps to be treated as equal
+	 * @param sink
+	 * @throws IllegalArgumentException If one of the locations is a subpath of the other one
+	 */
+	public void synchronize(File location1, File location2, Date referenceDate, boolean bidirectional, FilterEngine filter, int timemargin, ActionGroupSink sink) throws IllegalArgumentException{
 		// Sanity check
 		if (location1.getAbsolutePath().startsWith(location2.getAbsolutePath()) ||
 			location2.getAbsolutePath().startsWith(location1.getAbsolutePath())){
 			throw new IllegalArgumentException("One of the locations is subpath of the other one");
 		}
-	
-		List<ActionGroup> actions = new ArrayList<ActionGroup>(); 
+
+		synchronize(location1, location2, new File[]{ location1 }, new File[]{ location2 }, referenceDate, bidirectional, filter, timemargin, true, sink);
+	}
+
+	/**
+	 * Synchronizes pairs of subtrees of two locations.
+	 * @param root1 location1
+	 * @param root2 location2
+	 * @param subtrees1 Elements of location1 to be compared
+	 * @param subtrees2 Corresponding elements of location2
+	 * @param referenceDate
+	 * @param bidirectional
+	 * @param filter
+	 * @param timemargin
+	 * @param useIndex If false, the sync indexes are not used even if available
+	 * @param sink
+	 */
+	private void synchronize(File root1, File root2, File[] subtrees1, File[] subtrees2, Date referenceDate, boolean bidirectional, FilterEngine filter, int timemargin, boolean useIndex, ActionGroupSink sink){
+		CompareContext ctx = new CompareContext(root1, root2, referenceDate, bidirectional, timemargin, useIndex);
+		try{
+			for (int i = 0; i < subtrees1.length; i++){
+				List<LocationPair> children = compare(new LocationPair(subtrees1[i], subtrees2[i], null, null, filter, filter), ctx, sink);
+				if (children != null){
+					if (getThreads() > 1){
+						// Distribute the subdirectory pairs over the fork-join pool
+						CompareTask root = new CompareTask(children, ctx);
+						start(root);
+						emit(root, sink);
+					}else{
+						synchronizeSequential(children, ctx, sink);
+					}
+				}
+			}
+			if (ctx.moves != null){
+				ctx.moves.flush(sink);
+				if (ctx.moves.getMoves() > 0) System.out.println("   " + ctx.moves.getMoves() + " moved elements detected");
+			}
+			if (prefetch > 0){
+				System.out.println("   Prefetch location1: " + ctx.walker1.getPrefetchStatistics());
+				System.out.println("   Prefetch location2: " + ctx.walker2.getPrefetchStatistics());
+			}
+		}finally{
+			ctx.close();
+		}
+	}
+
+	/**
+	 * Returns an iterator over the sync actions for the locations defined in a sync file. The locations are analyzed in
+	 * a background thread while the iterator is consumed; at most a fixed number of action groups is buffered.
+	 * The stream must be closed if it is not consumed completely.
+	 * @param syncFile
+	 * @param referenceDate
+	 * @return ActionGroupStream
+	 */
+	public ActionGroupStream iterate(final String syncFile, final Date referenceDate){
+		ActionGroupStream stream = new ActionGroupStream(STREAM_BUFFER){
+			protected void produce() throws Exception{
+				synchronize(syncFile, referenceDate, this);
+			}
+		};
+		stream.start();
+		return stream;
+	}
+
+	/**
+	 * Returns an iterator over the suggested modifications for two directories. The directories are analyzed in
+	 * a background thread while the iterator is consumed; at most a fixed number of action groups is buffered.
+	 * @param location1
+	 * @param location2
+	 * @param referenceDate (should be the date of the last import)
+	 * @param bidirectional If false, synchronization will only occur from location1 to location2
+	 * @param filter
+	 * @param timemargin The maximum number of seconds between two timestamps to be treated as equal
+	 * @return ActionGroupStream Must be closed if it is not consumed completely
+	 */
+	public ActionGroupStream iterate(final File location1, final File location2, final Date referenceDate, final boolean bidirectional, final FilterEngine filter, final int timemargin){
+		ActionGroupStream stream = new ActionGroupStream(STREAM_BUFFER){
+			protected void produce() throws Exception{
+				synchronize(location1, location2, referenceDate, bidirectional, filter, timemargin, this);
+			}
+		};
+		stream.start();
+		return stream;
+	}
+
+	/**
+	 * Collects action groups in a plan (see PlanStore).
+	 */
+	static class CollectingSink implements ActionGroupSink{
+		final PlanStore actions = new PlanStore();
+
+		public void add(ActionGroup actionGroup){
+			actions.add(actionGroup);
+		}
+	}
+
+	/**
+	 * Parameters which are shared by all comparisons of one pair of sync locations.
+	 */
+	private class CompareContext{
+		final Date referenceDate;
+		final boolean bidirectional;
+		final int timemargin;
+		final boolean ignoreSymbolicLinks;
+		final String root1;
+		final SyncIndex index1;
+		final SyncIndex index2;
+		final SideWalker walker1;
+		final SideWalker walker2;
+		final HashCache hashCache;
+		final MoveDetector moves;
+		// Parallel comparison: action groups and compare tasks ahead of the traversal (see CompareTask)
+		final AtomicInteger bufferedGroups = new AtomicInteger();
+		final AtomicInteger runningTasks = new AtomicInteger();
+		final int maxRunningTasks;
+		volatile boolean closed = false;
+
+		CompareContext(File location1, File location2, Date referenceDate, boolean bidirectional, int timemargin, boolean useIndex){
+			this.referenceDate = referenceDate;
+			this.bidirectional = bidirectional;
+			this.timemargin = timemargin;
+			this.ignoreSymbolicLinks = prop == null || !prop.containsKey("ignoresymboliclinks") || new Boolean(prop.getProperty("ignoresymboliclinks")).booleanValue();
+			this.root1 = location1.getAbsolutePath();
+			this.hashCache = Synchronizer.this.hashCache;
+			this.moves = detectMoves ? new MoveDetector(location1.getAbsolutePath(), location2.getAbsolutePath(), bidirectional, hashCache) : null;
+
+			// The index is only used if both locations were indexed after the last synchronization
+			SyncIndex i1 = null;
+			SyncIndex i2 = null;
+			if (indexDirectory != null && useIndex){
+				i1 = SyncIndex.open(indexDirectory, location1.getAbsolutePath());
+				i2 = SyncIndex.open(indexDirectory, location2.getAbsolutePath());
+				if (i1 == null || i2 == null){
+					System.out.println("   No sync index available yet, using reference date");
+					i1 = null;
+					i2 = null;
+				}
+			}
+			this.index1 = i1;
+			this.index2 = i2;
+
+			// One walker per location, each listing as many directories concurrently as there are comparison threads
+			// Attributes are read as by snapshot, i.e., symbolic links are followed
+			this.walker1 = new SideWalker("dsync-walker-1", getThreads(), prefetch > 0 ? new Prefetcher("dsync-prefetch-1", prefetch, true) : null);
+			this.walker2 = new SideWalker("dsync-walker-2", getThreads(), prefetch > 0 ? new Prefetcher("dsync-prefetch-2", prefetch, true) : null);
+			this.maxRunningTasks = getThreads() * COMPARE_TASKS_PER_THREAD;
+		}
+
+		/**
+		 * Reserves a compare task ahead of the traversal.
+		 * @return boolean False if the comparison is too far ahead of the sink (the task is started when the traversal reaches it)
+		 */
+		boolean reserveTask(){
+			if (bufferedGroups.get() >= COMPARE_BUFFER) return false;
+			if (runningTasks.incrementAndGet() > maxRunningTasks){
+				runningTasks.decrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Stops the walkers and compare tasks which are still running.
+		 */
+		void close(){
+			closed = true;
+			walker1.shutdown();
+			walker2.shutdown();
+		}
+
+		/**
+		 * Returns the path of an entry of location1 relative to the root (as used by the sync index).
+		 * @param location
+		 * @return String
+		 */
+		String relativePath(File location){
+			String path = location.getAbsolutePath();
+			if (path.length() <= root1.length()) return "";
+			return path.substring(root1.endsWith(File.separator) ? root1.length() : root1.length() + 1).replace(File.separator, "/");
+		}
+	}
+
+	/**
+	 * Compares the subtrees of a list of child pairs in the given thread, passing the differences to the sink in traversal order.
+	 * @param children
+	 * @param ctx
+	 * @param actions
+	 */
+	private void synchronizeSequential(List<LocationPair> children, CompareContext ctx, ActionGroupSink actions){
+		for (LocationPair child : children){
+			List<LocationPair> grandchildren = compare(child, ctx, actions);
+			if (grandchildren != null) synchronizeSequential(grandchildren, ctx, actions);
+		}
+	}
+
+	/**
+	 * Compares the children of one directory pair. Children which are not directories on both sides are compared directly,
+	 * whereas directory pairs become subtasks. The result is the list of parts in the order of the children:
+	 * action groups found directly and subtasks for the subdirectories.
+	 * Subtasks are forked while the comparison is not too far ahead of the traversal (see CompareContext.reserveTask);
+	 * otherwise they are started by emit when the traversal reaches them. Tasks never wait for the traversal, such that
+	 * the task at the position of the traversal always completes.
+	 */
+	private class CompareTask extends RecursiveTask<List<Object>>{
+		private static final long serialVersionUID = 1L;
+		private final List<LocationPair> children;
+		private final CompareContext ctx;
+		// Set when the task was forked or executed (only changed by the thread which owns the parts list containing it)
+		boolean started = false;
+
+		CompareTask(List<LocationPair> children, CompareContext ctx){
+			this.children = children;
+			this.ctx = ctx;
+		}
+
+		@Override
+		protected List<Object> compute(){
+			final List<Object> parts = new ArrayList<Object>();
+			ActionGroupSink partSink = new ActionGroupSink(){
+				public void add(ActionGroup actionGroup){
+					ctx.bufferedGroups.incrementAndGet();
+					parts.add(actionGroup);
+				}
+			};
+			for (LocationPair child : children){
+				// The traversal was aborted
+				if (ctx.closed) break;
+				List<LocationPair> grandchildren = compare(child, ctx, partSink);
+				if (grandchildren != null && grandchildren.size() > 0){
+					CompareTask subtask = new CompareTask(grandchildren, ctx);
+					if (ctx.reserveTask()){
+						subtask.started = true;
+						subtask.fork();
+					}
+					parts.add(subtask);
+				}
+			}
+			return parts;
+		}
+	}
+
+	/**
+	 * Executes a compare task in the pool (counted as running).
+	 * @param task
+	 */
+	private void start(CompareTask task){
+		task.started = true;
+		task.ctx.runningTasks.incrementAndGet();
+		getPool().execute(task);
+	}
+
+	/**
+	 * Passes the results of a compare task to a sink in traversal order, waiting for subtasks as necessary.
+	 * Parts are released as soon as they were passed to the sink; subtasks which were not started yet are started
+	 * when the traversal reaches them, together with their successors as far as the limits allow.
+	 * @param task
+	 * @param sink
+	 */
+	private void emit(CompareTask task, ActionGroupSink sink){
+		List<Object> parts = task.join();
+		CompareContext ctx = task.ctx;
+		for (int i = 0; i < parts.size(); i++){
+			Object part = parts.get(i);
+			parts.set(i, null);
+			if (part instanceof CompareTask){
+				CompareTask subtask = (CompareTask)part;
+				if (!subtask.started){
+					start(subtask);
+					for (int j = i + 1; j < parts.size(); j++){
+						if (parts.get(j) instanceof CompareTask && !((CompareTask)parts.get(j)).started){
+							if (!ctx.reserveTask()) break;
+							((CompareTask)parts.get(j)).started = true;
+							getPool().execute((CompareTask)parts.get(j));
+						}
+					}
+				}
+				emit(subtask, sink);
+			}else{
+				ctx.bufferedGroups.decrementAndGet();
+				sink.add((ActionGroup)part);
+			}
+		}
+		ctx.runningTasks.decrementAndGet();
+	}
+
+	/**
+	 * A pair of locations to be compared, together with the snapshots of their parent directories and the filters in their scope.
+	 */
+	private static class LocationPair{
+		final File location1;
+		final File location2;
+		final FileSnapshot parent1;
+		final FileSnapshot parent2;
+		final FilterEngine filter1;
+		final FilterEngine filter2;
+		// Set if the listing of the parent directory showed that the location does not exist (no stat call necessary)
+		final boolean missing1;
+		final boolean missing2;
+
+		LocationPair(File location1, File location2, FileSnapshot parent1, FileSnapshot parent2, FilterEngine filter1, FilterEngine filter2){
+			this(location1, location2, parent1, parent2, filter1, filter2, false, false);
+		}
+
+		LocationPair(File location1, File location2, FileSnapshot parent1, FileSnapshot parent2, FilterEngine filter1, FilterEngine filter2, boolean missing1, boolean missing2){
+			this.location1 = location1;
+			this.location2 = location2;
+			this.parent1 = parent1;
+			this.parent2 = parent2;
+			this.filter1 = filter1;
+			this.filter2 = filter2;
+			this.missing1 = missing1;
+			this.missing2 = missing2;
+		}
+	}
+
+	/**
+	 * Takes the snapshot of a location, either from the file system cache or with a single stat call.
+	 * @param location
+	 * @return FileSnapshot
+	 */
+	static FileSnapshot snapshot(File location){
+		if (location instanceof CachedFile) return ((CachedFile)location).snapshot();
+		return FileSnapshot.read(location.toPath(), true);
+	}
+
+	/**
+	 * Takes the snapshot of a location, preferably from the attributes read ahead by the walker of its location.
+	 * @param location
+	 * @param walker
+	 * @return FileSnapshot
+	 */
+	private static FileSnapshot snapshot(File location, SideWalker walker){
+		FileSnapshot snapshot = walker.snapshot(location);
+		return snapshot != null ? snapshot : snapshot(location);
+	}
+
+	/**
+	 * Compares a single pair of locations (without descending into subdirectories).
+	 * All decisions are based on one snapshot per location (and the snapshots of the parent directories).
+	 * @param pair
+	 * @param ctx
+	 * @param actions Suggested file operations for this pair are passed to this sink
+	 * @return List<LocationPair> If both locations are directories, the pairs of children to be compared next (in traversal order); otherwise null
+	 */
+	private List<LocationPair> compare(LocationPair pair, CompareContext ctx, ActionGroupSink actions){
+		File location1 = pair.location1;
+		File location2 = pair.location2;
+		Date referenceDate = ctx.referenceDate;
+		boolean bidirectional = ctx.bidirectional;
+		int timemargin = ctx.timemargin;
+
+		comparedEntries.incrementAndGet();
+		FileSnapshot snapshot1 = pair.missing1 ? FileSnapshot.MISSING : snapshot(location1, ctx.walker1);
+		FileSnapshot snapshot2 = pair.missing2 ? FileSnapshot.MISSING : snapshot(location2, ctx.walker2);
 
 		// Check if both locations dir1 and dir2 exist
-		if (location1.exists() && location2.exists()){
+		if (snapshot1.exists() && snapshot2.exists()){
 			// Filter
-			if (isFilterAppicable("Name:" + location1.getName(), filter)) return actions;
-			if (isFilterAppicable("Path:" + location1.getAbsolutePath().replace(File.separator, "/"), filter)) return actions;
-			if (isFilterAppicable("Name:" + location2.getName(), filter)) return actions;
-			if (isFilterAppicable("Path:" + location2.getAbsolutePath().replace(File.separator, "/"), filter)) return actions;
+			if (isFilterApplicable(location1, pair.filter1) || isFilterApplicable(location2, pair.filter2)) return null;
 
 			// ignore symbolic links
-			boolean ignoreSymbolicLinks = !prop.containsKey("ignoresymboliclinks") || new Boolean(prop.getProperty("ignoresymboliclinks")).booleanValue();
-			if (ignoreSymbolicLinks){
-				if (java.nio.file.Files.isSymbolicLink(location1.toPath()) || java.nio.file.Files.isSymbolicLink(location2.toPath())) return actions;
+			if (ctx.ignoreSymbolicLinks){
+				if (snapshot1.isSymbolicLink() || snapshot2.isSymbolicLink()) return null;
 			}
 
 			// Files or directories?
-			if (location1.isFile() && location2.isFile()){
+			if (snapshot1.isFile() && snapshot2.isFile()){
 				// Files
 				// Compare files
-				if (Math.abs((location1.lastModified() / 1000) - (location2.lastModified() / 1000)) > timemargin){
+				boolean sameDate = Math.abs((snapshot1.lastModified() / 1000) - (snapshot2.lastModified() / 1000)) <= timemargin;
+				boolean different = !sameDate;
+				if (ctx.hashCache != null){
+					// Files of different sizes differ regardless of their dates, files of the same size only if their contents differ.
+					// Files with equal dates are compared as well if one of them was modified since the last synchronization
+					// (it may have been changed within the same second); files unchanged since then are not read again
+					if (snapshot1.length() != snapshot2.length()){
+						different = true;
+					}else if (different || snapshot1.lastModified() > referenceDate.getTime() || snapshot2.lastModified() > referenceDate.getTime()){
+						Future<byte[]> hash1 = ctx.walker1.hash(ctx.hashCache, location1, snapshot1);
+						Future<byte[]> hash2 = ctx.walker2.hash(ctx.hashCache, location2, snapshot2);
+						byte[] h1 = SideWalker.get(hash1);
+						byte[] h2 = SideWalker.get(hash2);
+						different = h1 == null || h2 == null || !Arrays.equals(h1, h2);
+					}
+				}
+				if (different){
+					// Determine which copies were modified since the last synchronization: from the sync index if available, otherwise from the reference date
+					boolean modified1 = snapshot1.lastModified() > referenceDate.getTime();
+					boolean modified2 = snapshot2.lastModified() > referenceDate.getTime();
+					boolean location2Newer = snapshot1.lastModified() < snapshot2.lastModified();
+					boolean indexed = false;
+					if (ctx.index1 != null){
+						String relativePath = ctx.relativePath(location1);
+						SyncIndex.Entry indexed1 = ctx.index1.lookup(relativePath);
+						SyncIndex.Entry indexed2 = ctx.index2.lookup(relativePath);
+						if (indexed1 != null && indexed2 != null && !(indexed1.matches(snapshot1, timemargin) && indexed2.matches(snapshot2, timemargin))){
+							modified1 = !indexed1.matches(snapshot1, timemargin);
+							modified2 = !indexed2.matches(snapshot2, timemargin);
+							location2Newer = modified2;
+							indexed = true;
+						}
+					}
+					if (sameDate && !indexed){
+						// The contents differ but the dates do not tell which copy is newer
+						modified1 = true;
+						modified2 = true;
+					}
+
 					// If both copies were modified after the last synchronization, there is a conflict
-					if (location1.lastModified() > referenceDate.getTime() && location2.lastModified() > referenceDate.getTime()){
+					if (modified1 && modified2){
 						ActionGroup ag = new ActionGroup("Conflict", '>', '<',
 								new Action(Action.Type.CopyFile, location1.getAbsolutePath(), location2.getAbsolutePath()),
 								new Action(Action.Type.CopyFile, location2.getAbsolutePath(), location1.getAbsolutePath()));
 						ag.unselectAction();
-						actions.add(ag);
+						actions.add(withSnapshots(ag, location1, snapshot1, snapshot2));
 					}else{
 						// Files are different: Check which one is more recent
-						if (location1.lastModified() < location2.lastModified()){
+						if (location2Newer){
 							// location2 is newer
 							if (bidirectional){
-								actions.add(new ActionGroup('<', '>',
+								actions.add(withSnapshots(new ActionGroup('<', '>',
 										new Action(Action.Type.CopyFile, location2.getAbsolutePath(), location1.getAbsolutePath()),
 										new Action(Action.Type.CopyFile, location1.getAbsolutePath(), location2.getAbsolutePath())
-								));
+								), location1, snapshot1, snapshot2));
 							}
 						}else{
 							// location1 is newer
-							actions.add(new ActionGroup('>', '<',
+							actions.add(withSnapshots(new ActionGroup('>', '<',
 									new Action(Action.Type.CopyFile, location1.getAbsolutePath(), location2.getAbsolutePath()),
 									new Action(Action.Type.CopyFile, location2.getAbsolutePath(), location1.getAbsolutePath())
-							));
+							), location1, snapshot1, snapshot2));
 						}
 					}
 				}
-			}else if(location1.isDirectory() && location2.isDirectory()){
+			}else if(snapshot1.isDirectory() && snapshot2.isDirectory()){
 				// Directories
 				
-				// Make a list of all subdirecories
-				String[] children1 = new File(location1.getAbsolutePath()).list();
-				String[] children2 = new File(location2.getAbsolutePath()).list();
+				// List both directories concurrently (sorted)
+				Future<String[]> listing1 = ctx.walker1.list(location1);
+				Future<String[]> listing2 = ctx.walker2.list(location2);
+				String[] children1 = SideWalker.get(listing1);
+				String[] children2 = SideWalker.get(listing2);
 				if (children1 == null || children2 == null) {
 					System.err.println("      WARNING: Cannot synchronize two directories (readability of locations):\n" +
 					                   "         1. (" + (children1 == null ? "false" : "true ") + ") " + location1 + "\n" +
 									   "         2. (" + (children2 == null ? "false" : "true ") + ") " + location2);
-					return actions;
-				}
-				Set<String> children = new TreeSet<String>();
-				for (int i = 0; i < children1.length; i++){
-					if (children1[i].compareTo("") != 0) children.add(children1[i]);
-				}
-				for (int i = 0; i < children2.length; i++){
-					if (children2[i].compareTo("") != 0) children.add(children2[i]);
+					return null;
 				}
 				
-				// Recursive traversal through the subdirectories
-				for (String child : children){
-					if (location1 instanceof CachedFile && location2 instanceof CachedFile){
-						actions.addAll(synchronize(new CachedFile(location1.getAbsolutePath() + File.separator + child, (CachedFile)location1), new CachedFile(location2.getAbsolutePath() + File.separator + child, (CachedFile)location2), referenceDate, bidirectional, filter, timemargin));
+				// Pairs of children for the recursive traversal through the subdirectories (merge-join of both sorted listings)
+				FilterEngine childFilter1 = pair.filter1.restrictTo(location1.getAbsolutePath().replace(File.separator, "/"));
+				FilterEngine childFilter2 = pair.filter2.restrictTo(location2.getAbsolutePath().replace(File.separator, "/"));
+				List<LocationPair> childPairs = new ArrayList<LocationPair>(Math.max(children1.length, children2.length));
+				boolean cached = location1 instanceof CachedFile && location2 instanceof CachedFile;
+				int i = 0, j = 0;
+				while (i < children1.length || j < children2.length){
+					int cmp = i == children1.length ? 1 : j == children2.length ? -1 : children1[i].compareTo(children2[j]);
+					String child = cmp <= 0 ? children1[i] : children2[j];
+					if (cmp <= 0) i++;
+					if (cmp >= 0) j++;
+					if (cached){
+						childPairs.add(new LocationPair(new CachedFile(location1.getAbsolutePath() + File.separator + child, (CachedFile)location1), new CachedFile(location2.getAbsolutePath() + File.separator + child, (CachedFile)location2), snapshot1, snapshot2, childFilter1, childFilter2, cmp > 0, cmp < 0));
 					}else{
-						actions.addAll(synchronize(new File(location1.getAbsolutePath() + File.separator + child), new File(location2.getAbsolutePath() + File.separator + child), referenceDate, bidirectional, filter, timemargin));
+						childPairs.add(new LocationPair(new File(location1.getAbsolutePath() + File.separator + child), new File(location2.getAbsolutePath() + File.separator + child), snapshot1, snapshot2, childFilter1, childFilter2, cmp > 0, cmp < 0));
 					}
 				}
+				return childPairs;
 			}else{
 				// Error: One of the locations is a file, the other one is a directory
 				ActionGroup ag = new ActionGroup(	"Conflict", '>', '<',
-													new Action(location1.isDirectory() ? Action.Type.DelAndCopyDirectory : Action.Type.DelAndCopyFile, location1.getAbsolutePath(), location2.getAbsolutePath()),
-													new Action(location2.isDirectory() ? Action.Type.DelAndCopyDirectory : Action.Type.DelAndCopyFile, location2.getAbsolutePath(), location1.getAbsolutePath()));
+													new Action(snapshot1.isDirectory() ? Action.Type.DelAndCopyDirectory : Action.Type.DelAndCopyFile, location1.getAbsolutePath(), location2.getAbsolutePath()),
+													new Action(snapshot2.isDirectory() ? Action.Type.DelAndCopyDirectory : Action.Type.DelAndCopyFile, location2.getAbsolutePath(), location1.getAbsolutePath()));
 				ag.unselectAction();
-				actions.add(ag);
+				actions.add(withSnapshots(ag, location1, snapshot1, snapshot2));
 			}
-		}else if (!location1.exists() && !location2.exists()){
+		}else if (!snapshot1.exists() && !snapshot2.exists()){
 			// None of them exists --> nothing to do (should not happen, is only possible if configuration is wrong)
-			return actions;
+			return null;
 		}else{
 			// Check if location1 or location2 is missing
-			if (location1.exists()){
+			if (snapshot1.exists()){
 				// Filter
-				if (isFilterAppicable("Name:" + location1.getName(), filter)) return actions;
-				if (isFilterAppicable("Path:" + location1.getAbsolutePath().replace(File.separator, "/"), filter)) return actions;
+				if (isFilterApplicable(location1, pair.filter1)) return null;
 
 				// location2 is missing
-				// Check if location1 and its parent modification date are both older then the reference date (parent is considered because rename events do not modify the date of the element itself)
-				// if this is the case, location1 should be deleted since the copy without the element is more recent; otherwise location1 should be copied to location2
-				if (new Date(location1.lastModified()).compareTo(referenceDate) < 0 && new Date(location1.getParentFile().lastModified()).compareTo(referenceDate) < 0){
+				// Check if the element was deleted from location2 (then location1 should be deleted as well) or created at location1 (then it should be copied to location2)
+				int state = classifyUnpaired(location1, snapshot1, pair.parent1, ctx.index1, ctx.index2, ctx);
+				if (state == DELETED){
 					if (bidirectional){
-						actions.add(new ActionGroup('<', '>',
+						addUnpaired(ctx, actions, new ActionGroup('<', '>',
 								// Primary action is: delete from location1
-								new Action(location1.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location1.getAbsolutePath()),
+								new Action(snapshot1.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location1.getAbsolutePath()),
 								// Alternative is: copy location1 to location2
-								new Action(location1.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location1.getAbsolutePath(), location2.getAbsolutePath())
-						));
+								new Action(snapshot1.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location1.getAbsolutePath(), location2.getAbsolutePath())
+						), location1, location2, snapshot1, 1, false, false);
 					}
-				}else if(new Date(location1.lastModified()).compareTo(referenceDate) >= 0 && new Date(location1.getParentFile().lastModified()).compareTo(referenceDate) >= 0){
-					actions.add(new ActionGroup('>', '<',
+				}else if(state == CREATED){
+					addUnpaired(ctx, actions, new ActionGroup('>', '<',
 							// Primary action is: copy location1 to location2
-							new Action(location1.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location1.getAbsolutePath(), location2.getAbsolutePath()),
+							new Action(snapshot1.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location1.getAbsolutePath(), location2.getAbsolutePath()),
 							// Alternative is: delete from location1
-							new Action(location1.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location1.getAbsolutePath())
-					));
+							new Action(snapshot1.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location1.getAbsolutePath())
+					), location1, location2, snapshot1, 1, true, false);
 				}else{
-					actions.add(new ActionGroup("(please check)", '>', '<',
+					addUnpaired(ctx, actions, new ActionGroup("(please check)", '>', '<',
 							// Primary action is: copy location1 to location2
-							new Action(location1.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location1.getAbsolutePath(), location2.getAbsolutePath()),
+							new Action(snapshot1.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location1.getAbsolutePath(), location2.getAbsolutePath()),
 							// Alternative is: delete from location1
-							new Action(location1.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location1.getAbsolutePath())
-					));
+							new Action(snapshot1.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location1.getAbsolutePath())
+					), location1, location2, snapshot1, 1, isNewer(pair.parent1, pair.parent2, true), true);
 				}
 			}else{
 				// Filter
-				if (isFilterAppicable("Name:" + location2.getName(), filter)) return actions;
-				if (isFilterAppicable("Path:" + location2.getAbsolutePath().replace(File.separator, "/"), filter)) return actions;
+				if (isFilterApplicable(location2, pair.filter2)) return null;
 
 				// location1 is missing
-				// Check if location2 and its parent are both older then the reference date (parent is considered because rename events do not modify the date of the element itself)
-				// if this is the case, location2 should be deleted since the copy without the element is more recent; otherwise location2 should be copied to location1
-				if (new Date(location2.lastModified()).compareTo(referenceDate) < 0 && new Date(location2.getParentFile().lastModified()).compareTo(referenceDate) < 0){
+				// Check if the element was deleted from location1 (then location2 should be deleted as well) or created at location2 (then it should be copied to location1)
+				int state = classifyUnpaired(location2, snapshot2, pair.parent2, ctx.index2, ctx.index1, ctx);
+				if (state == DELETED){
 					if (bidirectional){
-						actions.add(new ActionGroup('>', '<',
+						addUnpaired(ctx, actions, new ActionGroup('>', '<',
 								// Primary action is: delete from location2
-								new Action(location2.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location2.getAbsolutePath()),
+								new Action(snapshot2.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location2.getAbsolutePath()),
 								// Alternative is: copy location2 to location1
-								new Action(location2.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location2.getAbsolutePath(), location1.getAbsolutePath())
-						));
+								new Action(snapshot2.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location2.getAbsolutePath(), location1.getAbsolutePath())
+						), location2, location1, snapshot2, 2, false, false);
+					}else if (ctx.moves != null){
+						// No action, unless the element was renamed or moved at location1 (then it is moved at location2 as well)
+						ctx.moves.add(null, location2, location1, snapshot2, 2, false, false, actions);
 					}
-				}else if(new Date(location2.lastModified()).compareTo(referenceDate) >= 0 && new Date(location2.getParentFile().lastModified()).compareTo(referenceDate) >= 0){
-					actions.add(new ActionGroup('<', '>',
+				}else if(state == CREATED){
+					addUnpaired(ctx, actions, new ActionGroup('<', '>',
 							// Primary action is: copy location2 to location1
-							new Action(location2.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location2.getAbsolutePath(), location1.getAbsolutePath()),
+							new Action(snapshot2.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location2.getAbsolutePath(), location1.getAbsolutePath()),
 							// Alternative is: delete from location2
-							new Action(location2.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location2.getAbsolutePath())
-					));
+							new Action(snapshot2.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location2.getAbsolutePath())
+					), location2, location1, snapshot2, 2, true, false);
 				}else{
-					actions.add(new ActionGroup("(please check)", '<', '>',
+					addUnpaired(ctx, actions, new ActionGroup("(please check)", '<', '>',
 							// Primary action is: copy location2 to location1
-							new Action(location2.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location2.getAbsolutePath(), location1.getAbsolutePath()),
+							new Action(snapshot2.isFile() ? Action.Type.CopyFile : Action.Type.CopyDirectory, location2.getAbsolutePath(), location1.getAbsolutePath()),
 							// Alternative is: delete from location2
-							new Action(location2.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location2.getAbsolutePath())
-					));
+							new Action(snapshot2.isFile() ? Action.Type.DeleteFile : Action.Type.DeleteDirectory, location2.getAbsolutePath())
+					), location2, location1, snapshot2, 2, isNewer(pair.parent2, pair.parent1, false), true);
 				}
 			}
 		}
 		
-		return actions;
+		return null;
 	}
 	
 	/**
-	 * Checks if one of the filters is applicable to a given filterstring
-	 * @param filterstring
-	 * @param filterlist
+	 * Passes the action group of an element which was created or deleted at one location to the sink,
+	 * or to the move detection (if enabled).
+	 * @param ctx
+	 * @param actions
+	 * @param group
+	 * @param location The element
+	 * @param counterpart The path of the element at the other location
+	 * @param snapshot
+	 * @param side The location of the element (1 or 2)
+	 * @param created True if the element was (probably) created, false if it was (probably) deleted from the other location
+	 * @param uncertain True if it is unknown whether the element was created or deleted
+	 */
+	private static void addUnpaired(CompareContext ctx, ActionGroupSink actions, ActionGroup group, File location, File counterpart, FileSnapshot snapshot, int side, boolean created, boolean uncertain){
+		withSnapshots(group, location, snapshot, FileSnapshot.MISSING);
+		if (ctx.moves != null){
+			ctx.moves.add(group, location, counterpart, snapshot, side, created, uncertain, actions);
+		}else{
+			actions.add(group);
+		}
+	}
+
+	/**
+	 * Records the attributes of the elements of the actions of a group, which are shown when the actions are printed,
+	 * and the file keys of the sources of its file copies, such that hard links of the same file are copied once
+	 * (see Action.assignLinkTargets). Symbolic links are not keyed, as their targets are copied.
+	 * @param group
+	 * @param location1
+	 * @param snapshot1 Snapshot of location1
+	 * @param snapshot2 Snapshot of the other location
+	 * @return ActionGroup group
+	 */
+	private static ActionGroup withSnapshots(ActionGroup group, File location1, FileSnapshot snapshot1, FileSnapshot snapshot2){
+		String path1 = location1.getAbsolutePath();
+		for (Action action : group){
+			FileSnapshot source = action.getSource().equals(path1) ? snapshot1 : snapshot2;
+			FileSnapshot destination = action.getDestination() == null ? null : action.getDestination().equals(path1) ? snapshot1 : snapshot2;
+			action.setSnapshots(source, destination);
+			if (action.getType() == Action.Type.CopyFile || action.getType() == Action.Type.DelAndCopyFile){
+				if (source.isFile() && !source.isSymbolicLink()) action.setSourceKey(source.getFileKey());
+			}
+		}
+		return group;
+	}
+
+	/**
+	 * Checks if a directory was modified after the corresponding directory at the other location.
+	 * Renaming or moving an element modifies its parent directory, hence this is a hint at which location the element was renamed.
+	 * @param parent
+	 * @param otherParent
+	 * @param orEqual Result if both directories were modified at the same time
 	 * @return boolean
 	 */
-	private static boolean isFilterAppicable(String filterstring, List<String> filterlist){
-		if (filterlist == null) return false;
-		for (String filter : filterlist){
-			Pattern p = Pattern.compile(filter);
-			Matcher m = p.matcher(filterstring);
-			if (m.matches()) return true;
+	private static boolean isNewer(FileSnapshot parent, FileSnapshot otherParent, boolean orEqual){
+		if (parent == null || otherParent == null || parent.lastModified() == otherParent.lastModified()) return orEqual;
+		return parent.lastModified() > otherParent.lastModified();
+	}
+
+	private static final int DELETED = -1;
+	private static final int UNKNOWN = 0;
+	private static final int CREATED = 1;
+
+	/**
+	 * Classifies an element which exists only at one location.
+	 * With a sync index, the element was deleted from the other location if it was present there after the last synchronization
+	 * and is unmodified here; it was created if it was present at neither location.
+	 * Without index, the element and its parent modification date are compared to the reference date (parent is considered because rename events do not modify the date of the element itself).
+	 * @param location The existing element
+	 * @param snapshot Snapshot of the existing element
+	 * @param parent Snapshot of the parent directory of the existing element (null for roots)
+	 * @param index Index of the location where the element exists
+	 * @param otherIndex Index of the location where the element is missing
+	 * @param ctx
+	 * @return int DELETED, CREATED or UNKNOWN
+	 */
+	private int classifyUnpaired(File location, FileSnapshot snapshot, FileSnapshot parent, SyncIndex index, SyncIndex otherIndex, CompareContext ctx){
+		if (index != null){
+			String relativePath = ctx.relativePath(location);
+			SyncIndex.Entry indexed = index.lookup(relativePath);
+			SyncIndex.Entry otherIndexed = otherIndex.lookup(relativePath);
+			if (otherIndexed != null){
+				// Deleted at the other location; unsure if it was modified here in the meantime
+				return indexed != null && indexed.matches(snapshot, ctx.timemargin) ? DELETED : UNKNOWN;
+			}else if (indexed == null){
+				return CREATED;
+			}
+			// Inconsistent index (e.g. a previous copy failed): fall back to the reference date
 		}
-		return false;
+
+		long referenceTime = ctx.referenceDate.getTime();
+		long parentModified = (parent != null ? parent : snapshot(location.getAbsoluteFile().getParentFile())).lastModified();
+		if (snapshot.lastModified() < referenceTime && parentModified < referenceTime) return DELETED;
+		if (snapshot.lastModified() >= referenceTime && parentModified >= referenceTime) return CREATED;
+		return UNKNOWN;
+	}
+
+	/**
+	 * Checks if one of the filters is applicable to a location
+	 * @param location
+	 * @param filter Filters in the scope of the parent directory
+	 * @return boolean
+	 */
+	private static boolean isFilterApplicable(File location, FilterEngine filter){
+		return filter.isExcluded(location.getName(), filter.needsPath() ? location.getAbsolutePath().replace(File.separator, "/") : null);
 	}
 	
+	/**
+	 * Writes the sync indexes of all locations defined in a sync file. Should be called after a successful synchronization.
+	 * @param syncFile
+	 * @throws Exception
+	 */
+	public void updateIndexes(String syncFile) throws Exception{
+		try{
+			prop = new MultiProperties();
+			prop.load(new FileInputStream(syncFile));
+			if (!prop.containsKey("syncindex")) return;
+			setIndexDirectory(prop.getProperty("syncindex"));
+			for (SyncLocation currentLocation : readSyncLocations()){
+				SyncIndex.write(indexDirectory, currentLocation.location1);
+				SyncIndex.write(indexDirectory, currentLocation.location2);
+			}
+		}catch(FileNotFoundException e){
+			throw new Exception("Error: sync config file could not be found");
+		}catch(IOException e){
+			throw new Exception("Error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Updates the sync indexes of the locations defined in a sync file after some of their elements were synchronized
+	 * (see SyncIndex.update). Should be called after the actions of a synchronization of these elements were executed.
+	 * @param syncFile
+	 * @param elements Synchronized elements of the locations
+	 * @throws Exception
+	 */
+	public void updateIndexes(String syncFile, Collection<File> elements) throws Exception{
+		try{
+			prop = new MultiProperties();
+			prop.load(new FileInputStream(syncFile));
+			if (!prop.containsKey("syncindex")) return;
+			setIndexDirectory(prop.getProperty("syncindex"));
+			for (SyncLocation currentLocation : readSyncLocations()){
+				List<String> relativePaths = getRelativePaths(elements, currentLocation.location1, currentLocation.location2);
+				if (relativePaths.size() == 0) continue;
+				SyncIndex.update(indexDirectory, currentLocation.location1, relativePaths);
+				SyncIndex.update(indexDirectory, currentLocation.location2, relativePaths);
+			}
+		}catch(FileNotFoundException e){
+			throw new Exception("Error: sync config file could not be found");
+		}catch(IOException e){
+			throw new Exception("Error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Sets the directory where the sync indexes of the locations are stored (null if no index is used).
+	 * @param indexDirectory
+	 */
+	public void setIndexDirectory(String indexDirectory){
+		this.indexDirectory = indexDirectory;
+	}
+
+	/**
+	 * Sets the cache of content hashes. If set, files of the same size are compared by their contents rather than by their dates
+	 * (null compares files by their modification dates only).
+	 * @param hashCache
+	 */
+	public void setHashCache(HashCache hashCache){
+		this.hashCache = hashCache;
+	}
+
+	/**
+	 * Sets if elements which were renamed or moved at one location are detected; these are moved at the other location rather than copied.
+	 * @param detectMoves
+	 */
+	public void setDetectMoves(boolean detectMoves){
+		this.detectMoves = detectMoves;
+	}
+
+	/**
+	 * Sets the number of directories per location which may be read ahead of the comparison (0 disables prefetching).
+	 * Prefetching pays off for file systems with a high latency per request, e.g. network mounts.
+	 * @param prefetch
+	 * @throws IllegalArgumentException If prefetch is negative
+	 */
+	public void setPrefetch(int prefetch) throws IllegalArgumentException{
+		if (prefetch < 0) throw new IllegalArgumentException("Number of prefetched directories must not be negative");
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Sets the number of threads used for comparing directories (1 means sequential traversal).
+	 * @param threads
+	 * @throws IllegalArgumentException If threads is smaller than 1
+	 */
+	public synchronized void setThreads(int threads) throws IllegalArgumentException{
+		if (threads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		if (threads != this.threads && pool != null){
+			// Running comparisons complete; the workers of the previous pool terminate afterwards
+			pool.shutdown();
+			pool = null;
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Returns the number of threads used for comparing directories.
+	 * @return int
+	 */
+	public int getThreads(){
+		return threads;
+	}
+
+	/**
+	 * Returns the fork-join pool used for parallel comparison (created on first use).
+	 * @return ForkJoinPool
+	 */
+	private synchronized ForkJoinPool getPool(){
+		if (pool == null) pool = new ForkJoinPool(threads);
+		return pool;
+	}
+
+	/**
+	 * Returns the number of stat calls issued during the last synchronization (only valid after success).
+	 * @return long
+	 */
+	public long getStatCalls(){
+		return statCalls;
+	}
+
+	/**
+	 * Returns the number of compared pairs of entries during the last synchronization (only valid after success).
+	 * @return long
+	 */
+	public long getComparedEntries(){
+		return comparedEntries.get();
+	}
+
+	/**
+	 * Returns statistics of the last synchronization (only valid after success).
+	 * @return String
+	 */
+	public String getStatistics(){
+		long entries = getComparedEntries();
+		return entries + " entries compared, " + getStatCalls() + " stat calls" + (entries > 0 ? String.format(" (%.2f per entry)", (double)getStatCalls() / entries) : "");
+	}
+
 	/**
 	 * Returns the synchronization time in seconds (only valid after success).
 	 * @return Synchronization time in seconds